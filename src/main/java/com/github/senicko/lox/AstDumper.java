@@ -0,0 +1,426 @@
+package com.github.senicko.lox;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+
+// Streams a program's AST without recursion, so arbitrarily deep trees of multi-megabyte programs can be dumped
+// in constant stack space. Unlike AstPrinter nothing is built up in memory: output goes straight to the sink.
+class AstDumper {
+    private static final String SPACE = " ";
+    private static final String CLOSE = ")";
+
+    // Marks an absent child in the binary format.
+    private static final int ABSENT = 0xFF;
+
+    // Stmt kinds are written after the Expr kinds in the binary format.
+    private static final int STMT_OFFSET = 64;
+
+    // Writes one S-expression per top-level statement, in the format of AstPrinter.
+    static void dump(List<Stmt> program, Appendable out) throws IOException {
+        Deque<Object> pending = new ArrayDeque<>();
+
+        for (Stmt statement : program) {
+            pending.push(statement);
+
+            while (!pending.isEmpty()) {
+                Object item = pending.pop();
+
+                // Fused nodes are dumped as the nodes they were fused from.
+                if (item instanceof String text) out.append(text);
+                else if (item instanceof Expr expr) open(Fusion.expand(expr), out, pending);
+                else open(Fusion.expand((Stmt) item), out, pending);
+            }
+
+            out.append('\n');
+        }
+    }
+
+    private static void open(Expr expr, Appendable out, Deque<Object> pending) throws IOException {
+        switch (expr.kind) {
+            case Expr.BINARY -> {
+                Expr.Binary binary = (Expr.Binary) expr;
+                list(out, pending, binary.operator.lexeme(), binary.left, binary.right);
+            }
+            // Specialized operators print like the operators they specialize.
+            case Expr.NUMBER_BINARY -> {
+                Expr.NumberBinary binary = (Expr.NumberBinary) expr;
+                list(out, pending, binary.operator.lexeme(), binary.left, binary.right);
+            }
+            case Expr.NUMBER_NEGATE -> {
+                Expr.NumberNegate negate = (Expr.NumberNegate) expr;
+                list(out, pending, negate.operator.lexeme(), negate.right);
+            }
+            case Expr.CONCAT -> {
+                Expr.Concat concat = (Expr.Concat) expr;
+                list(out, pending, concat.operator.lexeme(), concat.left, concat.right);
+            }
+            case Expr.GROUPING -> list(out, pending, "group", ((Expr.Grouping) expr).expression);
+            case Expr.LITERAL -> {
+                Object value = ((Expr.Literal) expr).value;
+                out.append(value == null ? "nil" : value instanceof Long ? Numbers.toString(value) : value.toString());
+            }
+            case Expr.LOGICAL -> {
+                Expr.Logical logical = (Expr.Logical) expr;
+                list(out, pending, logical.operator.lexeme(), logical.left, logical.right);
+            }
+            case Expr.UNARY -> {
+                Expr.Unary unary = (Expr.Unary) expr;
+                list(out, pending, unary.operator.lexeme(), unary.right);
+            }
+            case Expr.TERNARY -> {
+                Expr.Ternary ternary = (Expr.Ternary) expr;
+                list(out, pending, "ternary", ternary.condition, ternary.truthy, ternary.falsy);
+            }
+            case Expr.VARIABLE -> out.append("(var ").append(((Expr.Variable) expr).name.lexeme()).append(CLOSE);
+            case Expr.ASSIGNMENT -> {
+                Expr.Assignment assignment = (Expr.Assignment) expr;
+                list(out, pending, "assign[" + assignment.name.lexeme() + "]", assignment.value);
+            }
+            case Expr.CALL -> list(out, pending, "call", callChildren((Expr.Call) expr));
+            case Expr.INDEX -> {
+                Expr.Index index = (Expr.Index) expr;
+                list(out, pending, "index", index.object, index.index);
+            }
+            case Expr.INDEX_SET -> {
+                Expr.IndexSet set = (Expr.IndexSet) expr;
+                list(out, pending, "index-set", set.object, set.index, set.value);
+            }
+            case Expr.MAP_LITERAL -> list(out, pending, "map", mapChildren((Expr.MapLiteral) expr));
+            case Expr.LOCAL -> {
+                Expr.Local local = (Expr.Local) expr;
+                out.append("(local[" + local.slot + "] ").append(local.name.lexeme()).append(CLOSE);
+            }
+            case Expr.LOCAL_ASSIGN -> {
+                Expr.LocalAssign assignment = (Expr.LocalAssign) expr;
+                list(out, pending, "assign-local[" + assignment.slot + "]", assignment.value);
+            }
+            case Expr.GET -> {
+                Expr.Get get = (Expr.Get) expr;
+                list(out, pending, "get[" + get.name.lexeme() + "]", get.object);
+            }
+            case Expr.SET -> {
+                Expr.Set set = (Expr.Set) expr;
+                list(out, pending, "set[" + set.name.lexeme() + "]", set.object, set.value);
+            }
+            case Expr.SUPER -> {
+                Expr.Super superExpr = (Expr.Super) expr;
+                list(out, pending, "super[" + superExpr.method.lexeme() + "]", superExpr.receiver);
+            }
+            default -> throw new IllegalStateException("Not an expression node: " + expr.kind);
+        }
+    }
+
+    private static void open(Stmt stmt, Appendable out, Deque<Object> pending) throws IOException {
+        switch (stmt.kind) {
+            case Stmt.EXPRESSION -> pending.push(((Stmt.Expression) stmt).expression);
+            case Stmt.IF -> {
+                Stmt.If ifStmt = (Stmt.If) stmt;
+                list(out, pending, "if", ifStmt.condition, ifStmt.thenBranch, ifStmt.elseBranch);
+            }
+            case Stmt.PRINT -> list(out, pending, "print", ((Stmt.Print) stmt).expression);
+            case Stmt.VAR -> {
+                Stmt.Var var = (Stmt.Var) stmt;
+                list(out, pending, "var[" + var.name.lexeme() + "]", var.initializer);
+            }
+            case Stmt.WHILE -> {
+                Stmt.While whileStmt = (Stmt.While) stmt;
+                list(out, pending, "while", whileStmt.condition, whileStmt.body);
+            }
+            case Stmt.BLOCK -> list(out, pending, "block", ((Stmt.Block) stmt).statements.toArray());
+            case Stmt.COUNTED_LOOP -> {
+                // Dumped as the loop it was recognized from.
+                Stmt.CountedLoop loop = (Stmt.CountedLoop) stmt;
+                list(out, pending, "block", loop.initializer, loop.fallback);
+            }
+            case Stmt.FUNCTION -> {
+                Stmt.Function function = (Stmt.Function) stmt;
+                StringBuilder header = new StringBuilder("fun[" + function.name.lexeme() + "] (params");
+
+                for (Token param : function.params) {
+                    header.append(' ').append(param.lexeme());
+                }
+
+                list(out, pending, header.append(')').toString(), function.body.toArray());
+            }
+            case Stmt.RETURN -> list(out, pending, "return", ((Stmt.Return) stmt).value);
+            case Stmt.CLASS -> {
+                Stmt.Class classStmt = (Stmt.Class) stmt;
+                Object[] children = new Object[classStmt.methods.size() + 1];
+                children[0] = classStmt.superclass;
+
+                for (int i = 0; i < classStmt.methods.size(); i++) {
+                    children[i + 1] = classStmt.methods.get(i);
+                }
+
+                list(out, pending, "class[" + classStmt.name.lexeme() + "]", children);
+            }
+            case Stmt.LOCAL_VAR -> {
+                Stmt.LocalVar var = (Stmt.LocalVar) stmt;
+                list(out, pending, "var-local[" + var.slot + "] " + var.name.lexeme(), var.initializer);
+            }
+            default -> throw new IllegalStateException("Not a statement node: " + stmt.kind);
+        }
+    }
+
+    // Writes "(name" now and schedules " child" for every present child followed by ")".
+    private static void list(Appendable out, Deque<Object> pending, String name, Object... children) throws IOException {
+        out.append('(').append(name);
+        pending.push(CLOSE);
+
+        for (int i = children.length - 1; i >= 0; i--) {
+            if (children[i] == null) continue;
+
+            pending.push(children[i]);
+            pending.push(SPACE);
+        }
+    }
+
+    // Writes the program in preorder as a compact binary stream: a statement count, then for every node its kind
+    // byte followed by its payload and children.
+    static void dumpBinary(List<Stmt> program, DataOutput out) throws IOException {
+        Deque<Object> pending = new ArrayDeque<>();
+        out.writeInt(program.size());
+
+        for (int i = program.size() - 1; i >= 0; i--) {
+            pending.push(program.get(i));
+        }
+
+        while (!pending.isEmpty()) {
+            Object item = pending.pop();
+
+            if (item == AstDumper.class) {
+                out.writeByte(ABSENT);
+            } else if (item instanceof Expr fused) {
+                // Written as the nodes they were fused from, which is all a reader of the format has to know.
+                Expr expr = Fusion.expand(fused);
+                out.writeByte(expr.kind);
+                writeBinary(expr, out, pending);
+            } else {
+                Stmt stmt = Fusion.expand((Stmt) item);
+                out.writeByte(STMT_OFFSET + stmt.kind);
+                writeBinary(stmt, out, pending);
+            }
+        }
+    }
+
+    private static void writeBinary(Expr expr, DataOutput out, Deque<Object> pending) throws IOException {
+        switch (expr.kind) {
+            case Expr.BINARY -> {
+                Expr.Binary binary = (Expr.Binary) expr;
+                writeToken(binary.operator, out);
+                children(pending, binary.left, binary.right);
+            }
+            case Expr.NUMBER_BINARY -> {
+                Expr.NumberBinary binary = (Expr.NumberBinary) expr;
+                writeToken(binary.operator, out);
+                children(pending, binary.left, binary.right);
+            }
+            case Expr.NUMBER_NEGATE -> {
+                Expr.NumberNegate negate = (Expr.NumberNegate) expr;
+                writeToken(negate.operator, out);
+                children(pending, negate.right);
+            }
+            case Expr.CONCAT -> {
+                Expr.Concat concat = (Expr.Concat) expr;
+                writeToken(concat.operator, out);
+                children(pending, concat.left, concat.right);
+            }
+            case Expr.GROUPING -> children(pending, ((Expr.Grouping) expr).expression);
+            case Expr.LITERAL -> writeLiteral(((Expr.Literal) expr).value, out);
+            case Expr.LOGICAL -> {
+                Expr.Logical logical = (Expr.Logical) expr;
+                writeToken(logical.operator, out);
+                children(pending, logical.left, logical.right);
+            }
+            case Expr.UNARY -> {
+                Expr.Unary unary = (Expr.Unary) expr;
+                writeToken(unary.operator, out);
+                children(pending, unary.right);
+            }
+            case Expr.TERNARY -> {
+                Expr.Ternary ternary = (Expr.Ternary) expr;
+                children(pending, ternary.condition, ternary.truthy, ternary.falsy);
+            }
+            case Expr.VARIABLE -> writeToken(((Expr.Variable) expr).name, out);
+            case Expr.ASSIGNMENT -> {
+                Expr.Assignment assignment = (Expr.Assignment) expr;
+                writeToken(assignment.name, out);
+                children(pending, assignment.value);
+            }
+            case Expr.CALL -> {
+                Expr.Call call = (Expr.Call) expr;
+                writeToken(call.paren, out);
+                out.writeInt(call.arguments.size());
+                children(pending, callChildren(call));
+            }
+            case Expr.INDEX -> {
+                Expr.Index index = (Expr.Index) expr;
+                writeToken(index.bracket, out);
+                children(pending, index.object, index.index);
+            }
+            case Expr.INDEX_SET -> {
+                Expr.IndexSet set = (Expr.IndexSet) expr;
+                writeToken(set.bracket, out);
+                children(pending, set.object, set.index, set.value);
+            }
+            case Expr.MAP_LITERAL -> {
+                Expr.MapLiteral literal = (Expr.MapLiteral) expr;
+                writeToken(literal.brace, out);
+                out.writeInt(literal.keys.size());
+                children(pending, mapChildren(literal));
+            }
+            case Expr.LOCAL -> {
+                Expr.Local local = (Expr.Local) expr;
+                writeToken(local.name, out);
+                out.writeInt(local.slot);
+            }
+            case Expr.LOCAL_ASSIGN -> {
+                Expr.LocalAssign assignment = (Expr.LocalAssign) expr;
+                writeToken(assignment.name, out);
+                out.writeInt(assignment.slot);
+                children(pending, assignment.value);
+            }
+            case Expr.GET -> {
+                Expr.Get get = (Expr.Get) expr;
+                writeToken(get.name, out);
+                children(pending, get.object);
+            }
+            case Expr.SET -> {
+                Expr.Set set = (Expr.Set) expr;
+                writeToken(set.name, out);
+                children(pending, set.object, set.value);
+            }
+            case Expr.SUPER -> {
+                Expr.Super superExpr = (Expr.Super) expr;
+                writeToken(superExpr.keyword, out);
+                writeToken(superExpr.method, out);
+                children(pending, superExpr.receiver);
+            }
+            default -> throw new IllegalStateException("Not an expression node: " + expr.kind);
+        }
+    }
+
+    private static void writeBinary(Stmt stmt, DataOutput out, Deque<Object> pending) throws IOException {
+        switch (stmt.kind) {
+            case Stmt.EXPRESSION -> children(pending, ((Stmt.Expression) stmt).expression);
+            case Stmt.IF -> {
+                Stmt.If ifStmt = (Stmt.If) stmt;
+                children(pending, ifStmt.condition, ifStmt.thenBranch, ifStmt.elseBranch);
+            }
+            case Stmt.PRINT -> children(pending, ((Stmt.Print) stmt).expression);
+            case Stmt.VAR -> {
+                Stmt.Var var = (Stmt.Var) stmt;
+                writeToken(var.name, out);
+                children(pending, var.initializer);
+            }
+            case Stmt.WHILE -> {
+                Stmt.While whileStmt = (Stmt.While) stmt;
+                children(pending, whileStmt.condition, whileStmt.body);
+            }
+            case Stmt.BLOCK -> {
+                List<Stmt> statements = ((Stmt.Block) stmt).statements;
+                out.writeInt(statements.size());
+                children(pending, statements.toArray());
+            }
+            case Stmt.COUNTED_LOOP -> {
+                Stmt.CountedLoop loop = (Stmt.CountedLoop) stmt;
+                children(pending, loop.initializer, loop.fallback);
+            }
+            case Stmt.FUNCTION -> {
+                Stmt.Function function = (Stmt.Function) stmt;
+                writeToken(function.name, out);
+                out.writeInt(function.params.size());
+
+                for (Token param : function.params) {
+                    writeToken(param, out);
+                }
+
+                out.writeInt(function.slots);
+                out.writeInt(function.body.size());
+                children(pending, function.body.toArray());
+            }
+            case Stmt.RETURN -> {
+                Stmt.Return returnStmt = (Stmt.Return) stmt;
+                writeToken(returnStmt.keyword, out);
+                children(pending, returnStmt.value);
+            }
+            case Stmt.CLASS -> {
+                Stmt.Class classStmt = (Stmt.Class) stmt;
+                writeToken(classStmt.name, out);
+                out.writeInt(classStmt.methods.size());
+
+                Object[] children = new Object[classStmt.methods.size() + 1];
+                children[0] = classStmt.superclass;
+
+                for (int i = 0; i < classStmt.methods.size(); i++) {
+                    children[i + 1] = classStmt.methods.get(i);
+                }
+
+                children(pending, children);
+            }
+            case Stmt.LOCAL_VAR -> {
+                Stmt.LocalVar var = (Stmt.LocalVar) stmt;
+                writeToken(var.name, out);
+                out.writeInt(var.slot);
+                children(pending, var.initializer);
+            }
+            default -> throw new IllegalStateException("Not a statement node: " + stmt.kind);
+        }
+    }
+
+    // The callee followed by the arguments.
+    private static Object[] callChildren(Expr.Call call) {
+        Object[] children = new Object[call.arguments.size() + 1];
+        children[0] = call.callee;
+
+        for (int i = 0; i < call.arguments.size(); i++) {
+            children[i + 1] = call.arguments.get(i);
+        }
+
+        return children;
+    }
+
+    // The keys and values, alternating.
+    private static Object[] mapChildren(Expr.MapLiteral literal) {
+        Object[] children = new Object[2 * literal.keys.size()];
+
+        for (int i = 0; i < literal.keys.size(); i++) {
+            children[2 * i] = literal.keys.get(i);
+            children[2 * i + 1] = literal.values.get(i);
+        }
+
+        return children;
+    }
+
+    // Schedules the children in order, with absent ones written as a marker so every node has a fixed arity.
+    private static void children(Deque<Object> pending, Object... children) {
+        for (int i = children.length - 1; i >= 0; i--) {
+            pending.push(children[i] == null ? AstDumper.class : children[i]);
+        }
+    }
+
+    // Operator lexemes follow from their type, so only identifiers carry their text.
+    private static void writeToken(Token token, DataOutput out) throws IOException {
+        out.writeByte(token.type().ordinal());
+        if (token.type() == TokenType.IDENTIFIER) out.writeUTF(token.lexeme());
+        out.writeInt(token.line());
+    }
+
+    private static void writeLiteral(Object value, DataOutput out) throws IOException {
+        if (value == null) {
+            out.writeByte(0);
+        } else if (value instanceof Boolean bool) {
+            out.writeByte(1);
+            out.writeBoolean(bool);
+        } else if (Numbers.isNumber(value)) {
+            out.writeByte(2);
+            out.writeDouble(Numbers.toDouble(value));
+        } else {
+            out.writeByte(3);
+            out.writeUTF(value.toString());
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package com.github.senicko.lox;
 
+import java.util.Arrays;
+
 public class AstPrinter implements Expr.Visitor<String>, Stmt.Visitor<String> {
     void print(Stmt statement) {
         System.out.println(statement.accept(this));
@@ -10,6 +12,21 @@ public class AstPrinter implements Expr.Visitor<String>, Stmt.Visitor<String> {
         return parenthesize(expr.operator.lexeme(), expr.left, expr.right);
     }
 
+    @Override
+    public String visitNumberBinaryExpr(Expr.NumberBinary expr) {
+        return parenthesize(expr.operator.lexeme(), expr.left, expr.right);
+    }
+
+    @Override
+    public String visitNumberNegateExpr(Expr.NumberNegate expr) {
+        return parenthesize(expr.operator.lexeme(), expr.right);
+    }
+
+    @Override
+    public String visitConcatExpr(Expr.Concat expr) {
+        return parenthesize(expr.operator.lexeme(), expr.left, expr.right);
+    }
+
     @Override
     public String visitGroupingExpr(Expr.Grouping expr) {
         return parenthesize("group", expr.expression);
@@ -18,6 +35,7 @@ public class AstPrinter implements Expr.Visitor<String>, Stmt.Visitor<String> {
     @Override
     public String visitLiteralExpr(Expr.Literal expr) {
         if (expr.value == null) return "nil";
+        if (expr.value instanceof Long) return Numbers.toString(expr.value);
         return expr.value.toString();
     }
 
@@ -46,6 +64,141 @@ public class AstPrinter implements Expr.Visitor<String>, Stmt.Visitor<String> {
         return parenthesize("assign[" + expr.name.lexeme() + "]", expr.value);
     }
 
+    @Override
+    public String visitCallExpr(Expr.Call expr) {
+        Expr[] exprs = new Expr[expr.arguments.size() + 1];
+        exprs[0] = expr.callee;
+
+        for (int i = 0; i < expr.arguments.size(); i++) {
+            exprs[i + 1] = expr.arguments.get(i);
+        }
+
+        return parenthesize("call", exprs);
+    }
+
+    @Override
+    public String visitIndexExpr(Expr.Index expr) {
+        return parenthesize("index", expr.object, expr.index);
+    }
+
+    @Override
+    public String visitIndexSetExpr(Expr.IndexSet expr) {
+        return parenthesize("index-set", expr.object, expr.index, expr.value);
+    }
+
+    @Override
+    public String visitMapLiteralExpr(Expr.MapLiteral expr) {
+        Expr[] exprs = new Expr[2 * expr.keys.size()];
+
+        for (int i = 0; i < expr.keys.size(); i++) {
+            exprs[2 * i] = expr.keys.get(i);
+            exprs[2 * i + 1] = expr.values.get(i);
+        }
+
+        return parenthesize("map", exprs);
+    }
+
+    @Override
+    public String visitLocalExpr(Expr.Local expr) {
+        return "(local[" + expr.slot + "] " + expr.name.lexeme() + ")";
+    }
+
+    @Override
+    public String visitLocalAssignExpr(Expr.LocalAssign expr) {
+        return parenthesize("assign-local[" + expr.slot + "]", expr.value);
+    }
+
+    @Override
+    public String visitIncrementExpr(Expr.Increment expr) {
+        return fused("increment", expr.name, expr.operator, expr.step);
+    }
+
+    @Override
+    public String visitLocalIncrementExpr(Expr.LocalIncrement expr) {
+        return fused("increment-local[" + expr.slot + "]", expr.name, expr.operator, expr.step);
+    }
+
+    @Override
+    public String visitCompareExpr(Expr.Compare expr) {
+        return fused("compare", expr.name, expr.operator, expr.constant);
+    }
+
+    @Override
+    public String visitLocalCompareExpr(Expr.LocalCompare expr) {
+        return fused("compare-local[" + expr.slot + "]", expr.name, expr.operator, expr.constant);
+    }
+
+    @Override
+    public String visitCopyExpr(Expr.Copy expr) {
+        return "(copy " + expr.name.lexeme() + " " + expr.source.lexeme() + ")";
+    }
+
+    @Override
+    public String visitLocalCopyExpr(Expr.LocalCopy expr) {
+        return "(copy-local[" + expr.slot + "] " + expr.name.lexeme() + " local[" + expr.from + "] " + expr.source.lexeme() + ")";
+    }
+
+    private String fused(String name, Token variable, Token operator, Object constant) {
+        return "(" + name + " " + variable.lexeme() + " " + operator.lexeme() + " " + visitLiteralExpr(new Expr.Literal(constant)) + ")";
+    }
+
+    @Override
+    public String visitGetExpr(Expr.Get expr) {
+        return parenthesize("get[" + expr.name.lexeme() + "]", expr.object);
+    }
+
+    @Override
+    public String visitSetExpr(Expr.Set expr) {
+        return parenthesize("set[" + expr.name.lexeme() + "]", expr.object, expr.value);
+    }
+
+    @Override
+    public String visitSuperExpr(Expr.Super expr) {
+        return parenthesize("super[" + expr.method.lexeme() + "]", expr.receiver);
+    }
+
+    @Override
+    public String visitClassStmt(Stmt.Class stmt) {
+        StringBuilder builder = new StringBuilder("(class[" + stmt.name.lexeme() + "]");
+
+        if (stmt.superclass != null) builder.append(" ").append(stmt.superclass.accept(this));
+
+        for (Stmt method : stmt.methods) {
+            builder.append(" ").append(method.accept(this));
+        }
+
+        return builder.append(")").toString();
+    }
+
+    @Override
+    public String visitFunctionStmt(Stmt.Function stmt) {
+        StringBuilder builder = new StringBuilder("(fun[" + stmt.name.lexeme() + "] (params");
+
+        for (Token param : stmt.params) {
+            builder.append(" ").append(param.lexeme());
+        }
+
+        builder.append(")");
+
+        for (Stmt statement : stmt.body) {
+            builder.append(" ").append(statement.accept(this));
+        }
+
+        return builder.append(")").toString();
+    }
+
+    @Override
+    public String visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value == null) return "(return)";
+        return parenthesize("return", stmt.value);
+    }
+
+    @Override
+    public String visitLocalVarStmt(Stmt.LocalVar stmt) {
+        if (stmt.initializer == null) return "(var-local[" + stmt.slot + "] " + stmt.name.lexeme() + ")";
+        return parenthesize("var-local[" + stmt.slot + "] " + stmt.name.lexeme(), stmt.initializer);
+    }
+
     private String parenthesize(String name, Expr... exprs) {
         StringBuilder builder = new StringBuilder();
 
@@ -73,6 +226,16 @@ public class AstPrinter implements Expr.Visitor<String>, Stmt.Visitor<String> {
         return parenthesize("print", stmt.expression);
     }
 
+    @Override
+    public String visitPrintVariableStmt(Stmt.PrintVariable stmt) {
+        return "(print-variable " + stmt.name.lexeme() + ")";
+    }
+
+    @Override
+    public String visitPrintLocalStmt(Stmt.PrintLocal stmt) {
+        return "(print-local[" + stmt.slot + "] " + stmt.name.lexeme() + ")";
+    }
+
     @Override
     public String visitVarStmt(Stmt.Var stmt) {
         return parenthesize("var[" + stmt.name.lexeme() + "]", stmt.initializer);
@@ -95,4 +258,9 @@ public class AstPrinter implements Expr.Visitor<String>, Stmt.Visitor<String> {
 
         return builder.toString();
     }
+
+    @Override
+    public String visitCountedLoopStmt(Stmt.CountedLoop stmt) {
+        return new Stmt.Block(Arrays.asList(stmt.initializer, stmt.fallback)).accept(this);
+    }
 }
@@ -2,67 +2,238 @@ package com.github.senicko.lox;
 
 import org.jetbrains.annotations.NotNull;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
+import java.util.function.Consumer;
 
-class Value {
-    static class Initialized extends Value {
-        Object value;
+public class Environment {
+    private static final int[] NO_KEYS = new int[0];
+    private static final Value[] NO_VALUES = new Value[0];
 
-        Initialized(Object value) {
-            this.value = value;
-        }
-    }
+    final Environment enclosing;
 
-    public static class Uninitialized extends Value {
-    }
-}
+    // The environment this one was forked from, whose bindings it shares until it assigns them. A binding is
+    // copied into this environment's own table the first time it is written, so forks share everything they
+    // leave alone.
+    private Environment base;
 
-public class Environment {
-    final Environment enclosing;
-    private final Map<String, Value> values = new HashMap<>();
+    // Open addressing table keyed by symbol id + 1 with linear probing, where a key of 0 marks an empty slot.
+    // It is allocated on the first definition, so scopes which never declare anything stay cheap.
+    private int[] keys = NO_KEYS;
+    private Value[] values = NO_VALUES;
+    private int size = 0;
 
     Environment() {
-        this.enclosing = null;
+        this(null, null);
     }
 
     Environment(Environment enclosing) {
+        this(enclosing, null);
+    }
+
+    private Environment(Environment enclosing, Environment base) {
         this.enclosing = enclosing;
+        this.base = base;
+    }
+
+    // Moves the bindings into a snapshot, which this environment is then forked from, and returns it. Nothing
+    // writes the snapshot again, so any number of environments can be forked from it and read it concurrently.
+    Environment snapshot() {
+        Environment snapshot = new Environment(null, base);
+        snapshot.keys = keys;
+        snapshot.values = values;
+        snapshot.size = size;
+
+        keys = NO_KEYS;
+        values = NO_VALUES;
+        size = 0;
+        base = snapshot;
+
+        return snapshot;
     }
 
-    void define(String name, Object value) {
+    // Every value bound in this environment's own table and in the ones it was forked from, including values a
+    // binding of this one shadows.
+    void forEachValue(Consumer<Object> action) {
+        for (Environment environment = this; environment != null; environment = environment.base) {
+            for (int slot = 0; slot < environment.keys.length; slot++) {
+                if (environment.keys[slot] != 0 && environment.values[slot] instanceof Value.Initialized initialized) {
+                    action.accept(initialized.value);
+                }
+            }
+        }
+    }
+
+    // An environment enclosed by the given one which starts out with this one's bindings, in constant time.
+    Environment fork(Environment enclosing) {
+        return new Environment(enclosing, this);
+    }
+
+    void define(@NotNull Token name, Object value) {
+        int symbol = symbol(name);
+        int slot = slot(symbol);
+
+        if (slot < 0) slot = insert(symbol);
+
         if (value == null) {
-            values.put(name, new Value.Uninitialized());
+            values[slot] = Value.UNINITIALIZED;
             return;
         }
 
-        values.put(name, new Value.Initialized(value));
+        // Reuse the binding the slot held before the scope was reset, so a loop body's declarations don't allocate.
+        // Closures capture environments, never bindings, so nothing else can still see it.
+        if (values[slot] instanceof Value.Initialized initialized) {
+            initialized.value = value;
+        } else {
+            values[slot] = new Value.Initialized(value);
+        }
     }
 
     Value.Initialized get(@NotNull Token name) {
-        Value value = null;
+        int symbol = symbol(name);
+
+        for (Environment environment = this; environment != null; environment = environment.enclosing) {
+            Value value = environment.binding(symbol);
+            if (value == null) continue;
 
-        if (values.containsKey(name.lexeme())) value = values.get(name.lexeme());
-        else if (enclosing != null) value = enclosing.get(name);
+            if (value instanceof Value.Uninitialized) throw new LoxRuntimeError(name, "Use of uninitialized variable.");
+            return (Value.Initialized) value;
+        }
+
+        throw new LoxRuntimeError(name, "Undefined variable '" + name.lexeme() + "'.");
+    }
 
+    // Like get, for a caller which writes the binding it read. A binding shared with the environment this one was
+    // forked from is copied first.
+    Value.Initialized update(@NotNull Token name) {
+        int symbol = symbol(name);
 
-        if (value == null) throw new LoxRuntimeError(name, "Undefined variable '" + name.lexeme() + "'.");
+        for (Environment environment = this; environment != null; environment = environment.enclosing) {
+            int slot = environment.slot(symbol);
+            Value value = slot >= 0 ? environment.values[slot] : environment.shared(symbol);
+            if (value == null) continue;
 
-        if (value instanceof Value.Uninitialized) throw new LoxRuntimeError(name, "Use of uninitialized variable.");
-        else return (Value.Initialized) value;
+            if (value instanceof Value.Uninitialized) throw new LoxRuntimeError(name, "Use of uninitialized variable.");
+            if (slot >= 0) return (Value.Initialized) value;
+
+            Value.Initialized copy = new Value.Initialized(((Value.Initialized) value).value);
+            slot = environment.insert(symbol);
+            environment.values[slot] = copy;
+            return copy;
+        }
+
+        throw new LoxRuntimeError(name, "Undefined variable '" + name.lexeme() + "'.");
     }
 
-    void assign(@NotNull Token name, Object value) {
-        if (values.containsKey(name.lexeme())) {
-            values.put(name.lexeme(), new Value.Initialized(value));
-            return;
+    // The binding the name resolves to, initialized or not, or null if the name isn't defined.
+    Value find(@NotNull Token name) {
+        int symbol = symbol(name);
+
+        for (Environment environment = this; environment != null; environment = environment.enclosing) {
+            Value value = environment.binding(symbol);
+            if (value != null) return value;
         }
 
-        if (enclosing != null) {
-            enclosing.assign(name, value);
+        return null;
+    }
+
+    void assign(@NotNull Token name, Object value) {
+        int symbol = symbol(name);
+
+        for (Environment environment = this; environment != null; environment = environment.enclosing) {
+            int slot = environment.slot(symbol);
+
+            if (slot < 0) {
+                if (environment.shared(symbol) == null) continue;
+
+                // Written for the first time since the fork, which leaves the shared binding alone.
+                slot = environment.insert(symbol);
+                environment.values[slot] = new Value.Initialized(value);
+                return;
+            }
+
+            // Reuse the existing binding so steady-state assignments don't allocate.
+            if (environment.values[slot] instanceof Value.Initialized initialized) {
+                initialized.value = value;
+            } else {
+                environment.values[slot] = new Value.Initialized(value);
+            }
+
             return;
         }
 
         throw new LoxRuntimeError(name, "Undefined variable '" + name.lexeme() + "'.");
     }
+
+    // Drops all bindings but keeps the backing table, so a loop body can reuse one scope across iterations. The
+    // bindings stay in their slots to be reused by the declarations of the next iteration, which land in the same
+    // slots as they are made in the same order.
+    void reset() {
+        if (size == 0) return;
+
+        Arrays.fill(keys, 0);
+        size = 0;
+    }
+
+    // The binding of the symbol in this environment's own table or in the ones it was forked from, or null.
+    private Value binding(int symbol) {
+        int slot = slot(symbol);
+        if (slot >= 0) return values[slot];
+
+        return shared(symbol);
+    }
+
+    private Value shared(int symbol) {
+        for (Environment environment = base; environment != null; environment = environment.base) {
+            int slot = environment.slot(symbol);
+            if (slot >= 0) return environment.values[slot];
+        }
+
+        return null;
+    }
+
+    private static int symbol(Token name) {
+        return ((Symbol) name.literal()).id();
+    }
+
+    private int slot(int symbol) {
+        if (size == 0) return -1;
+
+        int mask = keys.length - 1;
+        for (int slot = symbol & mask; keys[slot] != 0; slot = (slot + 1) & mask) {
+            if (keys[slot] == symbol + 1) return slot;
+        }
+
+        return -1;
+    }
+
+    private int insert(int symbol) {
+        if ((size + 1) * 2 > keys.length) grow();
+
+        int mask = keys.length - 1;
+        int slot = symbol & mask;
+        while (keys[slot] != 0) slot = (slot + 1) & mask;
+
+        keys[slot] = symbol + 1;
+        size++;
+        return slot;
+    }
+
+    private void grow() {
+        int[] oldKeys = keys;
+        Value[] oldValues = values;
+
+        keys = new int[Math.max(8, oldKeys.length * 2)];
+        values = new Value[keys.length];
+
+        int mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == 0) continue;
+
+            int slot = (oldKeys[i] - 1) & mask;
+            while (keys[slot] != 0) slot = (slot + 1) & mask;
+
+            keys[slot] = oldKeys[i];
+            values[slot] = oldValues[i];
+        }
+    }
 }
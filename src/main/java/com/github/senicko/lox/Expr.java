@@ -1,6 +1,39 @@
 package com.github.senicko.lox;
 
-abstract class Expr{
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
+
+abstract sealed class Expr permits Expr.Binary, Expr.Grouping, Expr.Literal, Expr.Logical, Expr.Unary, Expr.Ternary, Expr.Variable, Expr.Assignment, Expr.Call, Expr.Index, Expr.IndexSet, Expr.MapLiteral, Expr.Local, Expr.LocalAssign, Expr.Get, Expr.Set, Expr.Super, Expr.NumberBinary, Expr.NumberNegate, Expr.Concat, Expr.Increment, Expr.LocalIncrement, Expr.Compare, Expr.LocalCompare, Expr.Copy, Expr.LocalCopy {
+    // Stable node kinds, for switch based dispatch.
+    static final int BINARY = 0;
+    static final int GROUPING = 1;
+    static final int LITERAL = 2;
+    static final int LOGICAL = 3;
+    static final int UNARY = 4;
+    static final int TERNARY = 5;
+    static final int VARIABLE = 6;
+    static final int ASSIGNMENT = 7;
+    static final int CALL = 8;
+    static final int INDEX = 9;
+    static final int INDEX_SET = 10;
+    static final int MAP_LITERAL = 11;
+    static final int LOCAL = 12;
+    static final int LOCAL_ASSIGN = 13;
+    static final int GET = 14;
+    static final int SET = 15;
+    static final int SUPER = 16;
+    static final int NUMBER_BINARY = 17;
+    static final int NUMBER_NEGATE = 18;
+    static final int CONCAT = 19;
+    static final int INCREMENT = 20;
+    static final int LOCAL_INCREMENT = 21;
+    static final int COMPARE = 22;
+    static final int LOCAL_COMPARE = 23;
+    static final int COPY = 24;
+    static final int LOCAL_COPY = 25;
+
     interface Visitor<R> {
         R visitBinaryExpr(Binary expr);
         R visitGroupingExpr(Grouping expr);
@@ -10,10 +43,35 @@ abstract class Expr{
         R visitTernaryExpr(Ternary expr);
         R visitVariableExpr(Variable expr);
         R visitAssignmentExpr(Assignment expr);
+        R visitCallExpr(Call expr);
+        R visitIndexExpr(Index expr);
+        R visitIndexSetExpr(IndexSet expr);
+        R visitMapLiteralExpr(MapLiteral expr);
+        R visitLocalExpr(Local expr);
+        R visitLocalAssignExpr(LocalAssign expr);
+        R visitGetExpr(Get expr);
+        R visitSetExpr(Set expr);
+        R visitSuperExpr(Super expr);
+        R visitNumberBinaryExpr(NumberBinary expr);
+        R visitNumberNegateExpr(NumberNegate expr);
+        R visitConcatExpr(Concat expr);
+        R visitIncrementExpr(Increment expr);
+        R visitLocalIncrementExpr(LocalIncrement expr);
+        R visitCompareExpr(Compare expr);
+        R visitLocalCompareExpr(LocalCompare expr);
+        R visitCopyExpr(Copy expr);
+        R visitLocalCopyExpr(LocalCopy expr);
+    }
+
+    final int kind;
+
+    Expr(int kind) {
+        this.kind = kind;
     }
 
-    static class Binary extends Expr {
+    static final class Binary extends Expr {
         Binary(Expr left, Token operator, Expr right) {
+            super(BINARY);
             this.left = left;
             this.operator = operator;
             this.right = right;
@@ -24,13 +82,29 @@ abstract class Expr{
             return visitor.visitBinaryExpr(this);
         }
 
+        @Override
+        void forEachChild(Consumer<Expr> exprs, Consumer<Stmt> stmts) {
+            if (left != null) exprs.accept(left);
+            if (right != null) exprs.accept(right);
+        }
+
+        @Override
+        Expr withChildren(UnaryOperator<Expr> exprs, UnaryOperator<Stmt> stmts) {
+            Expr left = this.left == null ? null : exprs.apply(this.left);
+            Expr right = this.right == null ? null : exprs.apply(this.right);
+
+            if (left == this.left && right == this.right) return this;
+            return new Binary(left, operator, right);
+        }
+
         final Expr left;
         final Token operator;
         final Expr right;
     }
 
-    static class Grouping extends Expr {
+    static final class Grouping extends Expr {
         Grouping(Expr expression) {
+            super(GROUPING);
             this.expression = expression;
         }
 
@@ -39,11 +113,25 @@ abstract class Expr{
             return visitor.visitGroupingExpr(this);
         }
 
+        @Override
+        void forEachChild(Consumer<Expr> exprs, Consumer<Stmt> stmts) {
+            if (expression != null) exprs.accept(expression);
+        }
+
+        @Override
+        Expr withChildren(UnaryOperator<Expr> exprs, UnaryOperator<Stmt> stmts) {
+            Expr expression = this.expression == null ? null : exprs.apply(this.expression);
+
+            if (expression == this.expression) return this;
+            return new Grouping(expression);
+        }
+
         final Expr expression;
     }
 
-    static class Literal extends Expr {
+    static final class Literal extends Expr {
         Literal(Object value) {
+            super(LITERAL);
             this.value = value;
         }
 
@@ -52,11 +140,21 @@ abstract class Expr{
             return visitor.visitLiteralExpr(this);
         }
 
+        @Override
+        void forEachChild(Consumer<Expr> exprs, Consumer<Stmt> stmts) {
+        }
+
+        @Override
+        Expr withChildren(UnaryOperator<Expr> exprs, UnaryOperator<Stmt> stmts) {
+            return this;
+        }
+
         final Object value;
     }
 
-    static class Logical extends Expr {
+    static final class Logical extends Expr {
         Logical(Expr left, Token operator, Expr right) {
+            super(LOGICAL);
             this.left = left;
             this.operator = operator;
             this.right = right;
@@ -67,13 +165,29 @@ abstract class Expr{
             return visitor.visitLogicalExpr(this);
         }
 
+        @Override
+        void forEachChild(Consumer<Expr> exprs, Consumer<Stmt> stmts) {
+            if (left != null) exprs.accept(left);
+            if (right != null) exprs.accept(right);
+        }
+
+        @Override
+        Expr withChildren(UnaryOperator<Expr> exprs, UnaryOperator<Stmt> stmts) {
+            Expr left = this.left == null ? null : exprs.apply(this.left);
+            Expr right = this.right == null ? null : exprs.apply(this.right);
+
+            if (left == this.left && right == this.right) return this;
+            return new Logical(left, operator, right);
+        }
+
         final Expr left;
         final Token operator;
         final Expr right;
     }
 
-    static class Unary extends Expr {
+    static final class Unary extends Expr {
         Unary(Token operator, Expr right) {
+            super(UNARY);
             this.operator = operator;
             this.right = right;
         }
@@ -83,12 +197,26 @@ abstract class Expr{
             return visitor.visitUnaryExpr(this);
         }
 
+        @Override
+        void forEachChild(Consumer<Expr> exprs, Consumer<Stmt> stmts) {
+            if (right != null) exprs.accept(right);
+        }
+
+        @Override
+        Expr withChildren(UnaryOperator<Expr> exprs, UnaryOperator<Stmt> stmts) {
+            Expr right = this.right == null ? null : exprs.apply(this.right);
+
+            if (right == this.right) return this;
+            return new Unary(operator, right);
+        }
+
         final Token operator;
         final Expr right;
     }
 
-    static class Ternary extends Expr {
+    static final class Ternary extends Expr {
         Ternary(Expr condition, Expr truthy, Expr falsy) {
+            super(TERNARY);
             this.condition = condition;
             this.truthy = truthy;
             this.falsy = falsy;
@@ -99,13 +227,31 @@ abstract class Expr{
             return visitor.visitTernaryExpr(this);
         }
 
+        @Override
+        void forEachChild(Consumer<Expr> exprs, Consumer<Stmt> stmts) {
+            if (condition != null) exprs.accept(condition);
+            if (truthy != null) exprs.accept(truthy);
+            if (falsy != null) exprs.accept(falsy);
+        }
+
+        @Override
+        Expr withChildren(UnaryOperator<Expr> exprs, UnaryOperator<Stmt> stmts) {
+            Expr condition = this.condition == null ? null : exprs.apply(this.condition);
+            Expr truthy = this.truthy == null ? null : exprs.apply(this.truthy);
+            Expr falsy = this.falsy == null ? null : exprs.apply(this.falsy);
+
+            if (condition == this.condition && truthy == this.truthy && falsy == this.falsy) return this;
+            return new Ternary(condition, truthy, falsy);
+        }
+
         final Expr condition;
         final Expr truthy;
         final Expr falsy;
     }
 
-    static class Variable extends Expr {
+    static final class Variable extends Expr {
         Variable(Token name) {
+            super(VARIABLE);
             this.name = name;
         }
 
@@ -114,11 +260,21 @@ abstract class Expr{
             return visitor.visitVariableExpr(this);
         }
 
+        @Override
+        void forEachChild(Consumer<Expr> exprs, Consumer<Stmt> stmts) {
+        }
+
+        @Override
+        Expr withChildren(UnaryOperator<Expr> exprs, UnaryOperator<Stmt> stmts) {
+            return this;
+        }
+
         final Token name;
     }
 
-    static class Assignment extends Expr {
+    static final class Assignment extends Expr {
         Assignment(Token name, Expr value) {
+            super(ASSIGNMENT);
             this.name = name;
             this.value = value;
         }
@@ -128,9 +284,591 @@ abstract class Expr{
             return visitor.visitAssignmentExpr(this);
         }
 
+        @Override
+        void forEachChild(Consumer<Expr> exprs, Consumer<Stmt> stmts) {
+            if (value != null) exprs.accept(value);
+        }
+
+        @Override
+        Expr withChildren(UnaryOperator<Expr> exprs, UnaryOperator<Stmt> stmts) {
+            Expr value = this.value == null ? null : exprs.apply(this.value);
+
+            if (value == this.value) return this;
+            return new Assignment(name, value);
+        }
+
+        final Token name;
+        final Expr value;
+    }
+
+    static final class Call extends Expr {
+        Call(Expr callee, Token paren, List<Expr> arguments) {
+            super(CALL);
+            this.callee = callee;
+            this.paren = paren;
+            this.arguments = arguments;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitCallExpr(this);
+        }
+
+        @Override
+        void forEachChild(Consumer<Expr> exprs, Consumer<Stmt> stmts) {
+            if (callee != null) exprs.accept(callee);
+            for (Expr child : arguments) exprs.accept(child);
+        }
+
+        @Override
+        Expr withChildren(UnaryOperator<Expr> exprs, UnaryOperator<Stmt> stmts) {
+            Expr callee = this.callee == null ? null : exprs.apply(this.callee);
+            List<Expr> arguments = rewriteAll(this.arguments, exprs);
+
+            if (callee == this.callee && arguments == this.arguments) return this;
+            return new Call(callee, paren, arguments);
+        }
+
+        final Expr callee;
+        final Token paren;
+        final List<Expr> arguments;
+    }
+
+    static final class Index extends Expr {
+        Index(Expr object, Token bracket, Expr index) {
+            super(INDEX);
+            this.object = object;
+            this.bracket = bracket;
+            this.index = index;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitIndexExpr(this);
+        }
+
+        @Override
+        void forEachChild(Consumer<Expr> exprs, Consumer<Stmt> stmts) {
+            if (object != null) exprs.accept(object);
+            if (index != null) exprs.accept(index);
+        }
+
+        @Override
+        Expr withChildren(UnaryOperator<Expr> exprs, UnaryOperator<Stmt> stmts) {
+            Expr object = this.object == null ? null : exprs.apply(this.object);
+            Expr index = this.index == null ? null : exprs.apply(this.index);
+
+            if (object == this.object && index == this.index) return this;
+            return new Index(object, bracket, index);
+        }
+
+        final Expr object;
+        final Token bracket;
+        final Expr index;
+    }
+
+    static final class IndexSet extends Expr {
+        IndexSet(Expr object, Token bracket, Expr index, Expr value) {
+            super(INDEX_SET);
+            this.object = object;
+            this.bracket = bracket;
+            this.index = index;
+            this.value = value;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitIndexSetExpr(this);
+        }
+
+        @Override
+        void forEachChild(Consumer<Expr> exprs, Consumer<Stmt> stmts) {
+            if (object != null) exprs.accept(object);
+            if (index != null) exprs.accept(index);
+            if (value != null) exprs.accept(value);
+        }
+
+        @Override
+        Expr withChildren(UnaryOperator<Expr> exprs, UnaryOperator<Stmt> stmts) {
+            Expr object = this.object == null ? null : exprs.apply(this.object);
+            Expr index = this.index == null ? null : exprs.apply(this.index);
+            Expr value = this.value == null ? null : exprs.apply(this.value);
+
+            if (object == this.object && index == this.index && value == this.value) return this;
+            return new IndexSet(object, bracket, index, value);
+        }
+
+        final Expr object;
+        final Token bracket;
+        final Expr index;
+        final Expr value;
+    }
+
+    static final class MapLiteral extends Expr {
+        MapLiteral(Token brace, List<Expr> keys, List<Expr> values) {
+            super(MAP_LITERAL);
+            this.brace = brace;
+            this.keys = keys;
+            this.values = values;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitMapLiteralExpr(this);
+        }
+
+        @Override
+        void forEachChild(Consumer<Expr> exprs, Consumer<Stmt> stmts) {
+            for (Expr child : keys) exprs.accept(child);
+            for (Expr child : values) exprs.accept(child);
+        }
+
+        @Override
+        Expr withChildren(UnaryOperator<Expr> exprs, UnaryOperator<Stmt> stmts) {
+            List<Expr> keys = rewriteAll(this.keys, exprs);
+            List<Expr> values = rewriteAll(this.values, exprs);
+
+            if (keys == this.keys && values == this.values) return this;
+            return new MapLiteral(brace, keys, values);
+        }
+
+        final Token brace;
+        final List<Expr> keys;
+        final List<Expr> values;
+    }
+
+    static final class Local extends Expr {
+        Local(Token name, int slot) {
+            super(LOCAL);
+            this.name = name;
+            this.slot = slot;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitLocalExpr(this);
+        }
+
+        @Override
+        void forEachChild(Consumer<Expr> exprs, Consumer<Stmt> stmts) {
+        }
+
+        @Override
+        Expr withChildren(UnaryOperator<Expr> exprs, UnaryOperator<Stmt> stmts) {
+            return this;
+        }
+
+        final Token name;
+        final int slot;
+    }
+
+    static final class LocalAssign extends Expr {
+        LocalAssign(Token name, int slot, Expr value) {
+            super(LOCAL_ASSIGN);
+            this.name = name;
+            this.slot = slot;
+            this.value = value;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitLocalAssignExpr(this);
+        }
+
+        @Override
+        void forEachChild(Consumer<Expr> exprs, Consumer<Stmt> stmts) {
+            if (value != null) exprs.accept(value);
+        }
+
+        @Override
+        Expr withChildren(UnaryOperator<Expr> exprs, UnaryOperator<Stmt> stmts) {
+            Expr value = this.value == null ? null : exprs.apply(this.value);
+
+            if (value == this.value) return this;
+            return new LocalAssign(name, slot, value);
+        }
+
+        final Token name;
+        final int slot;
+        final Expr value;
+    }
+
+    static final class Get extends Expr {
+        Get(Expr object, Token name, PropertyCache cache) {
+            super(GET);
+            this.object = object;
+            this.name = name;
+            this.cache = cache;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitGetExpr(this);
+        }
+
+        @Override
+        void forEachChild(Consumer<Expr> exprs, Consumer<Stmt> stmts) {
+            if (object != null) exprs.accept(object);
+        }
+
+        @Override
+        Expr withChildren(UnaryOperator<Expr> exprs, UnaryOperator<Stmt> stmts) {
+            Expr object = this.object == null ? null : exprs.apply(this.object);
+
+            if (object == this.object) return this;
+            return new Get(object, name, cache);
+        }
+
+        final Expr object;
+        final Token name;
+        final PropertyCache cache;
+    }
+
+    static final class Set extends Expr {
+        Set(Expr object, Token name, Expr value, PropertyCache cache) {
+            super(SET);
+            this.object = object;
+            this.name = name;
+            this.value = value;
+            this.cache = cache;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitSetExpr(this);
+        }
+
+        @Override
+        void forEachChild(Consumer<Expr> exprs, Consumer<Stmt> stmts) {
+            if (object != null) exprs.accept(object);
+            if (value != null) exprs.accept(value);
+        }
+
+        @Override
+        Expr withChildren(UnaryOperator<Expr> exprs, UnaryOperator<Stmt> stmts) {
+            Expr object = this.object == null ? null : exprs.apply(this.object);
+            Expr value = this.value == null ? null : exprs.apply(this.value);
+
+            if (object == this.object && value == this.value) return this;
+            return new Set(object, name, value, cache);
+        }
+
+        final Expr object;
         final Token name;
         final Expr value;
+        final PropertyCache cache;
+    }
+
+    static final class Super extends Expr {
+        Super(Token keyword, Token method, Expr receiver) {
+            super(SUPER);
+            this.keyword = keyword;
+            this.method = method;
+            this.receiver = receiver;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitSuperExpr(this);
+        }
+
+        @Override
+        void forEachChild(Consumer<Expr> exprs, Consumer<Stmt> stmts) {
+            if (receiver != null) exprs.accept(receiver);
+        }
+
+        @Override
+        Expr withChildren(UnaryOperator<Expr> exprs, UnaryOperator<Stmt> stmts) {
+            Expr receiver = this.receiver == null ? null : exprs.apply(this.receiver);
+
+            if (receiver == this.receiver) return this;
+            return new Super(keyword, method, receiver);
+        }
+
+        final Token keyword;
+        final Token method;
+        final Expr receiver;
+    }
+
+    static final class NumberBinary extends Expr {
+        NumberBinary(Expr left, Token operator, Expr right) {
+            super(NUMBER_BINARY);
+            this.left = left;
+            this.operator = operator;
+            this.right = right;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitNumberBinaryExpr(this);
+        }
+
+        @Override
+        void forEachChild(Consumer<Expr> exprs, Consumer<Stmt> stmts) {
+            if (left != null) exprs.accept(left);
+            if (right != null) exprs.accept(right);
+        }
+
+        @Override
+        Expr withChildren(UnaryOperator<Expr> exprs, UnaryOperator<Stmt> stmts) {
+            Expr left = this.left == null ? null : exprs.apply(this.left);
+            Expr right = this.right == null ? null : exprs.apply(this.right);
+
+            if (left == this.left && right == this.right) return this;
+            return new NumberBinary(left, operator, right);
+        }
+
+        final Expr left;
+        final Token operator;
+        final Expr right;
+    }
+
+    static final class NumberNegate extends Expr {
+        NumberNegate(Token operator, Expr right) {
+            super(NUMBER_NEGATE);
+            this.operator = operator;
+            this.right = right;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitNumberNegateExpr(this);
+        }
+
+        @Override
+        void forEachChild(Consumer<Expr> exprs, Consumer<Stmt> stmts) {
+            if (right != null) exprs.accept(right);
+        }
+
+        @Override
+        Expr withChildren(UnaryOperator<Expr> exprs, UnaryOperator<Stmt> stmts) {
+            Expr right = this.right == null ? null : exprs.apply(this.right);
+
+            if (right == this.right) return this;
+            return new NumberNegate(operator, right);
+        }
+
+        final Token operator;
+        final Expr right;
+    }
+
+    static final class Concat extends Expr {
+        Concat(Expr left, Token operator, Expr right) {
+            super(CONCAT);
+            this.left = left;
+            this.operator = operator;
+            this.right = right;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitConcatExpr(this);
+        }
+
+        @Override
+        void forEachChild(Consumer<Expr> exprs, Consumer<Stmt> stmts) {
+            if (left != null) exprs.accept(left);
+            if (right != null) exprs.accept(right);
+        }
+
+        @Override
+        Expr withChildren(UnaryOperator<Expr> exprs, UnaryOperator<Stmt> stmts) {
+            Expr left = this.left == null ? null : exprs.apply(this.left);
+            Expr right = this.right == null ? null : exprs.apply(this.right);
+
+            if (left == this.left && right == this.right) return this;
+            return new Concat(left, operator, right);
+        }
+
+        final Expr left;
+        final Token operator;
+        final Expr right;
+    }
+
+    static final class Increment extends Expr {
+        Increment(Token name, Token operator, Object step) {
+            super(INCREMENT);
+            this.name = name;
+            this.operator = operator;
+            this.step = step;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitIncrementExpr(this);
+        }
+
+        @Override
+        void forEachChild(Consumer<Expr> exprs, Consumer<Stmt> stmts) {
+        }
+
+        @Override
+        Expr withChildren(UnaryOperator<Expr> exprs, UnaryOperator<Stmt> stmts) {
+            return this;
+        }
+
+        final Token name;
+        final Token operator;
+        final Object step;
+    }
+
+    static final class LocalIncrement extends Expr {
+        LocalIncrement(Token name, int slot, Token operator, Object step) {
+            super(LOCAL_INCREMENT);
+            this.name = name;
+            this.slot = slot;
+            this.operator = operator;
+            this.step = step;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitLocalIncrementExpr(this);
+        }
+
+        @Override
+        void forEachChild(Consumer<Expr> exprs, Consumer<Stmt> stmts) {
+        }
+
+        @Override
+        Expr withChildren(UnaryOperator<Expr> exprs, UnaryOperator<Stmt> stmts) {
+            return this;
+        }
+
+        final Token name;
+        final int slot;
+        final Token operator;
+        final Object step;
+    }
+
+    static final class Compare extends Expr {
+        Compare(Token name, Token operator, Object constant) {
+            super(COMPARE);
+            this.name = name;
+            this.operator = operator;
+            this.constant = constant;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitCompareExpr(this);
+        }
+
+        @Override
+        void forEachChild(Consumer<Expr> exprs, Consumer<Stmt> stmts) {
+        }
+
+        @Override
+        Expr withChildren(UnaryOperator<Expr> exprs, UnaryOperator<Stmt> stmts) {
+            return this;
+        }
+
+        final Token name;
+        final Token operator;
+        final Object constant;
+    }
+
+    static final class LocalCompare extends Expr {
+        LocalCompare(Token name, int slot, Token operator, Object constant) {
+            super(LOCAL_COMPARE);
+            this.name = name;
+            this.slot = slot;
+            this.operator = operator;
+            this.constant = constant;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitLocalCompareExpr(this);
+        }
+
+        @Override
+        void forEachChild(Consumer<Expr> exprs, Consumer<Stmt> stmts) {
+        }
+
+        @Override
+        Expr withChildren(UnaryOperator<Expr> exprs, UnaryOperator<Stmt> stmts) {
+            return this;
+        }
+
+        final Token name;
+        final int slot;
+        final Token operator;
+        final Object constant;
+    }
+
+    static final class Copy extends Expr {
+        Copy(Token name, Token source) {
+            super(COPY);
+            this.name = name;
+            this.source = source;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitCopyExpr(this);
+        }
+
+        @Override
+        void forEachChild(Consumer<Expr> exprs, Consumer<Stmt> stmts) {
+        }
+
+        @Override
+        Expr withChildren(UnaryOperator<Expr> exprs, UnaryOperator<Stmt> stmts) {
+            return this;
+        }
+
+        final Token name;
+        final Token source;
+    }
+
+    static final class LocalCopy extends Expr {
+        LocalCopy(Token name, int slot, Token source, int from) {
+            super(LOCAL_COPY);
+            this.name = name;
+            this.slot = slot;
+            this.source = source;
+            this.from = from;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitLocalCopyExpr(this);
+        }
+
+        @Override
+        void forEachChild(Consumer<Expr> exprs, Consumer<Stmt> stmts) {
+        }
+
+        @Override
+        Expr withChildren(UnaryOperator<Expr> exprs, UnaryOperator<Stmt> stmts) {
+            return this;
+        }
+
+        final Token name;
+        final int slot;
+        final Token source;
+        final int from;
     }
 
     abstract <R> R accept(Visitor<R> visitor);
+
+    abstract void forEachChild(Consumer<Expr> exprs, Consumer<Stmt> stmts);
+
+    abstract Expr withChildren(UnaryOperator<Expr> exprs, UnaryOperator<Stmt> stmts);
+
+    // Applies rewrite to every element, copying the list only once an element actually changes.
+    static <T> List<T> rewriteAll(List<T> list, UnaryOperator<T> rewrite) {
+        List<T> result = null;
+
+        for (int i = 0; i < list.size(); i++) {
+            T before = list.get(i);
+            T after = before == null ? null : rewrite.apply(before);
+
+            if (after != before && result == null) result = new ArrayList<>(list.subList(0, i));
+            if (result != null) result.add(after);
+        }
+
+        return result == null ? list : result;
+    }
 }
@@ -0,0 +1,404 @@
+package com.github.senicko.lox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// A program encoded as parallel int arrays instead of a graph of Expr/Stmt objects. A node is an index into the
+// arenas: kinds holds its kind and a, b and c its operands, which are child node indices (-1 when absent) or
+// indices into the constant, token and list pools. Literal values and tokens are deduplicated, so a large
+// program costs a few ints per node and evaluation walks arrays instead of chasing pointers.
+class FlatAst {
+    // Expressions
+    static final int LITERAL = 0;       // a: constant
+    static final int VARIABLE = 1;      // a: name token
+    static final int ASSIGNMENT = 2;    // a: name token, b: value
+    static final int UNARY = 3;         // a: operator token, b: operand
+    static final int BINARY = 4;        // a: operator token, b: left, c: right
+    static final int LOGICAL = 5;       // a: operator token, b: left, c: right
+    static final int GROUPING = 6;      // a: expression
+    static final int TERNARY = 7;       // a: condition, b: truthy, c: falsy
+    static final int CALL = 14;         // a: paren token, b: first list entry (callee, then arguments), c: argument count
+    static final int INDEX = 15;        // a: bracket token, b: array, c: index
+    static final int INDEX_SET = 16;    // a: bracket token, b: first list entry (array, index, value)
+    static final int MAP = 17;          // a: brace token, b: first list entry (keys and values alternating), c: entry count
+    static final int LOCAL = 20;        // a: name token, b: slot
+    static final int LOCAL_ASSIGN = 21; // a: name token, b: slot, c: value
+    static final int GET = 23;          // a: name token, b: object, c: cache constant
+    static final int SET = 24;          // a: name token, b: first list entry (object, value), c: cache constant
+    static final int SUPER = 25;        // a: method token, b: receiver
+
+    // Statements
+    static final int EXPRESSION = 8;    // a: expression
+    static final int PRINT = 9;         // a: expression
+    static final int VAR = 10;          // a: name token, b: initializer
+    static final int IF = 11;           // a: condition, b: then branch, c: else branch
+    static final int WHILE = 12;        // a: condition, b: body
+    static final int BLOCK = 13;        // a: first list entry, b: statement count, c: 1 if it declares names, 2 if any of them can capture its scope
+    static final int FUNCTION = 18;     // a: name token, b: first list entry (arity, slot count, then the body), c: body size
+    static final int RETURN = 19;       // a: keyword token, b: value
+    static final int LOCAL_VAR = 22;    // a: name token, b: slot, c: initializer
+    static final int CLASS = 26;        // a: name token, b: first list entry (superclass or -1, then the methods), c: method count
+
+    final int[] kinds;
+    final int[] a;
+    final int[] b;
+    final int[] c;
+    final int nodes;
+
+    final Object[] constants;
+    final Token[] tokens;
+    final int[] lists;
+
+    // The top-level statements, as a slice of lists.
+    final int programStart;
+    final int programCount;
+
+    private FlatAst(Builder builder, int programStart) {
+        this.nodes = builder.size;
+        this.kinds = Arrays.copyOf(builder.kinds, nodes);
+        this.a = Arrays.copyOf(builder.a, nodes);
+        this.b = Arrays.copyOf(builder.b, nodes);
+        this.c = Arrays.copyOf(builder.c, nodes);
+        this.constants = builder.constants.toArray(new Object[0]);
+        this.tokens = builder.tokens.toArray(new Token[0]);
+        this.lists = Arrays.copyOf(builder.lists, builder.listSize);
+        this.programStart = programStart;
+        this.programCount = builder.programSize;
+    }
+
+    // Rough retained size of the arenas and pools in bytes, for comparison with the object tree.
+    long estimatedBytes() {
+        long bytes = 4L * nodes * 4 + 4L * lists.length + 8L * (constants.length + tokens.length);
+
+        for (Token token : tokens) {
+            bytes += 32 + 2L * token.lexeme().length();
+        }
+
+        return bytes;
+    }
+
+    static class Builder implements Expr.Visitor<Integer>, Stmt.Visitor<Integer> {
+        private int[] kinds = new int[256];
+        private int[] a = new int[256];
+        private int[] b = new int[256];
+        private int[] c = new int[256];
+        private int size = 0;
+
+        private int[] lists = new int[256];
+        private int listSize = 0;
+
+        private int[] program = new int[64];
+        private int programSize = 0;
+
+        private final List<Object> constants = new ArrayList<>();
+        private final Map<Object, Integer> constantIds = new HashMap<>();
+        private final List<Token> tokens = new ArrayList<>();
+        private final Map<Token, Integer> tokenIds = new HashMap<>();
+        private final Map<String, String> lexemes = new HashMap<>();
+
+        void add(Stmt statement) {
+            int node = statement.accept(this);
+
+            if (programSize == program.length) program = Arrays.copyOf(program, programSize * 2);
+            program[programSize++] = node;
+        }
+
+        FlatAst build() {
+            int programStart = list(program, programSize);
+            return new FlatAst(this, programStart);
+        }
+
+        @Override
+        public Integer visitBinaryExpr(Expr.Binary expr) {
+            return node(BINARY, token(expr.operator), expr.left.accept(this), expr.right.accept(this));
+        }
+
+        // The specialized operators are lowered back to the generic ones, which the flat interpreter runs.
+        @Override
+        public Integer visitNumberBinaryExpr(Expr.NumberBinary expr) {
+            return node(BINARY, token(expr.operator), expr.left.accept(this), expr.right.accept(this));
+        }
+
+        @Override
+        public Integer visitNumberNegateExpr(Expr.NumberNegate expr) {
+            return node(UNARY, token(expr.operator), expr.right.accept(this), -1);
+        }
+
+        @Override
+        public Integer visitConcatExpr(Expr.Concat expr) {
+            return node(BINARY, token(expr.operator), expr.left.accept(this), expr.right.accept(this));
+        }
+
+        @Override
+        public Integer visitGroupingExpr(Expr.Grouping expr) {
+            return node(GROUPING, expr.expression.accept(this), -1, -1);
+        }
+
+        @Override
+        public Integer visitLiteralExpr(Expr.Literal expr) {
+            return node(LITERAL, constant(expr.value), -1, -1);
+        }
+
+        @Override
+        public Integer visitLogicalExpr(Expr.Logical expr) {
+            return node(LOGICAL, token(expr.operator), expr.left.accept(this), expr.right.accept(this));
+        }
+
+        @Override
+        public Integer visitUnaryExpr(Expr.Unary expr) {
+            return node(UNARY, token(expr.operator), expr.right.accept(this), -1);
+        }
+
+        @Override
+        public Integer visitTernaryExpr(Expr.Ternary expr) {
+            return node(TERNARY, expr.condition.accept(this), expr.truthy.accept(this), expr.falsy.accept(this));
+        }
+
+        @Override
+        public Integer visitVariableExpr(Expr.Variable expr) {
+            return node(VARIABLE, token(expr.name), -1, -1);
+        }
+
+        @Override
+        public Integer visitAssignmentExpr(Expr.Assignment expr) {
+            return node(ASSIGNMENT, token(expr.name), expr.value.accept(this), -1);
+        }
+
+        @Override
+        public Integer visitCallExpr(Expr.Call expr) {
+            int[] children = new int[expr.arguments.size() + 1];
+            children[0] = expr.callee.accept(this);
+
+            for (int i = 0; i < expr.arguments.size(); i++) {
+                children[i + 1] = expr.arguments.get(i).accept(this);
+            }
+
+            return node(CALL, token(expr.paren), list(children, children.length), expr.arguments.size());
+        }
+
+        @Override
+        public Integer visitIndexExpr(Expr.Index expr) {
+            return node(INDEX, token(expr.bracket), expr.object.accept(this), expr.index.accept(this));
+        }
+
+        @Override
+        public Integer visitIndexSetExpr(Expr.IndexSet expr) {
+            int[] children = {expr.object.accept(this), expr.index.accept(this), expr.value.accept(this)};
+            return node(INDEX_SET, token(expr.bracket), list(children, children.length), -1);
+        }
+
+        @Override
+        public Integer visitMapLiteralExpr(Expr.MapLiteral expr) {
+            int[] children = new int[2 * expr.keys.size()];
+
+            for (int i = 0; i < expr.keys.size(); i++) {
+                children[2 * i] = expr.keys.get(i).accept(this);
+                children[2 * i + 1] = expr.values.get(i).accept(this);
+            }
+
+            return node(MAP, token(expr.brace), list(children, children.length), expr.keys.size());
+        }
+
+        @Override
+        public Integer visitLocalExpr(Expr.Local expr) {
+            return node(LOCAL, token(expr.name), expr.slot, -1);
+        }
+
+        @Override
+        public Integer visitLocalAssignExpr(Expr.LocalAssign expr) {
+            return node(LOCAL_ASSIGN, token(expr.name), expr.slot, expr.value.accept(this));
+        }
+
+        @Override
+        public Integer visitFunctionStmt(Stmt.Function stmt) {
+            int[] entries = new int[stmt.body.size() + 2];
+            entries[0] = stmt.params.size();
+            entries[1] = stmt.slots;
+
+            for (int i = 0; i < stmt.body.size(); i++) {
+                entries[i + 2] = stmt.body.get(i).accept(this);
+            }
+
+            return node(FUNCTION, token(stmt.name), list(entries, entries.length), stmt.body.size());
+        }
+
+        @Override
+        public Integer visitReturnStmt(Stmt.Return stmt) {
+            int value = stmt.value == null ? -1 : stmt.value.accept(this);
+            return node(RETURN, token(stmt.keyword), value, -1);
+        }
+
+        @Override
+        public Integer visitLocalVarStmt(Stmt.LocalVar stmt) {
+            int initializer = stmt.initializer == null ? -1 : stmt.initializer.accept(this);
+            return node(LOCAL_VAR, token(stmt.name), stmt.slot, initializer);
+        }
+
+        // Fused nodes are lowered as the nodes they replaced.
+        @Override
+        public Integer visitIncrementExpr(Expr.Increment expr) {
+            return Fusion.expand(expr).accept(this);
+        }
+
+        @Override
+        public Integer visitLocalIncrementExpr(Expr.LocalIncrement expr) {
+            return Fusion.expand(expr).accept(this);
+        }
+
+        @Override
+        public Integer visitCompareExpr(Expr.Compare expr) {
+            return Fusion.expand(expr).accept(this);
+        }
+
+        @Override
+        public Integer visitLocalCompareExpr(Expr.LocalCompare expr) {
+            return Fusion.expand(expr).accept(this);
+        }
+
+        @Override
+        public Integer visitCopyExpr(Expr.Copy expr) {
+            return Fusion.expand(expr).accept(this);
+        }
+
+        @Override
+        public Integer visitLocalCopyExpr(Expr.LocalCopy expr) {
+            return Fusion.expand(expr).accept(this);
+        }
+
+        @Override
+        public Integer visitPrintVariableStmt(Stmt.PrintVariable stmt) {
+            return Fusion.expand(stmt).accept(this);
+        }
+
+        @Override
+        public Integer visitPrintLocalStmt(Stmt.PrintLocal stmt) {
+            return Fusion.expand(stmt).accept(this);
+        }
+
+        @Override
+        public Integer visitGetExpr(Expr.Get expr) {
+            return node(GET, token(expr.name), expr.object.accept(this), constant(expr.cache));
+        }
+
+        @Override
+        public Integer visitSetExpr(Expr.Set expr) {
+            int[] children = {expr.object.accept(this), expr.value.accept(this)};
+            return node(SET, token(expr.name), list(children, children.length), constant(expr.cache));
+        }
+
+        @Override
+        public Integer visitSuperExpr(Expr.Super expr) {
+            return node(SUPER, token(expr.method), expr.receiver.accept(this), -1);
+        }
+
+        @Override
+        public Integer visitClassStmt(Stmt.Class stmt) {
+            int[] entries = new int[stmt.methods.size() + 1];
+            entries[0] = stmt.superclass == null ? -1 : stmt.superclass.accept(this);
+
+            for (int i = 0; i < stmt.methods.size(); i++) {
+                entries[i + 1] = stmt.methods.get(i).accept(this);
+            }
+
+            return node(CLASS, token(stmt.name), list(entries, entries.length), stmt.methods.size());
+        }
+
+        @Override
+        public Integer visitExpressionStmt(Stmt.Expression stmt) {
+            return node(EXPRESSION, stmt.expression.accept(this), -1, -1);
+        }
+
+        @Override
+        public Integer visitIfStmt(Stmt.If stmt) {
+            int elseBranch = stmt.elseBranch == null ? -1 : stmt.elseBranch.accept(this);
+            return node(IF, stmt.condition.accept(this), stmt.thenBranch.accept(this), elseBranch);
+        }
+
+        @Override
+        public Integer visitPrintStmt(Stmt.Print stmt) {
+            return node(PRINT, stmt.expression.accept(this), -1, -1);
+        }
+
+        @Override
+        public Integer visitVarStmt(Stmt.Var stmt) {
+            int initializer = stmt.initializer == null ? -1 : stmt.initializer.accept(this);
+            return node(VAR, token(stmt.name), initializer, -1);
+        }
+
+        @Override
+        public Integer visitWhileStmt(Stmt.While stmt) {
+            return node(WHILE, stmt.condition.accept(this), stmt.body.accept(this), -1);
+        }
+
+        @Override
+        public Integer visitBlockStmt(Stmt.Block stmt) {
+            int[] children = new int[stmt.statements.size()];
+
+            for (int i = 0; i < children.length; i++) {
+                children[i] = stmt.statements.get(i).accept(this);
+            }
+
+            // A loop only reuses the scope of a body which declares names and nothing capturing it.
+            int scope = !Interpreter.declaresNames(stmt.statements) ? 0 : Interpreter.declaresClosures(stmt) ? 2 : 1;
+            return node(BLOCK, list(children, children.length), children.length, scope);
+        }
+
+        @Override
+        public Integer visitCountedLoopStmt(Stmt.CountedLoop stmt) {
+            // Lowered as the loop it was recognized from.
+            int[] children = {stmt.initializer.accept(this), stmt.fallback.accept(this)};
+            return node(BLOCK, list(children, children.length), children.length, 1);
+        }
+
+        private int node(int kind, int first, int second, int third) {
+            if (size == kinds.length) {
+                kinds = Arrays.copyOf(kinds, size * 2);
+                a = Arrays.copyOf(a, size * 2);
+                b = Arrays.copyOf(b, size * 2);
+                c = Arrays.copyOf(c, size * 2);
+            }
+
+            kinds[size] = kind;
+            a[size] = first;
+            b[size] = second;
+            c[size] = third;
+            return size++;
+        }
+
+        private int list(int[] entries, int count) {
+            if (listSize + count > lists.length) lists = Arrays.copyOf(lists, Math.max(lists.length * 2, listSize + count));
+
+            System.arraycopy(entries, 0, lists, listSize, count);
+            listSize += count;
+            return listSize - count;
+        }
+
+        private int constant(Object value) {
+            Integer id = constantIds.get(value);
+
+            if (id == null) {
+                id = constants.size();
+                constants.add(value);
+                constantIds.put(value, id);
+            }
+
+            return id;
+        }
+
+        private int token(Token token) {
+            Integer id = tokenIds.get(token);
+
+            if (id == null) {
+                String lexeme = lexemes.computeIfAbsent(token.lexeme(), l -> l);
+                id = tokens.size();
+                tokens.add(new Token(token.type(), lexeme, token.literal(), token.line()));
+                tokenIds.put(token, id);
+            }
+
+            return id;
+        }
+    }
+}
@@ -0,0 +1,296 @@
+package com.github.senicko.lox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Executes a FlatAst by walking node indices. Operators share their semantics with Interpreter, and scopes are
+// handled the same way, so a program behaves identically in either representation.
+class FlatInterpreter {
+    private final Interpreter operators;
+    private final FlatAst ast;
+    private Environment environment;
+
+    // Function frames and returns work as in Interpreter.
+    private Object[] stack = new Object[256];
+    private int fp = 0;
+    private int sp = 0;
+    private boolean returning = false;
+    private Object returnValue = null;
+
+    private static final Object UNINITIALIZED = new Object();
+
+    private class Function implements LoxClass.Method {
+        final int node;
+        final Environment closure;
+        final LoxInstance receiver;
+        final boolean initializer;
+
+        Function(int node, Environment closure, LoxInstance receiver, boolean initializer) {
+            this.node = node;
+            this.closure = closure;
+            this.receiver = receiver;
+            this.initializer = initializer;
+        }
+
+        @Override
+        public LoxCallable bind(LoxInstance receiver) {
+            return new Function(node, closure, receiver, initializer);
+        }
+
+        @Override
+        public int arity() {
+            return ast.lists[ast.b[node]];
+        }
+
+        @Override
+        public Object call(Interpreter interpreter, Token paren, List<Object> arguments) {
+            return invoke(this, arguments);
+        }
+
+        @Override
+        public String toString() {
+            return "<fn " + ast.tokens[ast.a[node]].lexeme() + ">";
+        }
+    }
+
+    FlatInterpreter(Interpreter operators, FlatAst ast) {
+        this.operators = operators;
+        this.ast = ast;
+
+        // Natives are looked up in the globals of the interpreter the operators come from.
+        this.environment = new Environment(operators.globals);
+    }
+
+    void interpret() {
+        try {
+            executeList(ast.programStart, ast.programCount);
+        } catch (LoxRuntimeError error) {
+            Main.runtimeError(error);
+        }
+    }
+
+    private Object evaluate(int node) {
+        int a = ast.a[node];
+
+        return switch (ast.kinds[node]) {
+            case FlatAst.LITERAL -> ast.constants[a];
+            case FlatAst.VARIABLE -> environment.get(ast.tokens[a]).value;
+            case FlatAst.ASSIGNMENT -> {
+                Object value = evaluate(ast.b[node]);
+                environment.assign(ast.tokens[a], value);
+                yield value;
+            }
+            case FlatAst.UNARY -> operators.unary(ast.tokens[a], evaluate(ast.b[node]));
+            case FlatAst.BINARY -> {
+                Object left = evaluate(ast.b[node]);
+                Object right = evaluate(ast.c[node]);
+                yield operators.binary(ast.tokens[a], left, right);
+            }
+            case FlatAst.LOGICAL -> {
+                Object left = evaluate(ast.b[node]);
+                if (operators.shortCircuits(ast.tokens[a], left)) yield left;
+                yield evaluate(ast.c[node]);
+            }
+            case FlatAst.GROUPING -> evaluate(a);
+            case FlatAst.TERNARY -> evaluate(operators.isTruthy(evaluate(a)) ? ast.b[node] : ast.c[node]);
+            case FlatAst.CALL -> {
+                int first = ast.b[node];
+                int count = ast.c[node];
+
+                Object callee = evaluate(ast.lists[first]);
+                List<Object> arguments = new ArrayList<>(count);
+
+                for (int i = 1; i <= count; i++) {
+                    arguments.add(evaluate(ast.lists[first + i]));
+                }
+
+                yield operators.call(ast.tokens[a], callee, arguments);
+            }
+            case FlatAst.MAP -> {
+                int first = ast.b[node];
+                LoxMap map = new LoxMap();
+
+                for (int i = 0; i < ast.c[node]; i++) {
+                    Object key = evaluate(ast.lists[first + 2 * i]);
+                    Object value = evaluate(ast.lists[first + 2 * i + 1]);
+                    operators.put(ast.tokens[a], map, key, value);
+                }
+
+                yield map;
+            }
+            case FlatAst.LOCAL -> {
+                Object value = stack[fp + ast.b[node]];
+                if (value == UNINITIALIZED) throw new LoxRuntimeError(ast.tokens[a], "Use of uninitialized variable.");
+                yield value;
+            }
+            case FlatAst.LOCAL_ASSIGN -> {
+                Object value = evaluate(ast.c[node]);
+                stack[fp + ast.b[node]] = value;
+                yield value;
+            }
+            case FlatAst.GET -> {
+                LoxInstance instance = operators.instance(ast.tokens[a], evaluate(ast.b[node]));
+                yield ((PropertyCache) ast.constants[ast.c[node]]).get(instance, ast.tokens[a]);
+            }
+            case FlatAst.SET -> {
+                int first = ast.b[node];
+                Object object = evaluate(ast.lists[first]);
+                Object value = evaluate(ast.lists[first + 1]);
+                yield operators.set(ast.tokens[a], (PropertyCache) ast.constants[ast.c[node]], object, value);
+            }
+            case FlatAst.SUPER -> Interpreter.superMethod(environment, ast.tokens[a], evaluate(ast.b[node]));
+            case FlatAst.INDEX -> {
+                Object object = evaluate(ast.b[node]);
+                Object index = evaluate(ast.c[node]);
+                yield operators.index(ast.tokens[a], object, index);
+            }
+            case FlatAst.INDEX_SET -> {
+                int first = ast.b[node];
+
+                Object object = evaluate(ast.lists[first]);
+                Object index = evaluate(ast.lists[first + 1]);
+                Object value = evaluate(ast.lists[first + 2]);
+                yield operators.setIndex(ast.tokens[a], object, index, value);
+            }
+            default -> throw new IllegalStateException("Not an expression node: " + ast.kinds[node]);
+        };
+    }
+
+    private void execute(int node) {
+        int a = ast.a[node];
+        int b = ast.b[node];
+
+        switch (ast.kinds[node]) {
+            case FlatAst.EXPRESSION -> evaluate(a);
+            case FlatAst.PRINT -> System.out.println(operators.stringify(evaluate(a)));
+            case FlatAst.VAR -> environment.define(ast.tokens[a], b < 0 ? null : evaluate(b));
+            case FlatAst.IF -> {
+                if (operators.isTruthy(evaluate(a))) {
+                    execute(b);
+                } else if (ast.c[node] >= 0) {
+                    execute(ast.c[node]);
+                }
+            }
+            case FlatAst.WHILE -> {
+                // Same scope reuse as Interpreter.visitWhileStmt.
+                if (ast.kinds[b] == FlatAst.BLOCK && ast.c[b] == 1) {
+                    Environment scope = new Environment(environment);
+
+                    while (!returning && operators.isTruthy(evaluate(a))) {
+                        scope.reset();
+                        executeBlock(ast.a[b], ast.b[b], scope);
+                    }
+                } else {
+                    while (!returning && operators.isTruthy(evaluate(a))) {
+                        execute(b);
+                    }
+                }
+            }
+            case FlatAst.BLOCK -> {
+                if (ast.c[node] == 0) executeList(a, b);
+                else executeBlock(a, b, new Environment(environment));
+            }
+            case FlatAst.FUNCTION -> environment.define(ast.tokens[a], new Function(node, environment, null, false));
+            case FlatAst.CLASS -> defineClass(node);
+            case FlatAst.RETURN -> {
+                returnValue = b < 0 ? null : evaluate(b);
+                returning = true;
+            }
+            case FlatAst.LOCAL_VAR -> {
+                Object value = ast.c[node] < 0 ? null : evaluate(ast.c[node]);
+                stack[fp + b] = value == null ? UNINITIALIZED : value;
+            }
+            default -> throw new IllegalStateException("Not a statement node: " + ast.kinds[node]);
+        }
+    }
+
+    private void executeBlock(int start, int count, Environment environment) {
+        Environment previous = this.environment;
+
+        try {
+            this.environment = environment;
+            executeList(start, count);
+        } finally {
+            this.environment = previous;
+        }
+    }
+
+    private void executeList(int start, int count) {
+        for (int i = start; i < start + count && !returning; i++) {
+            execute(ast.lists[i]);
+        }
+    }
+
+    private void defineClass(int node) {
+        int first = ast.b[node];
+        LoxClass superclass = null;
+
+        if (ast.lists[first] >= 0) {
+            int superNode = ast.lists[first];
+
+            if (!(evaluate(superNode) instanceof LoxClass loxClass))
+                throw new LoxRuntimeError(ast.tokens[ast.a[superNode]], "Superclass must be a class.");
+
+            superclass = loxClass;
+        }
+
+        Environment closure = environment;
+
+        if (superclass != null) {
+            closure = new Environment(environment);
+            closure.define(LoxClass.SUPER, superclass);
+        }
+
+        Map<String, LoxClass.Method> methods = new HashMap<>();
+
+        for (int i = 1; i <= ast.c[node]; i++) {
+            int method = ast.lists[first + i];
+            String name = ast.tokens[ast.a[method]].lexeme();
+
+            methods.put(name, new Function(method, closure, null, name.equals("init")));
+        }
+
+        Token name = ast.tokens[ast.a[node]];
+        environment.define(name, new LoxClass(name.lexeme(), superclass, methods));
+    }
+
+    private Object invoke(Function function, List<Object> arguments) {
+        int entries = ast.b[function.node];
+        int slots = ast.lists[entries + 1];
+        int first = function.receiver == null ? 0 : 1;
+
+        int base = sp;
+        int previousFp = fp;
+        Environment previous = environment;
+
+        if (base + slots > stack.length) stack = Arrays.copyOf(stack, Math.max(base + slots, stack.length * 2));
+
+        if (function.receiver != null) stack[base] = function.receiver;
+
+        for (int i = 0; i < arguments.size(); i++) {
+            stack[base + first + i] = arguments.get(i);
+        }
+
+        sp = base + slots;
+        fp = base;
+        environment = function.closure;
+
+        try {
+            executeList(entries + 2, ast.c[function.node]);
+
+            Object value = returnValue;
+            returning = false;
+            returnValue = null;
+
+            return function.initializer ? function.receiver : value;
+        } finally {
+            Arrays.fill(stack, base, sp, null);
+            sp = base;
+            fp = previousFp;
+            environment = previous;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.github.senicko.lox;
+
+import java.util.List;
+
+// Fuses the shapes loops are mostly made of into single nodes, which the interpreter runs in one step instead of
+// visiting every operand and looking the variable up once to read it and again to assign it:
+//
+//     x = x + c, x = x - c        Increment, LocalIncrement
+//     x < c, x == c, ...          Compare, LocalCompare
+//     x = y                       Copy, LocalCopy
+//     print x                     PrintVariable, PrintLocal
+//
+// where c is a number literal, or any literal for equality. A fused node keeps the tokens of the nodes it
+// replaces, so it fails on the same line with the same message. The other passes recognize the plain shapes, so
+// fusion runs after them, and expand gives the plain shape back to those that run on an already fused tree.
+final class Fusion {
+    static List<Stmt> fuse(List<Stmt> statements) {
+        return Stmt.rewriteAll(statements, Fusion::fuse);
+    }
+
+    static Stmt fuse(Stmt stmt) {
+        // Bodies which haven't been parsed yet are left alone rather than parsed just to be inspected.
+        if (stmt instanceof Stmt.Block block && Parser.LazyBlock.isDeferred(block)) return stmt;
+
+        Stmt rewritten = stmt.withChildren(Fusion::fuse, Fusion::fuse);
+
+        if (rewritten instanceof Stmt.Print print) {
+            if (print.expression instanceof Expr.Variable variable) return new Stmt.PrintVariable(variable.name);
+            if (print.expression instanceof Expr.Local local) return new Stmt.PrintLocal(local.name, local.slot);
+        }
+
+        return rewritten;
+    }
+
+    private static Expr fuse(Expr expr) {
+        return Rewriter.bottomUp(expr, Fusion::fuseNode);
+    }
+
+    // The fused node for the expression, whose children were fused already.
+    private static Expr fuseNode(Expr rewritten) {
+        switch (rewritten.kind) {
+            case Expr.ASSIGNMENT -> {
+                Expr.Assignment assignment = (Expr.Assignment) rewritten;
+                if (assignment.value instanceof Expr.Variable source) return new Expr.Copy(assignment.name, source.name);
+
+                // The read is what can fail, so the increment keeps its token.
+                Operator step = Operator.of(assignment.value);
+                if (isStep(step) && step.left instanceof Expr.Variable variable && variable.name.lexeme().equals(assignment.name.lexeme())) {
+                    return new Expr.Increment(variable.name, step.operator, ((Expr.Literal) step.right).value);
+                }
+            }
+            case Expr.LOCAL_ASSIGN -> {
+                Expr.LocalAssign assignment = (Expr.LocalAssign) rewritten;
+                if (assignment.value instanceof Expr.Local source) {
+                    return new Expr.LocalCopy(assignment.name, assignment.slot, source.name, source.slot);
+                }
+
+                Operator step = Operator.of(assignment.value);
+                if (isStep(step) && step.left instanceof Expr.Local local && local.slot == assignment.slot) {
+                    return new Expr.LocalIncrement(local.name, local.slot, step.operator, ((Expr.Literal) step.right).value);
+                }
+            }
+            case Expr.BINARY, Expr.NUMBER_BINARY -> {
+                Operator comparison = Operator.of(rewritten);
+                if (!isComparison(comparison)) break;
+
+                Object constant = ((Expr.Literal) comparison.right).value;
+
+                if (comparison.left instanceof Expr.Variable variable) {
+                    return new Expr.Compare(variable.name, comparison.operator, constant);
+                }
+
+                if (comparison.left instanceof Expr.Local local) {
+                    return new Expr.LocalCompare(local.name, local.slot, comparison.operator, constant);
+                }
+            }
+            default -> {
+            }
+        }
+
+        return rewritten;
+    }
+
+    // The nodes a fused node replaced, or the node itself if it isn't fused. A specialized operator comes back
+    // generic, which is only ever less specific than what it was fused from.
+    static Expr expand(Expr expr) {
+        return switch (expr.kind) {
+            case Expr.INCREMENT -> {
+                Expr.Increment increment = (Expr.Increment) expr;
+                Expr sum = new Expr.Binary(new Expr.Variable(increment.name), increment.operator, new Expr.Literal(increment.step));
+                yield new Expr.Assignment(increment.name, sum);
+            }
+            case Expr.LOCAL_INCREMENT -> {
+                Expr.LocalIncrement increment = (Expr.LocalIncrement) expr;
+                Expr.Local local = new Expr.Local(increment.name, increment.slot);
+                Expr sum = new Expr.Binary(local, increment.operator, new Expr.Literal(increment.step));
+                yield new Expr.LocalAssign(increment.name, increment.slot, sum);
+            }
+            case Expr.COMPARE -> {
+                Expr.Compare compare = (Expr.Compare) expr;
+                yield new Expr.Binary(new Expr.Variable(compare.name), compare.operator, new Expr.Literal(compare.constant));
+            }
+            case Expr.LOCAL_COMPARE -> {
+                Expr.LocalCompare compare = (Expr.LocalCompare) expr;
+                Expr.Local local = new Expr.Local(compare.name, compare.slot);
+                yield new Expr.Binary(local, compare.operator, new Expr.Literal(compare.constant));
+            }
+            case Expr.COPY -> {
+                Expr.Copy copy = (Expr.Copy) expr;
+                yield new Expr.Assignment(copy.name, new Expr.Variable(copy.source));
+            }
+            case Expr.LOCAL_COPY -> {
+                Expr.LocalCopy copy = (Expr.LocalCopy) expr;
+                yield new Expr.LocalAssign(copy.name, copy.slot, new Expr.Local(copy.source, copy.from));
+            }
+            default -> expr;
+        };
+    }
+
+    static Stmt expand(Stmt stmt) {
+        return switch (stmt.kind) {
+            case Stmt.PRINT_VARIABLE -> new Stmt.Print(new Expr.Variable(((Stmt.PrintVariable) stmt).name));
+            case Stmt.PRINT_LOCAL -> {
+                Stmt.PrintLocal print = (Stmt.PrintLocal) stmt;
+                yield new Stmt.Print(new Expr.Local(print.name, print.slot));
+            }
+            default -> stmt;
+        };
+    }
+
+    // A binary operator, specialized or not.
+    private record Operator(Expr left, Token operator, Expr right) {
+        static Operator of(Expr expr) {
+            if (expr instanceof Expr.Binary binary) return new Operator(binary.left, binary.operator, binary.right);
+            if (expr instanceof Expr.NumberBinary binary) return new Operator(binary.left, binary.operator, binary.right);
+            return null;
+        }
+    }
+
+    private static boolean isStep(Operator operator) {
+        if (operator == null || !(operator.right instanceof Expr.Literal literal) || !Numbers.isNumber(literal.value)) return false;
+        return operator.operator.type() == TokenType.PLUS || operator.operator.type() == TokenType.MINUS;
+    }
+
+    private static boolean isComparison(Operator operator) {
+        if (operator == null || !(operator.right instanceof Expr.Literal literal)) return false;
+
+        return switch (operator.operator.type()) {
+            case LESS, LESS_EQUAL, GREATER, GREATER_EQUAL -> Numbers.isNumber(literal.value);
+            case EQUAL_EQUAL, BANG_EQUAL -> true;
+            default -> false;
+        };
+    }
+}
@@ -0,0 +1,230 @@
+package com.github.senicko.lox;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.List;
+
+// A Java method bound as a Lox function. The method is adapted once, when it is bound, into a handle which takes
+// and returns Lox values: the conversion of every argument and of the result is composed into the handle, so a call
+// is a single invokeExact, with no reflection and no per call type dispatch.
+final class HostFunction implements LoxCallable {
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    private static final MethodHandle TO_DOUBLE = converter("toDouble", double.class);
+    private static final MethodHandle TO_LONG = converter("toLong", long.class);
+    private static final MethodHandle TO_INT = converter("toInt", int.class);
+    private static final MethodHandle TO_BOOLEAN = converter("toBoolean", boolean.class);
+    private static final MethodHandle TO_STRING = converter("toString", String.class);
+    private static final MethodHandle TO_TYPE = converter("toType", Object.class, Class.class);
+    private static final MethodHandle FROM_DOUBLE = result("fromDouble", double.class);
+    private static final MethodHandle FROM_LONG = result("fromLong", long.class);
+
+    // Thrown by the argument conversions, which don't know the call's token, and reported by the call.
+    private static final class ArgumentError extends RuntimeException {
+        final int position;
+        final String expected;
+
+        ArgumentError(int position, String expected) {
+            super(null, null, false, false);
+            this.position = position;
+            this.expected = expected;
+        }
+    }
+
+    private final String name;
+
+    // Takes arity Objects and returns an Object.
+    private final MethodHandle handle;
+
+    private HostFunction(String name, MethodHandle handle) {
+        this.name = name;
+        this.handle = handle;
+    }
+
+    static HostFunction of(String name, MethodHandle target) {
+        MethodType type = target.type();
+        MethodHandle adapted = target;
+
+        for (int i = 0; i < type.parameterCount(); i++) {
+            adapted = MethodHandles.filterArguments(adapted, i, argument(type.parameterType(i), i + 1));
+        }
+
+        Class<?> result = type.returnType();
+
+        if (result == double.class || result == float.class) {
+            adapted = MethodHandles.filterReturnValue(adapted.asType(adapted.type().changeReturnType(double.class)), FROM_DOUBLE);
+        } else if (result == long.class || result == int.class || result == short.class || result == byte.class) {
+            adapted = MethodHandles.filterReturnValue(adapted.asType(adapted.type().changeReturnType(long.class)), FROM_LONG);
+        } else if (result == char.class) {
+            throw new IllegalArgumentException("Unsupported result type " + result + " of '" + name + "'.");
+        }
+
+        // Boxes booleans, widens references and makes void methods return nil.
+        return new HostFunction(name, adapted.asType(MethodType.genericMethodType(type.parameterCount())));
+    }
+
+    // A function for every public static method the class declares, named after the method.
+    static void defineAll(Environment globals, Class<?> host) {
+        for (Method method : host.getDeclaredMethods()) {
+            if (!Modifier.isStatic(method.getModifiers()) || !Modifier.isPublic(method.getModifiers())) continue;
+
+            try {
+                define(globals, method.getName(), LOOKUP.unreflect(method));
+            } catch (IllegalAccessException exception) {
+                throw new IllegalArgumentException("Can't access " + method + ".", exception);
+            }
+        }
+    }
+
+    static void define(Environment globals, String name, MethodHandle target) {
+        Token token = new Token(TokenType.IDENTIFIER, name, Symbol.intern(name), 0);
+        globals.define(token, of(name, target));
+    }
+
+    @Override
+    public int arity() {
+        return handle.type().parameterCount();
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, Token paren, List<Object> arguments) {
+        return call(paren, arguments.toArray());
+    }
+
+    // The arity has been checked by the caller. Up to three arguments are passed without an array.
+    Object call(Token paren, Object[] arguments) {
+        try {
+            return switch (arguments.length) {
+                case 0 -> handle.invokeExact();
+                case 1 -> handle.invokeExact(arguments[0]);
+                case 2 -> handle.invokeExact(arguments[0], arguments[1]);
+                case 3 -> handle.invokeExact(arguments[0], arguments[1], arguments[2]);
+                default -> handle.invokeWithArguments(arguments);
+            };
+        } catch (Throwable throwable) {
+            throw failure(paren, throwable);
+        }
+    }
+
+    Object call(Token paren) {
+        try {
+            return handle.invokeExact();
+        } catch (Throwable throwable) {
+            throw failure(paren, throwable);
+        }
+    }
+
+    Object call(Token paren, Object argument) {
+        try {
+            return handle.invokeExact(argument);
+        } catch (Throwable throwable) {
+            throw failure(paren, throwable);
+        }
+    }
+
+    Object call(Token paren, Object first, Object second) {
+        try {
+            return handle.invokeExact(first, second);
+        } catch (Throwable throwable) {
+            throw failure(paren, throwable);
+        }
+    }
+
+    private RuntimeException failure(Token paren, Throwable throwable) {
+        if (throwable instanceof LoxRuntimeError error) return error;
+        if (throwable instanceof Error error) throw error;
+
+        if (throwable instanceof ArgumentError error)
+            return new LoxRuntimeError(paren, "Argument " + error.position + " of '" + name + "' must be " + error.expected + ".");
+
+        return new LoxRuntimeError(paren, "'" + name + "' failed: " + throwable.getMessage());
+    }
+
+    @Override
+    public String toString() {
+        return "<native fn " + name + ">";
+    }
+
+    private static MethodHandle argument(Class<?> type, int position) {
+        MethodHandle converter;
+
+        if (type == double.class) converter = TO_DOUBLE;
+        else if (type == long.class) converter = TO_LONG;
+        else if (type == int.class) converter = TO_INT;
+        else if (type == boolean.class) converter = TO_BOOLEAN;
+        else if (type == String.class) converter = TO_STRING;
+        else if (type == Object.class) return MethodHandles.identity(Object.class);
+        else if (type.isPrimitive()) throw new IllegalArgumentException("Unsupported parameter type " + type + ".");
+        else converter = MethodHandles.insertArguments(TO_TYPE, 2, type).asType(MethodType.methodType(type, int.class, Object.class));
+
+        return MethodHandles.insertArguments(converter, 0, position);
+    }
+
+    private static double toDouble(int position, Object value) {
+        if (Numbers.isNumber(value)) return Numbers.toDouble(value);
+        throw new ArgumentError(position, "a number");
+    }
+
+    private static long toLong(int position, Object value) {
+        Long integer = integer(value);
+        if (integer != null) return integer;
+        throw new ArgumentError(position, "an integer");
+    }
+
+    private static int toInt(int position, Object value) {
+        Long integer = integer(value);
+        if (integer != null && integer == (int) (long) integer) return (int) (long) integer;
+        throw new ArgumentError(position, "an integer");
+    }
+
+    // The integer the number holds, or null. Arithmetic on doubles can give one back, like 0.5 + 0.5, which is
+    // canonicalized like any other result would be, with -0 taken as 0.
+    private static Long integer(Object value) {
+        if (value instanceof Long integer) return integer;
+        if (value instanceof Double number && Numbers.valueOf(number + 0.0) instanceof Long integer) return integer;
+        return null;
+    }
+
+    private static boolean toBoolean(int position, Object value) {
+        if (value instanceof Boolean bool) return bool;
+        throw new ArgumentError(position, "a boolean");
+    }
+
+    private static String toString(int position, Object value) {
+        if (value instanceof String string) return string;
+        throw new ArgumentError(position, "a string");
+    }
+
+    private static Object toType(int position, Object value, Class<?> type) {
+        if (type.isInstance(value)) return value;
+        throw new ArgumentError(position, type == LoxArray.class ? "an array" : type == LoxMap.class ? "a map" : "a " + type.getSimpleName());
+    }
+
+    private static Object fromDouble(double value) {
+        return Numbers.valueOf(value);
+    }
+
+    private static Object fromLong(long value) {
+        return Numbers.valueOf(value);
+    }
+
+    private static MethodHandle converter(String name, Class<?> type, Class<?>... extra) {
+        MethodType methodType = MethodType.methodType(type, int.class, Object.class).appendParameterTypes(extra);
+        return find(name, methodType);
+    }
+
+    private static MethodHandle result(String name, Class<?> type) {
+        return find(name, MethodType.methodType(Object.class, type));
+    }
+
+    private static MethodHandle find(String name, MethodType type) {
+        try {
+            return LOOKUP.findStatic(HostFunction.class, name, type);
+        } catch (ReflectiveOperationException exception) {
+            throw new ExceptionInInitializerError(exception);
+        }
+    }
+}
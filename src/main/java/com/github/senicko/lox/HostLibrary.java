@@ -0,0 +1,86 @@
+package com.github.senicko.lox;
+
+// Math and string functions every program can call. Each public static method is bound as a global function of
+// the same name through HostFunction, which converts the arguments and results.
+final class HostLibrary {
+    private HostLibrary() {
+    }
+
+    // Math
+    public static double sqrt(double x) {
+        return Math.sqrt(x);
+    }
+
+    public static double abs(double x) {
+        return Math.abs(x);
+    }
+
+    public static double floor(double x) {
+        return Math.floor(x);
+    }
+
+    public static double ceil(double x) {
+        return Math.ceil(x);
+    }
+
+    // Halves round up, so round(2.5) is 3 and round(-2.5) is -2. Math.floor(x + 0.5) would round the double
+    // just below 0.5 up as well, as the sum rounds to 1.
+    public static double round(double x) {
+        double floor = Math.floor(x);
+        return x - floor >= 0.5 ? floor + 1 : floor;
+    }
+
+    public static double pow(double base, double exponent) {
+        return Math.pow(base, exponent);
+    }
+
+    public static double min(double a, double b) {
+        return Math.min(a, b);
+    }
+
+    public static double max(double a, double b) {
+        return Math.max(a, b);
+    }
+
+    // Strings
+    public static String upper(String string) {
+        return string.toUpperCase();
+    }
+
+    public static String lower(String string) {
+        return string.toLowerCase();
+    }
+
+    public static String trim(String string) {
+        return string.strip();
+    }
+
+    public static long length(String string) {
+        return string.length();
+    }
+
+    public static String substring(String string, int from, int to) {
+        return string.substring(from, to);
+    }
+
+    // The index of the first occurrence, or -1.
+    public static long indexOf(String string, String part) {
+        return string.indexOf(part);
+    }
+
+    // The text print would show for the value.
+    public static String str(Object value) {
+        if (value == null) return "nil";
+        if (Numbers.isNumber(value)) return Numbers.format(value);
+        return value.toString();
+    }
+
+    // The number the string spells, or nil if it doesn't spell one.
+    public static Object num(String string) {
+        try {
+            return Numbers.valueOf(Double.parseDouble(string.strip()));
+        } catch (NumberFormatException exception) {
+            return null;
+        }
+    }
+}
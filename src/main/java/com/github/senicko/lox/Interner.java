@@ -0,0 +1,170 @@
+package com.github.senicko.lox;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Hash-conses expressions without side effects: a node structurally identical to one interned before is replaced
+// by that one, so a program repeating a subexpression or a literal keeps a single copy of it. Children are
+// interned before their parents, which makes comparing them by identity compare them structurally. Tokens are
+// compared whole, line included, so a shared node still fails on the line it was written on.
+//
+// Shared nodes are immutable and nodes with state of their own, like a property cache or a loop profile, are
+// never shared, so interning never makes two sites share what they learned while running. The table is concurrent
+// as lazily parsed blocks keep interning into it from whichever thread runs them first.
+final class Interner {
+    // Rough size of an expression node with its boxed literal, if it has one.
+    private static final int NODE_BYTES = 32;
+
+    record Stats(long nodes, long distinct) {
+        long shared() {
+            return nodes - distinct;
+        }
+
+        long bytesSaved() {
+            return shared() * NODE_BYTES;
+        }
+    }
+
+    private record Key(int kind, Object first, Object second, Object third) {
+    }
+
+    private final Map<Key, Expr> nodes = new ConcurrentHashMap<>();
+
+    // The nodes interned, which parents may be interned with.
+    private final Set<Expr> interned = ConcurrentHashMap.newKeySet();
+
+    // The node interned for the expression, whose children must have been interned already.
+    Expr intern(Expr expr) {
+        Key key = key(expr);
+        if (key == null) return expr;
+
+        Expr existing = nodes.putIfAbsent(key, expr);
+        if (existing != null) return existing;
+
+        interned.add(expr);
+        return expr;
+    }
+
+    // Interns the program again once the passes after the parser copied the nodes they rewrote.
+    List<Stmt> intern(List<Stmt> statements) {
+        return Stmt.rewriteAll(statements, this::intern);
+    }
+
+    private Stmt intern(Stmt stmt) {
+        if (stmt instanceof Stmt.Block block && Parser.LazyBlock.isDeferred(block)) return stmt;
+        return stmt.withChildren(this::internTree, this::intern);
+    }
+
+    private Expr internTree(Expr expr) {
+        return Rewriter.bottomUp(expr, this::intern);
+    }
+
+    private Key key(Expr expr) {
+        return switch (expr.kind) {
+            case Expr.LITERAL -> new Key(expr.kind, ((Expr.Literal) expr).value, null, null);
+            case Expr.VARIABLE -> new Key(expr.kind, ((Expr.Variable) expr).name, null, null);
+            case Expr.LOCAL -> {
+                Expr.Local local = (Expr.Local) expr;
+                yield new Key(expr.kind, local.name, local.slot, null);
+            }
+            case Expr.GROUPING -> {
+                Expr.Grouping grouping = (Expr.Grouping) expr;
+                yield isInterned(grouping.expression) ? new Key(expr.kind, grouping.expression, null, null) : null;
+            }
+            case Expr.UNARY -> {
+                Expr.Unary unary = (Expr.Unary) expr;
+                yield isInterned(unary.right) ? new Key(expr.kind, unary.operator, unary.right, null) : null;
+            }
+            case Expr.NUMBER_NEGATE -> {
+                Expr.NumberNegate negate = (Expr.NumberNegate) expr;
+                yield isInterned(negate.right) ? new Key(expr.kind, negate.operator, negate.right, null) : null;
+            }
+            case Expr.BINARY -> {
+                Expr.Binary binary = (Expr.Binary) expr;
+                yield key(expr, binary.left, binary.operator, binary.right);
+            }
+            case Expr.NUMBER_BINARY -> {
+                Expr.NumberBinary binary = (Expr.NumberBinary) expr;
+                yield key(expr, binary.left, binary.operator, binary.right);
+            }
+            case Expr.CONCAT -> {
+                Expr.Concat concat = (Expr.Concat) expr;
+                yield key(expr, concat.left, concat.operator, concat.right);
+            }
+            case Expr.LOGICAL -> {
+                Expr.Logical logical = (Expr.Logical) expr;
+                yield key(expr, logical.left, logical.operator, logical.right);
+            }
+            case Expr.TERNARY -> {
+                Expr.Ternary ternary = (Expr.Ternary) expr;
+                if (!isInterned(ternary.condition) || !isInterned(ternary.truthy) || !isInterned(ternary.falsy)) yield null;
+                yield new Key(expr.kind, ternary.condition, ternary.truthy, ternary.falsy);
+            }
+            default -> null;
+        };
+    }
+
+    private Key key(Expr expr, Expr left, Token operator, Expr right) {
+        return isInterned(left) && isInterned(right) ? new Key(expr.kind, left, operator, right) : null;
+    }
+
+    // Whether the child was interned, which its parent can only be after.
+    private boolean isInterned(Expr expr) {
+        return interned.contains(expr);
+    }
+
+    // How many expression nodes the program would have unshared and how many distinct ones it has. Blocks which
+    // haven't been parsed yet aren't counted.
+    static Stats stats(List<Stmt> statements) {
+        Map<Expr, Long> sizes = new IdentityHashMap<>();
+        long[] nodes = {0};
+
+        for (Stmt statement : statements) count(statement, sizes, nodes);
+
+        return new Stats(nodes[0], sizes.size());
+    }
+
+    private static void count(Stmt stmt, Map<Expr, Long> sizes, long[] nodes) {
+        if (stmt == null || stmt instanceof Stmt.Block block && Parser.LazyBlock.isDeferred(block)) return;
+        stmt.forEachChild(expr -> nodes[0] += size(expr, sizes), child -> count(child, sizes, nodes));
+    }
+
+    // The number of nodes in the expression's tree, each shared subtree counted once more for every use. A node
+    // stays on the stack until the sizes of its children are known, so deep trees don't recurse.
+    private static long size(Expr expr, Map<Expr, Long> sizes) {
+        Deque<Expr> pending = new ArrayDeque<>();
+        pending.push(expr);
+
+        while (!pending.isEmpty()) {
+            Expr node = pending.peek();
+            if (sizes.containsKey(node)) {
+                pending.pop();
+                continue;
+            }
+
+            long[] size = {1};
+            boolean[] known = {true};
+
+            node.forEachChild(child -> {
+                Long childSize = sizes.get(child);
+
+                if (childSize != null) {
+                    size[0] += childSize;
+                } else {
+                    known[0] = false;
+                    pending.push(child);
+                }
+            }, stmt -> {
+            });
+
+            if (known[0]) sizes.put(pending.pop(), size[0]);
+        }
+
+        return sizes.get(expr);
+    }
+}
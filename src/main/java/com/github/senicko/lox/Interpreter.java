@@ -1,9 +1,176 @@
 package com.github.senicko.lox;
 
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandle;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
 
 public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
-    private Environment environment = new Environment();
+    // The globals of an interpreter as they were when the snapshot was taken, typically once a prelude ran, with
+    // every scope the functions reachable from them close over. Taking it walks what the globals reach, forking it
+    // takes constant time: a fork starts out sharing every binding and copies one only when it first assigns it, so
+    // forks see neither each other's assignments nor those of the interpreter the snapshot was taken of. Objects
+    // the prelude created, like instances, arrays and maps, are shared as they are, and so are the trees of the
+    // functions it declared, with the loop profiles and property caches in them. Those are plain mutable state, so
+    // forks aren't safe to run on several threads at once.
+    public static final class Snapshot {
+        private final Environment bindings;
+        private final Map<Environment, Environment> scopes;
+        private final Interpreter source;
+
+        private Snapshot(Environment bindings, Map<Environment, Environment> scopes, Interpreter source) {
+            this.bindings = bindings;
+            this.scopes = scopes;
+            this.source = source;
+        }
+
+        // An interpreter with the snapshot's globals and the settings of the interpreter it was taken of.
+        public Interpreter fork() {
+            return new Interpreter(this);
+        }
+    }
+
+    final Environment globals;
+    private Environment environment;
+    private final StackEvaluator stackEvaluator;
+
+    // How many evaluate() calls of a deep interpreter are running. It recurses like any other up to
+    // Parser.RECURSION_LIMIT, which is faster, and evaluates what is nested deeper with its stack evaluator.
+    private int depth = 0;
+
+    // The globals of the interpreters this one was forked from, which functions declared there close over. A
+    // fork runs them with its own globals instead, and with its own fork of any scope between them, which is
+    // made the first time it is needed.
+    private final Environment[] origins;
+    private final Map<Environment, Environment> rebased = new IdentityHashMap<>();
+
+    // The scopes frozen with the snapshot this interpreter was forked from, by the closure they were frozen for.
+    private final Map<Environment, Environment> frozen;
+
+    // Function frames are windows of one shared slot array: fp is the first slot of the running function's frame
+    // and sp the first free slot above it.
+    private Object[] stack = new Object[256];
+    private int fp = 0;
+    private int sp = 0;
+
+    // Marks a local declared without a value.
+    static final Object UNINITIALIZED = new Object();
+
+    // Set by a return statement until the call it returns from picks up the value. Blocks and loops stop executing
+    // statements while it is set, so returning doesn't need to unwind with an exception.
+    private boolean returning = false;
+    private Object returnValue = null;
+
+    // A loop is compiled once it went back to its condition this many times, and never if it is 0. A loop whose
+    // speculation failed deoptimizationLimit times stays interpreted. Tiering events are logged to tierLog, if set.
+    private int osrThreshold = 1000;
+    private int deoptimizationLimit = 3;
+    private PrintStream tierLog = null;
+
+    Interpreter() {
+        this(false);
+    }
+
+    // A deep interpreter evaluates expressions with an explicit work stack instead of recursion.
+    Interpreter(boolean deep) {
+        this.globals = new Environment();
+        this.environment = globals;
+        this.stackEvaluator = deep ? new StackEvaluator(this) : null;
+        this.origins = new Environment[0];
+        this.frozen = Map.of();
+
+        Natives.define(globals);
+        defineNatives(HostLibrary.class);
+    }
+
+    // The natives are part of the snapshot already.
+    private Interpreter(Snapshot snapshot) {
+        Interpreter source = snapshot.source;
+
+        this.globals = snapshot.bindings.fork(null);
+        this.environment = globals;
+        this.stackEvaluator = source.stackEvaluator != null ? new StackEvaluator(this) : null;
+        this.origins = Arrays.copyOf(source.origins, source.origins.length + 1);
+        this.origins[source.origins.length] = source.globals;
+        this.frozen = snapshot.scopes;
+
+        tiering(source.osrThreshold, source.deoptimizationLimit, source.tierLog);
+    }
+
+    // Freezes the globals as they are now. This interpreter goes on with them as a fork of the snapshot.
+    public Snapshot snapshot() {
+        Environment bindings = globals.snapshot();
+        return new Snapshot(bindings, freeze(bindings), this);
+    }
+
+    // Freezes every scope closed over by a function the globals reach, through other scopes and through objects,
+    // the way the globals are frozen: this interpreter goes on with each as a fork of its frozen copy. A scope is
+    // frozen as this interpreter sees it, so a fork's snapshot freezes the fork's copies of the scopes it got.
+    private Map<Environment, Environment> freeze(Environment bindings) {
+        Map<Environment, Environment> scopes = new IdentityHashMap<>();
+        Map<Environment, Environment> views = new IdentityHashMap<>();
+        Set<Object> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<Object> pending = new ArrayDeque<>();
+        Consumer<Object> reach = value -> {
+            if (value != null) pending.push(value);
+        };
+
+        bindings.forEachValue(reach);
+
+        while (!pending.isEmpty()) {
+            Object value = pending.pop();
+            if (!seen.add(value)) continue;
+
+            if (value instanceof Environment closure) {
+                // Globals are frozen already, or belong to an interpreter this one was forked from.
+                if (closure.enclosing == null) continue;
+
+                Environment scope = views.computeIfAbsent(origins.length == 0 ? closure : rebase(closure), Environment::snapshot);
+                scopes.put(closure, scope);
+                scope.forEachValue(reach);
+                reach.accept(closure.enclosing);
+            } else if (value instanceof LoxFunction function) {
+                reach.accept(function.closure);
+                reach.accept(function.receiver);
+            } else if (value instanceof LoxClass klass) {
+                klass.methods().forEach(reach);
+                reach.accept(klass.superclass);
+            } else if (value instanceof LoxInstance instance) {
+                for (Object field : instance.fields) reach.accept(field);
+                reach.accept(instance.klass);
+            } else if (value instanceof LoxMap map) {
+                map.forEachValue(reach);
+            }
+        }
+
+        return scopes;
+    }
+
+    // Binds a Java method as a global function. Its parameters may be double, long, int, boolean, String or any
+    // other reference type, and numbers it returns become Lox numbers.
+    public void defineNative(String name, MethodHandle target) {
+        HostFunction.define(globals, name, target);
+    }
+
+    // Binds every public static method of the class, under the method's name.
+    public void defineNatives(Class<?> host) {
+        HostFunction.defineAll(globals, host);
+    }
+
+    void tiering(int osrThreshold, int deoptimizationLimit, PrintStream log) {
+        this.osrThreshold = osrThreshold;
+        this.deoptimizationLimit = deoptimizationLimit;
+        this.tierLog = log;
+    }
 
     void interpret(List<Stmt> statements) {
         try {
@@ -12,13 +179,21 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             }
         } catch (LoxRuntimeError error) {
             Main.runtimeError(error);
+
+            // A frame which ran out of stack may not have finished restoring what it changed.
+            sp = 0;
+            fp = 0;
+            environment = globals;
+            returning = false;
+            returnValue = null;
+            depth = 0;
         }
     }
 
     // This method is used in REPL to display resulting values of raw expressions.
     void printExpression(Stmt.Expression expr) {
         Object value = evaluate(expr.expression);
-        System.out.println(value);
+        System.out.println(value instanceof Long ? Numbers.toString(value) : value);
     }
 
     @Override
@@ -30,11 +205,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     public Object visitLogicalExpr(Expr.Logical expr) {
         Object left = evaluate(expr.left);
 
-        if(expr.operator.type() == TokenType.OR) {
-            if (isTruthy(left)) return left;
-        } else if (expr.operator.type() == TokenType.AND) {
-            if (!isTruthy(left)) return left;
-        }
+        if (shortCircuits(expr.operator, left)) return left;
 
         return evaluate(expr.right);
     }
@@ -46,12 +217,49 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitUnaryExpr(Expr.Unary expr) {
+        return unary(expr.operator, evaluate(expr.right));
+    }
+
+    @Override
+    public Object visitBinaryExpr(Expr.Binary expr) {
+        Object left = evaluate(expr.left);
+        Object right = evaluate(expr.right);
+
+        return binary(expr.operator, left, right);
+    }
+
+    @Override
+    public Object visitNumberNegateExpr(Expr.NumberNegate expr) {
+        return Numbers.negate(evaluate(expr.right));
+    }
+
+    @Override
+    public Object visitNumberBinaryExpr(Expr.NumberBinary expr) {
+        Object left = evaluate(expr.left);
         Object right = evaluate(expr.right);
 
-        return switch (expr.operator.type()) {
+        return numberBinary(expr.operator, left, right);
+    }
+
+    @Override
+    public Object visitConcatExpr(Expr.Concat expr) {
+        Object left = evaluate(expr.left);
+        Object right = evaluate(expr.right);
+
+        return (String) left + (String) right;
+    }
+
+    boolean shortCircuits(Token operator, Object left) {
+        if (operator.type() == TokenType.OR) return isTruthy(left);
+        if (operator.type() == TokenType.AND) return !isTruthy(left);
+        return false;
+    }
+
+    Object unary(Token operator, Object right) {
+        return switch (operator.type()) {
             case MINUS -> {
-                assertNumberOperand(expr.operator, right);
-                yield -(double) right;
+                assertNumberOperand(operator, right);
+                yield Numbers.negate(right);
             }
             case BANG -> !isTruthy(right);
 
@@ -60,15 +268,11 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         };
     }
 
-    @Override
-    public Object visitBinaryExpr(Expr.Binary expr) {
-        Object left = evaluate(expr.left);
-        Object right = evaluate(expr.right);
-
-        return switch (expr.operator.type()) {
+    Object binary(Token operator, Object left, Object right) {
+        return switch (operator.type()) {
             case PLUS -> {
-                if (left instanceof Double lh && right instanceof Double rh)
-                    yield lh + rh;
+                if (Numbers.isNumber(left) && Numbers.isNumber(right))
+                    yield Numbers.add(left, right);
 
                 if (left instanceof String lh && right instanceof String rh)
                     yield lh + rh;
@@ -79,48 +283,48 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
                 if (right instanceof String rh)
                     yield this.stringify(left) + rh;
 
-                throw new LoxRuntimeError(expr.operator, "Operands must be either Strings or Numbers.");
+                throw new LoxRuntimeError(operator, "Operands must be either Strings or Numbers.");
             }
             case MINUS -> {
-                assertNumberOperands(expr.operator, left, right);
-                yield (Double) left - (Double) right;
+                assertNumberOperands(operator, left, right);
+                yield Numbers.subtract(left, right);
             }
             case SLASH -> {
-                assertNumberOperands(expr.operator, left, right);
+                assertNumberOperands(operator, left, right);
 
-                if ((Double) right == 0)
-                    throw new LoxRuntimeError(expr.operator, "Attempt to divide by zero.");
+                if (Numbers.isZero(right))
+                    throw new LoxRuntimeError(operator, "Attempt to divide by zero.");
 
-                yield (Double) left / (Double) right;
+                yield Numbers.valueOf(Numbers.toDouble(left) / Numbers.toDouble(right));
             }
             case STAR -> {
-                assertNumberOperands(expr.operator, left, right);
-                yield (Double) left * (Double) right;
+                assertNumberOperands(operator, left, right);
+                yield Numbers.multiply(left, right);
             }
             case GREATER -> {
-                assertNumberOperands(expr.operator, left, right);
-                yield (Double) left > (Double) right;
+                assertNumberOperands(operator, left, right);
+                yield Numbers.toDouble(left) > Numbers.toDouble(right);
             }
             case GREATER_EQUAL -> {
-                assertNumberOperands(expr.operator, left, right);
-                yield (Double) left >= (Double) right;
+                assertNumberOperands(operator, left, right);
+                yield Numbers.toDouble(left) >= Numbers.toDouble(right);
             }
             case LESS -> {
-                assertNumberOperands(expr.operator, left, right);
-                yield (Double) left < (Double) right;
+                assertNumberOperands(operator, left, right);
+                yield Numbers.toDouble(left) < Numbers.toDouble(right);
             }
             case LESS_EQUAL -> {
-                assertNumberOperands(expr.operator, left, right);
-                yield (Double) left <= (Double) right;
+                assertNumberOperands(operator, left, right);
+                yield Numbers.toDouble(left) <= Numbers.toDouble(right);
             }
             case SPACESHIP -> {
                 if (left instanceof String lh && right instanceof String rh)
                     yield lh.compareTo(rh);
 
-                if (left instanceof Double lh && right instanceof Double rh)
-                    yield lh.compareTo(rh);
+                if (Numbers.isNumber(left) && Numbers.isNumber(right))
+                    yield Numbers.compare(left, right);
 
-                throw new LoxRuntimeError(expr.operator, "Operands must be either Strings or Numbers.");
+                throw new LoxRuntimeError(operator, "Operands must be either Strings or Numbers.");
             }
             case BANG_EQUAL -> !isEqual(left, right);
             case EQUAL_EQUAL -> isEqual(left, right);
@@ -130,6 +334,28 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         };
     }
 
+    // A binary operator whose operands TypeInference proved to be numbers, so they aren't checked again.
+    Object numberBinary(Token operator, Object left, Object right) {
+        return switch (operator.type()) {
+            case PLUS -> Numbers.add(left, right);
+            case MINUS -> Numbers.subtract(left, right);
+            case STAR -> Numbers.multiply(left, right);
+            case SLASH -> {
+                if (Numbers.isZero(right))
+                    throw new LoxRuntimeError(operator, "Attempt to divide by zero.");
+
+                yield Numbers.valueOf(Numbers.toDouble(left) / Numbers.toDouble(right));
+            }
+            case GREATER -> Numbers.toDouble(left) > Numbers.toDouble(right);
+            case GREATER_EQUAL -> Numbers.toDouble(left) >= Numbers.toDouble(right);
+            case LESS -> Numbers.toDouble(left) < Numbers.toDouble(right);
+            case LESS_EQUAL -> Numbers.toDouble(left) <= Numbers.toDouble(right);
+
+            // Unreachable
+            default -> null;
+        };
+    }
+
     @Override
     public Object visitTernaryExpr(Expr.Ternary expr) {
         Object condition = evaluate(expr.condition);
@@ -140,32 +366,464 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitVariableExpr(Expr.Variable expr) {
-        return environment.get(expr.name).value;
+        return lookUp(expr.name);
     }
 
     @Override
     public Object visitAssignmentExpr(Expr.Assignment expr) {
         Object value = evaluate(expr.value);
-        environment.assign(expr.name, value);
+        assign(expr.name, value);
+        return value;
+    }
+
+    @Override
+    public Object visitCallExpr(Expr.Call expr) {
+        try {
+            return callExpression(expr);
+        } catch (StackOverflowError overflow) {
+            throw stackOverflow(expr.paren);
+        }
+    }
+
+    // Recursion too deep for the thread stack is reported as a runtime error of the call which ran out of it,
+    // rather than taking the interpreter down. Frames unwind as usual, restoring what they changed.
+    static LoxRuntimeError stackOverflow(Token paren) {
+        return new LoxRuntimeError(paren, "Stack overflow.");
+    }
+
+    private Object callExpression(Expr.Call expr) {
+        Object callee;
+
+        // A method called straight away runs with its instance in the frame, without being bound first.
+        if (expr.callee.kind == Expr.GET) {
+            Expr.Get get = (Expr.Get) expr.callee;
+            LoxInstance instance = instance(get.name, evaluate(get.object));
+            PropertyCache.Entry entry = get.cache.lookUp(instance, get.name);
+
+            if (entry.slot() < 0 && entry.method() instanceof LoxFunction method) return call(method, instance, expr);
+
+            callee = entry.slot() >= 0 ? instance.fields[entry.slot()] : entry.method().bind(instance);
+        } else {
+            callee = evaluate(expr.callee);
+        }
+
+        if (callee instanceof LoxFunction function) return call(function, function.receiver, expr);
+        if (callee instanceof HostFunction function) return call(function, expr);
+
+        List<Object> arguments = new ArrayList<>(expr.arguments.size());
+
+        for (int i = 0; i < expr.arguments.size(); i++) {
+            arguments.add(evaluate(expr.arguments.get(i)));
+        }
+
+        return call(expr.paren, callee, arguments);
+    }
+
+    // Evaluates the arguments straight into the callee's frame.
+    private Object call(LoxFunction function, LoxInstance receiver, Expr.Call expr) {
+        int base = sp;
+        int first = receiver == null ? 0 : 1;
+        int count = expr.arguments.size();
+
+        try {
+            reserve(base + first);
+            if (receiver != null) stack[base] = receiver;
+            sp = base + first;
+
+            for (int i = 0; i < count; i++) {
+                Object argument = evaluate(expr.arguments.get(i));
+
+                reserve(base + first + i + 1);
+                stack[base + first + i] = argument;
+                sp = base + first + i + 1;
+            }
+
+            checkArity(function, expr.paren, count);
+            return invoke(function, receiver, base);
+        } finally {
+            release(base);
+        }
+    }
+
+    // Passes up to two arguments without collecting them first.
+    private Object call(HostFunction function, Expr.Call expr) {
+        List<Expr> arguments = expr.arguments;
+
+        switch (arguments.size()) {
+            case 0 -> {
+                checkArity(function, expr.paren, 0);
+                return function.call(expr.paren);
+            }
+            case 1 -> {
+                Object argument = evaluate(arguments.get(0));
+
+                checkArity(function, expr.paren, 1);
+                return function.call(expr.paren, argument);
+            }
+            case 2 -> {
+                Object first = evaluate(arguments.get(0));
+                Object second = evaluate(arguments.get(1));
+
+                checkArity(function, expr.paren, 2);
+                return function.call(expr.paren, first, second);
+            }
+            default -> {
+                Object[] values = new Object[arguments.size()];
+
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = evaluate(arguments.get(i));
+                }
+
+                checkArity(function, expr.paren, values.length);
+                return function.call(expr.paren, values);
+            }
+        }
+    }
+
+    Object call(LoxFunction function, List<Object> arguments) {
+        int base = sp;
+        int first = function.receiver == null ? 0 : 1;
+
+        try {
+            reserve(base + first + arguments.size());
+
+            if (function.receiver != null) stack[base] = function.receiver;
+
+            for (int i = 0; i < arguments.size(); i++) {
+                stack[base + first + i] = arguments.get(i);
+            }
+
+            return invoke(function, function.receiver, base);
+        } finally {
+            release(base);
+        }
+    }
+
+    // Runs the function with its receiver, if any, and arguments in the slots from base on.
+    private Object invoke(LoxFunction function, LoxInstance receiver, int base) {
+        Stmt.Function declaration = function.declaration;
+        int previousFp = fp;
+        Environment previous = environment;
+
+        reserve(base + declaration.slots);
+        sp = base + declaration.slots;
+        fp = base;
+        environment = origins.length == 0 ? function.closure : rebase(function.closure);
+
+        try {
+            List<Stmt> body = declaration.body;
+
+            for (int i = 0; i < body.size() && !returning; i++) {
+                execute(body.get(i));
+            }
+
+            Object value = returnValue;
+            returning = false;
+            returnValue = null;
+
+            return function.initializer ? receiver : value;
+        } finally {
+            fp = previousFp;
+            environment = previous;
+        }
+    }
+
+    // The environment a function declared in an interpreter this one was forked from runs in here.
+    private Environment rebase(Environment closure) {
+        for (Environment origin : origins) {
+            if (closure == origin) return globals;
+        }
+
+        if (closure == null || closure.enclosing == null) return closure;
+
+        Environment forked = rebased.get(closure);
+        if (forked != null) return forked;
+
+        Environment enclosing = rebase(closure.enclosing);
+
+        // Forked as it was frozen, not as the interpreter it came from left it since.
+        Environment scope = frozen.get(closure);
+
+        if (scope == null) {
+            if (enclosing == closure.enclosing) return closure;
+            scope = closure;
+        }
+
+        forked = scope.fork(enclosing);
+        rebased.put(closure, forked);
+        return forked;
+    }
+
+    private void reserve(int size) {
+        if (size > stack.length) stack = Arrays.copyOf(stack, Math.max(size, stack.length * 2));
+    }
+
+    // Pops everything above base, clearing the slots so they don't keep values alive.
+    private void release(int base) {
+        Arrays.fill(stack, base, sp, null);
+        sp = base;
+    }
+
+    @Override
+    public Object visitLocalExpr(Expr.Local expr) {
+        return local(expr.name, expr.slot);
+    }
+
+    @Override
+    public Object visitLocalAssignExpr(Expr.LocalAssign expr) {
+        Object value = evaluate(expr.value);
+        stack[fp + expr.slot] = value;
+        return value;
+    }
+
+    Object local(Token name, int slot) {
+        Object value = stack[fp + slot];
+        if (value == UNINITIALIZED) throw new LoxRuntimeError(name, "Use of uninitialized variable.");
         return value;
     }
 
+    void setLocal(int slot, Object value) {
+        stack[fp + slot] = value;
+    }
+
+    // The binding read is the one assigned, so it is looked up once.
+    @Override
+    public Object visitIncrementExpr(Expr.Increment expr) {
+        Value.Initialized binding = environment.update(expr.name);
+        return binding.value = increment(expr.operator, binding.value, expr.step);
+    }
+
+    @Override
+    public Object visitLocalIncrementExpr(Expr.LocalIncrement expr) {
+        return stack[fp + expr.slot] = increment(expr.operator, local(expr.name, expr.slot), expr.step);
+    }
+
+    @Override
+    public Object visitCompareExpr(Expr.Compare expr) {
+        return compare(expr.operator, lookUp(expr.name), expr.constant);
+    }
+
+    @Override
+    public Object visitLocalCompareExpr(Expr.LocalCompare expr) {
+        return compare(expr.operator, local(expr.name, expr.slot), expr.constant);
+    }
+
+    @Override
+    public Object visitCopyExpr(Expr.Copy expr) {
+        Object value = lookUp(expr.source);
+        assign(expr.name, value);
+        return value;
+    }
+
+    @Override
+    public Object visitLocalCopyExpr(Expr.LocalCopy expr) {
+        return stack[fp + expr.slot] = local(expr.source, expr.from);
+    }
+
+    // x + c or x - c for a number literal c, which fails like the operator it was fused from if x isn't a number.
+    Object increment(Token operator, Object value, Object step) {
+        if (!Numbers.isNumber(value)) return binary(operator, value, step);
+        return operator.type() == TokenType.PLUS ? Numbers.add(value, step) : Numbers.subtract(value, step);
+    }
+
+    // x compared with a literal, which is a number unless the operator is an equality.
+    Object compare(Token operator, Object value, Object constant) {
+        return switch (operator.type()) {
+            case EQUAL_EQUAL -> isEqual(value, constant);
+            case BANG_EQUAL -> !isEqual(value, constant);
+            default -> Numbers.isNumber(value) ? numberBinary(operator, value, constant) : binary(operator, value, constant);
+        };
+    }
+
+    Object call(Token paren, Object callee, List<Object> arguments) {
+        if (!(callee instanceof LoxCallable function))
+            throw new LoxRuntimeError(paren, "Can only call functions and classes.");
+
+        checkArity(function, paren, arguments.size());
+
+        try {
+            return function.call(this, paren, arguments);
+        } catch (StackOverflowError overflow) {
+            throw stackOverflow(paren);
+        }
+    }
+
+    private static void checkArity(LoxCallable function, Token paren, int count) {
+        if (count != function.arity())
+            throw new LoxRuntimeError(paren, "Expected " + function.arity() + " arguments but got " + count + ".");
+    }
+
+    @Override
+    public Object visitGetExpr(Expr.Get expr) {
+        return expr.cache.get(instance(expr.name, evaluate(expr.object)), expr.name);
+    }
+
+    @Override
+    public Object visitSetExpr(Expr.Set expr) {
+        Object object = evaluate(expr.object);
+        Object value = evaluate(expr.value);
+
+        return set(expr.name, expr.cache, object, value);
+    }
+
+    @Override
+    public Object visitSuperExpr(Expr.Super expr) {
+        return superMethod(environment, expr.method, evaluate(expr.receiver));
+    }
+
+    LoxInstance instance(Token name, Object object) {
+        if (object instanceof LoxInstance instance) return instance;
+        throw new LoxRuntimeError(name, "Only instances have properties.");
+    }
+
+    Object set(Token name, PropertyCache cache, Object object, Object value) {
+        if (!(object instanceof LoxInstance instance)) throw new LoxRuntimeError(name, "Only instances have fields.");
+
+        cache.set(instance, name, value);
+        return value;
+    }
+
+    Object superMethod(Token method, Object receiver) {
+        return superMethod(environment, method, receiver);
+    }
+
+    // The superclass' method bound to the receiver, with the superclass found where the calling method was declared.
+    static Object superMethod(Environment environment, Token method, Object receiver) {
+        LoxClass superclass = (LoxClass) environment.get(LoxClass.SUPER).value;
+        LoxClass.Method found = superclass.findMethod(method.lexeme());
+
+        if (found == null) throw new LoxRuntimeError(method, "Undefined property '" + method.lexeme() + "'.");
+
+        return found.bind((LoxInstance) receiver);
+    }
+
+    @Override
+    public Object visitIndexExpr(Expr.Index expr) {
+        Object object = evaluate(expr.object);
+        Object index = evaluate(expr.index);
+
+        return index(expr.bracket, object, index);
+    }
+
+    @Override
+    public Object visitIndexSetExpr(Expr.IndexSet expr) {
+        Object object = evaluate(expr.object);
+        Object index = evaluate(expr.index);
+        Object value = evaluate(expr.value);
+
+        return setIndex(expr.bracket, object, index, value);
+    }
+
+    @Override
+    public Object visitMapLiteralExpr(Expr.MapLiteral expr) {
+        LoxMap map = new LoxMap();
+
+        for (int i = 0; i < expr.keys.size(); i++) {
+            Object key = evaluate(expr.keys.get(i));
+            Object value = evaluate(expr.values.get(i));
+
+            put(expr.brace, map, key, value);
+        }
+
+        return map;
+    }
+
+    void put(Token token, LoxMap map, Object key, Object value) {
+        if (!LoxMap.isKey(key)) throw new LoxRuntimeError(token, "Map keys must be strings or numbers.");
+        map.put(key, value);
+    }
+
+    Object index(Token bracket, Object object, Object index) {
+        if (object instanceof LoxMap map) {
+            // Absent keys read as nil.
+            if (!LoxMap.isKey(index)) throw new LoxRuntimeError(bracket, "Map keys must be strings or numbers.");
+            return map.get(index);
+        }
+
+        LoxArray array = array(bracket, object);
+        return Numbers.valueOf(array.elements[position(bracket, array, index)]);
+    }
+
+    Object setIndex(Token bracket, Object object, Object index, Object value) {
+        if (object instanceof LoxMap map) {
+            put(bracket, map, index, value);
+            return value;
+        }
+
+        LoxArray array = array(bracket, object);
+        int position = position(bracket, array, index);
+
+        if (!Numbers.isNumber(value)) throw new LoxRuntimeError(bracket, "Array elements must be numbers.");
+
+        array.elements[position] = Numbers.toDouble(value);
+        return value;
+    }
+
+    private LoxArray array(Token bracket, Object object) {
+        if (object instanceof LoxArray array) return array;
+        throw new LoxRuntimeError(bracket, "Only arrays and maps can be indexed.");
+    }
+
+    private int position(Token bracket, LoxArray array, Object index) {
+        if (!Numbers.isNumber(index)) throw new LoxRuntimeError(bracket, "Index must be an integer.");
+
+        double position = Numbers.toDouble(index);
+
+        if (position != Math.rint(position)) throw new LoxRuntimeError(bracket, "Index must be an integer.");
+        if (position < 0 || position >= array.length()) throw new LoxRuntimeError(bracket, "Index out of bounds.");
+
+        return (int) position;
+    }
+
+    Object lookUp(Token name) {
+        return environment.get(name).value;
+    }
+
+    void assign(Token name, Object value) {
+        environment.assign(name, value);
+    }
+
     private void assertNumberOperand(Token operator, Object operand) {
-        if (operand instanceof Double) return;
+        if (Numbers.isNumber(operand)) return;
         throw new LoxRuntimeError(operator, "Operand must be a number.");
     }
 
     private void assertNumberOperands(Token operator, Object left, Object right) {
-        if (left instanceof Double && right instanceof Double) return;
+        if (Numbers.isNumber(left) && Numbers.isNumber(right)) return;
         throw new LoxRuntimeError(operator, "Operands must be numbers.");
     }
 
+    // Expressions keep visitor dispatch: HotSpot profiles every accept() call site separately, which measured
+    // faster than funnelling all expressions through one switch on Expr.kind.
     private Object evaluate(Expr expr) {
-        return expr.accept(this);
+        if (stackEvaluator == null) return expr.accept(this);
+        if (depth >= Parser.RECURSION_LIMIT) return stackEvaluator.evaluate(expr);
+
+        depth++;
+
+        try {
+            return expr.accept(this);
+        } finally {
+            depth--;
+        }
     }
 
+    // Statements dispatch on Stmt.kind with a tableswitch and a checkcast against a final class.
     void execute(Stmt stmt) {
-        stmt.accept(this);
+        switch (stmt.kind) {
+            case Stmt.EXPRESSION -> visitExpressionStmt((Stmt.Expression) stmt);
+            case Stmt.IF -> visitIfStmt((Stmt.If) stmt);
+            case Stmt.PRINT -> visitPrintStmt((Stmt.Print) stmt);
+            case Stmt.PRINT_VARIABLE -> visitPrintVariableStmt((Stmt.PrintVariable) stmt);
+            case Stmt.PRINT_LOCAL -> visitPrintLocalStmt((Stmt.PrintLocal) stmt);
+            case Stmt.VAR -> visitVarStmt((Stmt.Var) stmt);
+            case Stmt.WHILE -> visitWhileStmt((Stmt.While) stmt);
+            case Stmt.BLOCK -> visitBlockStmt((Stmt.Block) stmt);
+            case Stmt.COUNTED_LOOP -> visitCountedLoopStmt((Stmt.CountedLoop) stmt);
+            case Stmt.LOCAL_VAR -> visitLocalVarStmt((Stmt.LocalVar) stmt);
+            case Stmt.RETURN -> visitReturnStmt((Stmt.Return) stmt);
+            default -> stmt.accept(this);
+        }
     }
 
     private void executeBlock(List<Stmt> statements, Environment environment) {
@@ -174,8 +832,9 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         try {
             this.environment = environment;
 
-            for(Stmt statement : statements) {
-                execute(statement);
+            // Indexed loop keeps the hot path free of Iterator allocations.
+            for (int i = 0; i < statements.size() && !returning; i++) {
+                execute(statements.get(i));
             }
         } finally {
             this.environment = previous;
@@ -206,6 +865,18 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return null;
     }
 
+    @Override
+    public Void visitPrintVariableStmt(Stmt.PrintVariable stmt) {
+        System.out.println(stringify(lookUp(stmt.name)));
+        return null;
+    }
+
+    @Override
+    public Void visitPrintLocalStmt(Stmt.PrintLocal stmt) {
+        System.out.println(stringify(local(stmt.name, stmt.slot)));
+        return null;
+    }
+
     @Override
     public Void visitVarStmt(Stmt.Var stmt) {
         Object value = null;
@@ -214,46 +885,333 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             value = evaluate(stmt.initializer);
         }
 
-        environment.define(stmt.name.lexeme(), value);
+        environment.define(stmt.name, value);
         return null;
     }
 
     @Override
     public Void visitWhileStmt(Stmt.While stmt) {
-        while(isTruthy(evaluate(stmt.condition))) {
+        LoopProfile profile = stmt.profile;
+
+        // A loop which got hot runs compiled from its first iteration on, for as long as its speculation holds. Read
+        // once, as another run of the loop may deoptimize it meanwhile.
+        LoopCompiler.Compiled compiled = profile.compiled;
+        if (compiled != null && runCompiled(stmt, compiled)) return null;
+
+        // A body that declares variables gets a single scope which is reset between iterations, unless it declares
+        // a function or a class: those capture the scope, and each iteration's must keep its own variables.
+        if (stmt.body instanceof Stmt.Block body && declaresNames(body.statements) && !profile.capturesScope(body)) {
+            Environment scope = new Environment(environment);
+
+            while (!returning && isTruthy(evaluate(stmt.condition))) {
+                scope.reset();
+                executeBlock(body.statements, scope);
+
+                if (++profile.backEdges == osrThreshold && !returning && osr(stmt)) return null;
+            }
+
+            return null;
+        }
+
+        while(!returning && isTruthy(evaluate(stmt.condition))) {
             execute(stmt.body);
+
+            if (++profile.backEdges == osrThreshold && !returning && osr(stmt)) return null;
         }
 
         return null;
     }
 
+    // Compiles the loop which just got hot and carries on with it compiled. Between iterations everything the loop
+    // keeps is in the environment it runs in and the frame, which the compiled loop is entered with.
+    private boolean osr(Stmt.While stmt) {
+        LoopProfile profile = stmt.profile;
+        if (osrThreshold <= 0 || profile.disabled) return false;
+
+        LoopCompiler.Compiled code;
+
+        try {
+            code = LoopCompiler.compile(stmt, sp - fp, environment, slot -> stack[fp + slot], profile.unstable);
+        } catch (LoopCompiler.Uncompilable reason) {
+            log(profile, "stays interpreted: " + reason.getMessage());
+
+            if (reason.deferred) profile.backEdges = 0;
+            else profile.disable();
+
+            return false;
+        }
+
+        profile.compiled = code;
+        log(profile, "compiled after " + profile.backEdges + " back-edges: " + code.variables().size()
+                + " variables promoted, " + code.specialized() + " operators specialized");
+
+        return runCompiled(stmt, code);
+    }
+
+    // Runs the loop compiled, with the variables it promoted moved into its slots and back out when it is left,
+    // or deoptimizes it when what the loop speculated on doesn't hold, leaving the loop to the interpreter.
+    private boolean runCompiled(Stmt.While stmt, LoopCompiler.Compiled code) {
+        LoopProfile profile = stmt.profile;
+        int base = fp + code.offset();
+
+        if (sp != base) return deoptimize(profile, -1, "its frame has another size");
+
+        List<Token> variables = code.variables();
+        Value[] bindings = new Value[variables.size()];
+
+        for (int i = 0; i < bindings.length; i++) {
+            bindings[i] = environment.find(variables.get(i));
+            if (bindings[i] == null) return deoptimize(profile, -1, "'" + variables.get(i).lexeme() + "' is undefined");
+        }
+
+        TypeInference.Type[] types = code.types();
+
+        for (int slot = 0; slot < types.length; slot++) {
+            if (types[slot] == null || !types[slot].isKnown()) continue;
+
+            Object value = slot < code.first() ? stack[fp + slot] : valueOf(bindings[slot - code.first()]);
+            TypeInference.Type type = LoopCompiler.typeOf(value);
+
+            if (type != types[slot]) {
+                String name = code.names()[slot].lexeme();
+                return deoptimize(profile, slot, "'" + name + "' holds " + LoopCompiler.describe(type) + ", not " + LoopCompiler.describe(types[slot]));
+            }
+        }
+
+        reserve(fp + code.slots());
+        sp = fp + code.slots();
+
+        for (int i = 0; i < bindings.length; i++) {
+            stack[fp + code.first() + i] = valueOf(bindings[i]);
+        }
+
+        try {
+            Stmt.While loop = code.loop();
+
+            while (!returning && isTruthy(evaluate(loop.condition))) {
+                execute(loop.body);
+            }
+        } finally {
+            for (int slot : code.assigned()) {
+                Object value = stack[fp + slot];
+                if (value == UNINITIALIZED) continue;
+
+                // Assigned by name, which copies a binding a fork still shares instead of writing it.
+                environment.assign(variables.get(slot - code.first()), value);
+            }
+
+            release(base);
+        }
+
+        return true;
+    }
+
+    private static Object valueOf(Value binding) {
+        return binding instanceof Value.Initialized initialized ? initialized.value : UNINITIALIZED;
+    }
+
+    // Drops the compiled loop, which is compiled again without the failed speculation once it gets hot again.
+    private boolean deoptimize(LoopProfile profile, int slot, String reason) {
+        profile.compiled = null;
+        profile.deoptimizations++;
+        if (slot >= 0) profile.unstable.add(slot);
+
+        if (profile.deoptimizations >= deoptimizationLimit) {
+            log(profile, "deoptimized, " + reason + ", and stays interpreted");
+            profile.disable();
+        } else {
+            log(profile, "deoptimized, " + reason);
+            profile.backEdges = 0;
+        }
+
+        return false;
+    }
+
+    private void log(LoopProfile profile, String event) {
+        if (tierLog != null) tierLog.println("[line " + profile.line + "] loop " + event);
+    }
+
     @Override
     public Void visitBlockStmt(Stmt.Block stmt) {
+        // A block which declares nothing can't be observed to have its own scope.
+        if (!declaresNames(stmt.statements)) {
+            executeBlock(stmt.statements, environment);
+            return null;
+        }
+
         executeBlock(stmt.statements, new Environment(environment));
         return null;
     }
 
-    private boolean isEqual(Object a, Object b) {
+    @Override
+    public Void visitCountedLoopStmt(Stmt.CountedLoop stmt) {
+        Environment previous = this.environment;
+
+        try {
+            this.environment = new Environment(previous);
+
+            Stmt.Var var = (Stmt.Var) stmt.initializer;
+            Object start = evaluate(var.initializer);
+            environment.define(var.name, start);
+
+            // Anything but numbers takes the generic path, which also raises the same errors at the same point.
+            if (!Numbers.isNumber(start)) {
+                execute(stmt.fallback);
+                return null;
+            }
+
+            Object bound = evaluate(stmt.bound);
+
+            if (!Numbers.isNumber(bound)) {
+                execute(stmt.fallback);
+                return null;
+            }
+
+            // The body can read the induction variable but never assigns it, so its binding is only written here.
+            Value.Initialized binding = environment.get(var.name);
+            double limit = Numbers.toDouble(bound);
+            double i = Numbers.toDouble(start);
+
+            // An integer start with an integer step only ever reaches integers, which are kept as longs.
+            boolean integral = start instanceof Long && stmt.step == (long) stmt.step;
+
+            // Same scope reuse as visitWhileStmt. The fallback loop runs the same body.
+            LoopProfile profile = ((Stmt.While) stmt.fallback).profile;
+            Environment scope = stmt.body instanceof Stmt.Block body && declaresNames(body.statements)
+                    && !profile.capturesScope(body) ? new Environment(environment) : null;
+
+            while (!returning && compare(stmt.operator.type(), i, limit)) {
+                if (scope != null) {
+                    scope.reset();
+                    executeBlock(((Stmt.Block) stmt.body).statements, scope);
+                } else {
+                    execute(stmt.body);
+                }
+
+                i += stmt.step;
+                binding.value = integral ? Numbers.valueOf(i) : i;
+            }
+        } finally {
+            this.environment = previous;
+        }
+
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        environment.define(stmt.name, new LoxFunction(stmt, environment));
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        LoxClass superclass = null;
+
+        if (stmt.superclass != null) {
+            if (!(evaluate(stmt.superclass) instanceof LoxClass loxClass))
+                throw new LoxRuntimeError(((Expr.Variable) stmt.superclass).name, "Superclass must be a class.");
+
+            superclass = loxClass;
+        }
+
+        environment.define(stmt.name, new LoxClass(stmt.name.lexeme(), superclass, methods(stmt, superclass)));
+        return null;
+    }
+
+    private Map<String, LoxClass.Method> methods(Stmt.Class stmt, LoxClass superclass) {
+        Environment closure = environment;
+
+        if (superclass != null) {
+            closure = new Environment(environment);
+            closure.define(LoxClass.SUPER, superclass);
+        }
+
+        Map<String, LoxClass.Method> methods = new HashMap<>();
+
+        for (Stmt method : stmt.methods) {
+            Stmt.Function declaration = (Stmt.Function) method;
+            String name = declaration.name.lexeme();
+
+            methods.put(name, new LoxFunction(declaration, closure, null, name.equals("init")));
+        }
+
+        return methods;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        returnValue = stmt.value == null ? null : evaluate(stmt.value);
+        returning = true;
+        return null;
+    }
+
+    @Override
+    public Void visitLocalVarStmt(Stmt.LocalVar stmt) {
+        Object value = stmt.initializer == null ? null : evaluate(stmt.initializer);
+
+        // Like Environment.define, a variable declared as nil counts as uninitialized.
+        stack[fp + stmt.slot] = value == null ? UNINITIALIZED : value;
+        return null;
+    }
+
+    private static boolean compare(TokenType operator, double left, double right) {
+        return switch (operator) {
+            case LESS -> left < right;
+            case LESS_EQUAL -> left <= right;
+            case GREATER -> left > right;
+            case GREATER_EQUAL -> left >= right;
+
+            // Unreachable
+            default -> false;
+        };
+    }
+
+    // Whether the statements declare a name in the scope they run in: a variable, a function or a class.
+    static boolean declaresNames(List<Stmt> statements) {
+        for (int i = 0; i < statements.size(); i++) {
+            int kind = statements.get(i).kind;
+            if (kind == Stmt.VAR || kind == Stmt.FUNCTION || kind == Stmt.CLASS) return true;
+        }
+
+        return false;
+    }
+
+    // Whether running the statement may declare a function or a class, which capture the environment they are
+    // declared in. Unparsed blocks are assumed to.
+    static boolean declaresClosures(Stmt stmt) {
+        Deque<Stmt> pending = new ArrayDeque<>();
+        pending.push(stmt);
+
+        while (!pending.isEmpty()) {
+            Stmt next = pending.pop();
+
+            if (next.kind == Stmt.FUNCTION || next.kind == Stmt.CLASS) return true;
+            if (next instanceof Stmt.Block block && Parser.LazyBlock.isDeferred(block)) return true;
+
+            next.forEachChild(expr -> {
+            }, pending::push);
+        }
+
+        return false;
+    }
+
+    static boolean isEqual(Object a, Object b) {
         if (a == null & b == null) return true;
         if (a == null) return false;
+        if (Numbers.isNumber(a) && Numbers.isNumber(b)) return Numbers.equals(a, b);
         return a.equals(b);
     }
 
-    private String stringify(Object object) {
+    String stringify(Object object) {
         if (object == null) return "nil";
 
-        if (object instanceof Double) {
-            String text = object.toString();
-            if (text.endsWith(".0")) {
-                text = text.substring(0, text.length() - 2);
-            }
-            return text;
-        }
+        if (Numbers.isNumber(object)) return Numbers.format(object);
 
         return object.toString();
     }
 
-    private boolean isTruthy(Object object) {
+    boolean isTruthy(Object object) {
         if (object == null) return false;
         if (object instanceof Boolean) return (boolean) object;
         return true;
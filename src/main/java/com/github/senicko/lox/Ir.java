@@ -0,0 +1,308 @@
+package com.github.senicko.lox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// A function body in SSA form. Expressions are broken into instructions, kept in evaluation order in the regions
+// of the body's structured control flow, and every instruction remembers the expression it was a child of, so the
+// body can be turned back into a tree. The slots of the frame stay what variables are: an assignment stores a new
+// version of its slot, and a read is a use of the value the slot's current version holds, made through that
+// version. Branches and loops merge the versions of their slots into new ones, which hold a phi where the merged
+// values differ.
+final class Ir {
+    enum Op {
+        // Values which aren't computed by an instruction.
+        CONSTANT, ENTRY, UNDEFINED, PHI, CLOBBERED, INDUCTION,
+
+        // Operators, which have no effect besides their result and the errors they may raise.
+        UNARY, BINARY, NUMBER_BINARY, NUMBER_NEGATE, CONCAT,
+
+        // A slot assignment, which evaluates to the value it stores.
+        STORE,
+
+        // Any other expression, rebuilt around its operands, and the expressions kept as they are because they
+        // evaluate their operands conditionally or out of child order.
+        OPAQUE, VERBATIM,
+
+        // Statements. EVAL is a statement which only reads a slot, which fails if the slot is uninitialized.
+        PRINT, RETURN, EVAL
+    }
+
+    interface Node {
+    }
+
+    static final class Value implements Node {
+        final int id;
+        final Op op;
+
+        // The operator, the assigned variable, or the keyword of a return.
+        final Token token;
+
+        final Object constant;
+        final Expr template;
+        final List<Use> operands = new ArrayList<>();
+
+        // Where the instruction is evaluated, null for values which aren't instructions.
+        Region region;
+
+        // The use by the expression the instruction was a child of.
+        Use parent;
+
+        // A store's slot and whether it declares the variable.
+        int slot;
+        boolean declaration;
+
+        // The versions which hold the value, oldest first, and for VERBATIM the versions of the slots it reads.
+        final List<Version> versions = new ArrayList<>();
+        final List<Version> reads = new ArrayList<>();
+
+        // Stores inserted by strength reduction, which nothing reads through a version.
+        boolean keep = false;
+
+        boolean live = false;
+        boolean removed = false;
+
+        // The slot the value is kept in for uses other than its parent's, or -1.
+        int temp = -1;
+
+        Value(int id, Op op, Token token, Object constant, Expr template) {
+            this.id = id;
+            this.op = op;
+            this.token = token;
+            this.constant = constant;
+            this.template = template;
+        }
+
+        boolean isInstruction() {
+            return op.compareTo(Op.UNARY) >= 0;
+        }
+
+        // The value an expression evaluating to this one has, which for an assignment is the value it stores.
+        Value canonical() {
+            Value value = this;
+            while (value.op == Op.STORE && !value.operands.isEmpty()) value = value.operands.get(0).value;
+            return value;
+        }
+
+        boolean isLong() {
+            return op == Op.CONSTANT && constant instanceof Long;
+        }
+    }
+
+    // An operand of an instruction, or the condition of a branch or a loop, which have no user.
+    static final class Use {
+        final Value user;
+        final Region region;
+        Value value;
+
+        // The version a read went through, which the lowered use reads the slot of.
+        Version via;
+
+        // Reads of a version which may be uninitialized, which have to stay reads of that slot.
+        final boolean pinned;
+
+        final Token name;
+
+        Use(Value user, Region region, Value value, Version via, boolean pinned, Token name) {
+            this.user = user;
+            this.region = region;
+            this.value = value;
+            this.via = via;
+            this.pinned = pinned;
+            this.name = name;
+        }
+
+        Region region() {
+            return user != null ? user.region : region;
+        }
+    }
+
+    static final class Version {
+        final int slot;
+        final Value value;
+
+        // Whether the slot may be uninitialized, in which case reading it fails.
+        final boolean guarded;
+
+        // The store or the expression which wrote the version, if it wasn't merged from others.
+        final Value store;
+
+        final Region region;
+        final List<Version> sources;
+
+        boolean needed = false;
+
+        Version(int slot, Value value, boolean guarded, Value store, Region region, List<Version> sources) {
+            this.slot = slot;
+            this.value = value;
+            this.guarded = guarded;
+            this.store = store;
+            this.region = region;
+            this.sources = sources;
+        }
+    }
+
+    // A straight line of nodes, which a return terminates.
+    static final class Region {
+        final Region parent;
+
+        // The innermost loop whose condition or body the region is part of.
+        final Loop loop;
+
+        final List<Node> nodes = new ArrayList<>();
+        boolean terminated = false;
+
+        Region(Region parent, Loop loop) {
+            this.parent = parent;
+            this.loop = loop;
+        }
+
+        boolean isIn(Loop target) {
+            for (Loop enclosing = loop; enclosing != null; enclosing = enclosing.outer) {
+                if (enclosing == target) return true;
+            }
+
+            return false;
+        }
+    }
+
+    static final class If implements Node {
+        Use condition;
+        final Region thenBranch;
+        final Region elseBranch;
+
+        If(Region parent) {
+            this.thenBranch = new Region(parent, parent.loop);
+            this.elseBranch = new Region(parent, parent.loop);
+        }
+    }
+
+    static final class Loop implements Node {
+        final Loop outer;
+
+        // Instructions hoisted out of the loop, evaluated once before it.
+        final Region preheader;
+        final Region condition;
+        final Region body;
+        Use test;
+
+        // The versions of the slots when the loop is entered, and those its head merges for the slots it assigns.
+        final Version[] entry;
+        final Map<Integer, Version> head = new HashMap<>();
+
+        // The profile of the loop it was built from, which the lowered loop keeps.
+        final LoopProfile profile;
+
+        Loop(Region parent, Version[] entry, LoopProfile profile) {
+            this.outer = parent.loop;
+            this.profile = profile;
+            this.preheader = new Region(parent, parent.loop);
+            this.condition = new Region(parent, this);
+            this.body = new Region(condition, this);
+            this.entry = entry;
+        }
+    }
+
+    final Stmt.Function function;
+    final Region body = new Region(null, null);
+    final Map<Object, Value> constants = new HashMap<>();
+    int slots;
+    private int values = 0;
+
+    Ir(Stmt.Function function) {
+        this.function = function;
+        this.slots = function.slots;
+    }
+
+    Value value(Op op, Token token) {
+        return new Value(values++, op, token, null, null);
+    }
+
+    Value value(Op op, Token token, Expr template) {
+        return new Value(values++, op, token, null, template);
+    }
+
+    // Constants are shared, so equal constants are the same value.
+    Value constant(Object constant) {
+        return constants.computeIfAbsent(constant, key -> new Value(values++, Op.CONSTANT, null, key, null));
+    }
+
+    String dump() {
+        StringBuilder out = new StringBuilder();
+        out.append("fun ").append(function.name.lexeme()).append(" (").append(slots).append(" slots)\n");
+        dump(body, 1, out);
+        return out.toString();
+    }
+
+    private void dump(Region region, int depth, StringBuilder out) {
+        for (Node node : region.nodes) {
+            if (node instanceof Value value) {
+                indent(depth, out).append(describe(value)).append('\n');
+            } else if (node instanceof If branch) {
+                indent(depth, out).append("if ").append(name(branch.condition)).append('\n');
+                dump(branch.thenBranch, depth + 1, out);
+
+                if (!branch.elseBranch.nodes.isEmpty()) {
+                    indent(depth, out).append("else\n");
+                    dump(branch.elseBranch, depth + 1, out);
+                }
+            } else if (node instanceof Loop loop) {
+                if (!loop.preheader.nodes.isEmpty()) {
+                    indent(depth, out).append("preheader\n");
+                    dump(loop.preheader, depth + 1, out);
+                }
+
+                indent(depth, out).append("loop");
+
+                for (Version version : loop.head.values()) {
+                    if (version.value.op == Op.PHI) out.append(' ').append(name(version.value)).append(" = phi");
+                }
+
+                out.append('\n');
+                dump(loop.condition, depth + 1, out);
+                indent(depth + 1, out).append("while ").append(name(loop.test)).append('\n');
+                dump(loop.body, depth + 1, out);
+            }
+        }
+    }
+
+    private static StringBuilder indent(int depth, StringBuilder out) {
+        return out.append("  ".repeat(depth));
+    }
+
+    private static String describe(Value value) {
+        StringBuilder out = new StringBuilder(name(value)).append(" = ");
+
+        switch (value.op) {
+            case STORE -> out.append(value.declaration ? "var " : "set ").append(value.token.lexeme()).append('@').append(value.slot);
+            case OPAQUE -> out.append("opaque ").append(value.template.getClass().getSimpleName().toLowerCase());
+            case VERBATIM -> out.append("verbatim ").append(value.template.getClass().getSimpleName().toLowerCase());
+            case PRINT, RETURN, EVAL -> out.append(value.op.name().toLowerCase());
+            case NUMBER_BINARY -> out.append("number ").append(value.token.lexeme());
+            default -> out.append(value.token.lexeme());
+        }
+
+        for (Use use : value.operands) out.append(' ').append(name(use));
+        if (value.temp >= 0) out.append(" -> @").append(value.temp);
+
+        return out.toString();
+    }
+
+    private static String name(Use use) {
+        if (use.via != null && use.value.op != Op.CONSTANT) return name(use.value) + "@" + use.via.slot;
+        return name(use.value);
+    }
+
+    private static String name(Value value) {
+        return switch (value.op) {
+            case CONSTANT -> value.constant == null ? "nil"
+                    : value.constant instanceof String ? "\"" + value.constant + "\""
+                    : Numbers.isNumber(value.constant) ? Numbers.format(value.constant) : value.constant.toString();
+            case ENTRY -> "entry" + value.id;
+            case UNDEFINED -> "undefined";
+            default -> "v" + value.id;
+        };
+    }
+}
@@ -0,0 +1,484 @@
+package com.github.senicko.lox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+// Builds the SSA form of a function body, numbering values as it goes: an operator whose operands are values an
+// equal operator already computed, on every path to it, is that operator's value, and one whose operands are all
+// constants is folded. A read of a slot which still holds the value it reads through an older version, reads that
+// version, and a read of a constant is the constant, so copies of a value and of constants are propagated.
+final class IrBuilder {
+    // A body this form can't describe, which is then left as it is.
+    static final class Unsupported extends RuntimeException {
+        Unsupported() {
+            super(null, null, false, false);
+        }
+    }
+
+    // An evaluated expression: its value, how it was read, and whether its instruction was created for it.
+    private record Operand(Ir.Value value, Ir.Version via, boolean pinned, Token name, boolean fresh) {
+    }
+
+    private record Key(Ir.Op op, TokenType operator, Ir.Value left, Ir.Value right) {
+    }
+
+    private final Ir ir;
+    private Ir.Version[] current;
+    private Ir.Region region;
+    private Ir.Loop loop = null;
+
+    // The operators computed on every path to the current point. The log undoes the entries of a branch.
+    private final Map<Key, Ir.Value> computed = new HashMap<>();
+    private final List<Key> log = new ArrayList<>();
+
+    int numbered = 0;
+    int folded = 0;
+
+    private IrBuilder(Ir ir) {
+        this.ir = ir;
+        this.region = ir.body;
+    }
+
+    static IrBuilder build(Ir ir, boolean method) {
+        IrBuilder builder = new IrBuilder(ir);
+        Stmt.Function function = ir.function;
+        int entries = function.params.size() + (method ? 1 : 0);
+
+        builder.current = new Ir.Version[function.slots];
+
+        for (int slot = 0; slot < function.slots; slot++) {
+            boolean entry = slot < entries;
+            Ir.Value value = ir.value(entry ? Ir.Op.ENTRY : Ir.Op.UNDEFINED, null);
+            Ir.Version version = new Ir.Version(slot, value, !entry, null, null, List.of());
+
+            value.versions.add(version);
+            builder.current[slot] = version;
+        }
+
+        builder.statements(function.body);
+        return builder;
+    }
+
+    private void statements(List<Stmt> statements) {
+        for (Stmt stmt : statements) {
+            // Whatever follows a return never runs.
+            if (region.terminated) return;
+            statement(stmt);
+        }
+    }
+
+    private void statement(Stmt stmt) {
+        switch (stmt.kind) {
+            case Stmt.EXPRESSION -> {
+                Operand operand = expression(((Stmt.Expression) stmt).expression);
+
+                // An instruction is evaluated where it was created. A read only matters if it may fail.
+                if (!operand.fresh && operand.pinned) use(instruction(Ir.Op.EVAL, operand.name), operand);
+            }
+            case Stmt.PRINT -> {
+                Operand operand = expression(((Stmt.Print) stmt).expression);
+                use(instruction(Ir.Op.PRINT, null), operand);
+            }
+            case Stmt.RETURN -> {
+                Stmt.Return ret = (Stmt.Return) stmt;
+                Operand operand = ret.value == null ? null : expression(ret.value);
+                Ir.Value instruction = instruction(Ir.Op.RETURN, ret.keyword);
+
+                if (operand != null) use(instruction, operand);
+                region.terminated = true;
+            }
+            case Stmt.LOCAL_VAR -> {
+                Stmt.LocalVar var = (Stmt.LocalVar) stmt;
+                Operand operand = var.initializer == null ? null : expression(var.initializer);
+                Ir.Value store = instruction(Ir.Op.STORE, var.name);
+
+                store.slot = var.slot;
+                store.declaration = true;
+                if (operand != null) use(store, operand);
+
+                // A variable declared as nil is uninitialized.
+                Ir.Value value = operand == null ? ir.constant(null) : store.canonical();
+                define(var.slot, value, operand == null || !isNonNil(value), store, List.of());
+            }
+            case Stmt.BLOCK -> statements(((Stmt.Block) stmt).statements);
+            case Stmt.IF -> branch((Stmt.If) stmt);
+            case Stmt.WHILE -> loop((Stmt.While) stmt);
+            default -> throw new Unsupported();
+        }
+    }
+
+    private void branch(Stmt.If stmt) {
+        Operand condition = expression(stmt.condition);
+        Ir.Region outer = region;
+        Ir.If branch = new Ir.If(outer);
+
+        branch.condition = structural(condition);
+        outer.nodes.add(branch);
+
+        Ir.Version[] before = current.clone();
+        int mark = log.size();
+
+        region = branch.thenBranch;
+        statement(stmt.thenBranch);
+        Ir.Version[] then = current;
+        undo(mark);
+
+        current = before.clone();
+        region = branch.elseBranch;
+        if (stmt.elseBranch != null) statement(stmt.elseBranch);
+        Ir.Version[] otherwise = current;
+        undo(mark);
+
+        region = outer;
+
+        if (branch.thenBranch.terminated && branch.elseBranch.terminated) {
+            region.terminated = true;
+        } else if (branch.thenBranch.terminated) {
+            current = otherwise;
+        } else if (branch.elseBranch.terminated) {
+            current = then;
+        } else {
+            current = new Ir.Version[then.length];
+
+            for (int slot = 0; slot < then.length; slot++) {
+                current[slot] = then[slot] == otherwise[slot] ? then[slot] : merge(slot, then[slot], otherwise[slot]);
+            }
+        }
+    }
+
+    private Ir.Version merge(int slot, Ir.Version left, Ir.Version right) {
+        Ir.Value value = left.value;
+
+        if (left.value != right.value) {
+            value = ir.value(Ir.Op.PHI, null);
+            value.region = region;
+            value.operands.add(new Ir.Use(value, null, left.value, left, false, null));
+            value.operands.add(new Ir.Use(value, null, right.value, right, false, null));
+        }
+
+        Ir.Version version = new Ir.Version(slot, value, left.guarded || right.guarded, null, region, List.of(left, right));
+        value.versions.add(version);
+        return version;
+    }
+
+    private void loop(Stmt.While stmt) {
+        Ir.Region outer = region;
+        Ir.Loop node = new Ir.Loop(outer, current.clone(), stmt.profile);
+        outer.nodes.add(node);
+
+        // The head merges every slot the loop assigns before knowing what the body assigns it, so each of them
+        // gets a phi up front.
+        Set<Integer> assigned = new TreeSet<>();
+        Set<Integer> declared = new TreeSet<>();
+        assignments(stmt.condition, assigned);
+        assignments(stmt.body, assigned, declared);
+
+        for (int slot : assigned) {
+            Ir.Version entry = current[slot];
+            Ir.Value phi = ir.value(Ir.Op.PHI, null);
+            phi.region = node.condition;
+            phi.operands.add(new Ir.Use(phi, null, entry.value, entry, false, null));
+
+            // A variable the body declares is uninitialized again until its declaration runs.
+            List<Ir.Version> sources = new ArrayList<>(List.of(entry));
+            Ir.Version head = new Ir.Version(slot, phi, entry.guarded || declared.contains(slot), null, node.condition, sources);
+
+            phi.versions.add(head);
+            node.head.put(slot, head);
+            current[slot] = head;
+        }
+
+        Ir.Loop enclosing = loop;
+        loop = node;
+        region = node.condition;
+
+        node.test = structural(expression(stmt.condition));
+        Ir.Version[] exit = current.clone();
+        int mark = log.size();
+
+        region = node.body;
+        statement(stmt.body);
+
+        if (!node.body.terminated) {
+            for (Map.Entry<Integer, Ir.Version> head : node.head.entrySet()) {
+                Ir.Version back = current[head.getKey()];
+                Ir.Value phi = head.getValue().value;
+
+                head.getValue().sources.add(back);
+                phi.operands.add(new Ir.Use(phi, null, back.value, back, false, null));
+            }
+        }
+
+        // The body's values don't dominate what follows the loop, the condition's do.
+        undo(mark);
+        loop = enclosing;
+        region = outer;
+        current = exit;
+    }
+
+    private static void assignments(Stmt stmt, Set<Integer> assigned, Set<Integer> declared) {
+        if (stmt instanceof Stmt.LocalVar var) {
+            assigned.add(var.slot);
+            declared.add(var.slot);
+        }
+
+        stmt.forEachChild(expr -> assignments(expr, assigned), child -> assignments(child, assigned, declared));
+    }
+
+    private static void assignments(Expr expr, Set<Integer> assigned) {
+        if (expr instanceof Expr.LocalAssign assignment) assigned.add(assignment.slot);
+        expr.forEachChild(child -> assignments(child, assigned), stmt -> {
+        });
+    }
+
+    private Operand expression(Expr expr) {
+        switch (expr.kind) {
+            case Expr.LITERAL -> {
+                return constant(ir.constant(((Expr.Literal) expr).value));
+            }
+            case Expr.GROUPING -> {
+                return expression(((Expr.Grouping) expr).expression);
+            }
+            case Expr.LOCAL -> {
+                Expr.Local local = (Expr.Local) expr;
+                return read(local.name, local.slot);
+            }
+            case Expr.LOCAL_ASSIGN -> {
+                Expr.LocalAssign assignment = (Expr.LocalAssign) expr;
+                Operand operand = expression(assignment.value);
+                Ir.Value store = instruction(Ir.Op.STORE, assignment.name);
+
+                store.slot = assignment.slot;
+                use(store, operand);
+
+                // Unlike a declaration, an assignment stores nil as it is.
+                define(assignment.slot, store.canonical(), false, store, List.of());
+                return fresh(store);
+            }
+            case Expr.UNARY -> {
+                Expr.Unary unary = (Expr.Unary) expr;
+                return operator(Ir.Op.UNARY, unary.operator, expression(unary.right), null);
+            }
+            case Expr.NUMBER_NEGATE -> {
+                Expr.NumberNegate negate = (Expr.NumberNegate) expr;
+                return operator(Ir.Op.NUMBER_NEGATE, negate.operator, expression(negate.right), null);
+            }
+            case Expr.BINARY -> {
+                Expr.Binary binary = (Expr.Binary) expr;
+                Operand left = expression(binary.left);
+                return operator(Ir.Op.BINARY, binary.operator, left, expression(binary.right));
+            }
+            case Expr.NUMBER_BINARY -> {
+                Expr.NumberBinary binary = (Expr.NumberBinary) expr;
+                Operand left = expression(binary.left);
+                return operator(Ir.Op.NUMBER_BINARY, binary.operator, left, expression(binary.right));
+            }
+            case Expr.CONCAT -> {
+                Expr.Concat concat = (Expr.Concat) expr;
+                Operand left = expression(concat.left);
+                return operator(Ir.Op.CONCAT, concat.operator, left, expression(concat.right));
+            }
+            case Expr.LOGICAL, Expr.TERNARY, Expr.MAP_LITERAL -> {
+                return verbatim(expr);
+            }
+            default -> {
+                // Evaluated in child order, like everything the interpreter evaluates without recursion.
+                List<Operand> operands = new ArrayList<>();
+                expr.forEachChild(child -> operands.add(expression(child)), stmt -> {
+                    throw new Unsupported();
+                });
+
+                Ir.Value instruction = instruction(Ir.Op.OPAQUE, null, expr);
+                for (Operand operand : operands) use(instruction, operand);
+
+                return fresh(instruction);
+            }
+        }
+    }
+
+    private Operand read(Token name, int slot) {
+        Ir.Version version = current[slot];
+
+        if (version.guarded) return new Operand(version.value, version, true, name, false);
+        if (version.value.op == Ir.Op.CONSTANT) return constant(version.value);
+
+        return new Operand(version.value, available(version.value, version), false, name, false);
+    }
+
+    // The oldest version of the value its slot still holds, or the fallback.
+    private Ir.Version available(Ir.Value value, Ir.Version fallback) {
+        for (Ir.Version version : value.versions) {
+            if (!version.guarded && current[version.slot] == version) return version;
+        }
+
+        return fallback;
+    }
+
+    private Operand operator(Ir.Op op, Token operator, Operand left, Operand right) {
+        Ir.Value a = left.value.canonical();
+        Ir.Value b = right == null ? null : right.value.canonical();
+
+        // An operator evaluating an assignment is kept, which keeps the store evaluated where its operands are.
+        if (a != left.value || (right != null && b != right.value)) return fresh(instruction(op, operator, left, right));
+
+        if (IrOptimizer.isPure(op, operator, b)) {
+            Object folded = fold(op, operator, a, b);
+
+            if (folded != NOT_CONSTANT) {
+                this.folded++;
+                return constant(ir.constant(folded));
+            }
+        }
+
+        Key key = null;
+
+        if (IrOptimizer.isNumbered(op, operator)) {
+            // Commutative operators are numbered with their operands in one order.
+            if (b != null && IrOptimizer.isCommutative(op, operator) && b.id < a.id) key = new Key(op, operator.type(), b, a);
+            else key = new Key(op, operator.type(), a, b);
+
+            Ir.Value leader = computed.get(key);
+
+            if (leader != null) {
+                numbered++;
+                return new Operand(leader, available(leader, null), false, null, false);
+            }
+        }
+
+        Ir.Value instruction = instruction(op, operator, left, right);
+
+        if (key != null) {
+            computed.put(key, instruction);
+            log.add(key);
+        }
+
+        return fresh(instruction);
+    }
+
+    private Ir.Value instruction(Ir.Op op, Token operator, Operand left, Operand right) {
+        Ir.Value instruction = instruction(op, operator);
+        use(instruction, left);
+        if (right != null) use(instruction, right);
+        return instruction;
+    }
+
+    private static final Object NOT_CONSTANT = new Object();
+
+    private static Object fold(Ir.Op op, Token operator, Ir.Value left, Ir.Value right) {
+        if (left.op != Ir.Op.CONSTANT || (right != null && right.op != Ir.Op.CONSTANT)) return NOT_CONSTANT;
+
+        Object a = left.constant;
+        Object b = right == null ? null : right.constant;
+
+        return switch (op) {
+            case NUMBER_NEGATE -> Numbers.negate(a);
+            case CONCAT -> (String) a + (String) b;
+            case UNARY -> !isTruthy(a);
+            case BINARY -> operator.type() == TokenType.EQUAL_EQUAL ? Interpreter.isEqual(a, b) : !Interpreter.isEqual(a, b);
+            case NUMBER_BINARY -> switch (operator.type()) {
+                case PLUS -> Numbers.add(a, b);
+                case MINUS -> Numbers.subtract(a, b);
+                case STAR -> Numbers.multiply(a, b);
+                case SLASH -> Numbers.valueOf(Numbers.toDouble(a) / Numbers.toDouble(b));
+                case GREATER -> Numbers.toDouble(a) > Numbers.toDouble(b);
+                case GREATER_EQUAL -> Numbers.toDouble(a) >= Numbers.toDouble(b);
+                case LESS -> Numbers.toDouble(a) < Numbers.toDouble(b);
+                case LESS_EQUAL -> Numbers.toDouble(a) <= Numbers.toDouble(b);
+                default -> NOT_CONSTANT;
+            };
+            default -> NOT_CONSTANT;
+        };
+    }
+
+    private static boolean isTruthy(Object value) {
+        if (value == null) return false;
+        if (value instanceof Boolean bool) return bool;
+        return true;
+    }
+
+    // A logical, a ternary or a map literal is kept as it is, and treated as reading every slot it mentions at the
+    // point it starts and as leaving any slot it assigns holding an unknown value.
+    private Operand verbatim(Expr expr) {
+        Set<Integer> read = new TreeSet<>();
+        Set<Integer> assigned = new TreeSet<>();
+        slots(expr, read, assigned);
+
+        Ir.Value instruction = instruction(Ir.Op.VERBATIM, null, expr);
+
+        for (int slot : read) instruction.reads.add(current[slot]);
+
+        for (int slot : assigned) {
+            Ir.Version before = current[slot];
+            Ir.Value clobbered = ir.value(Ir.Op.CLOBBERED, null);
+            clobbered.region = region;
+
+            current[slot] = new Ir.Version(slot, clobbered, before.guarded, instruction, region, List.of(before));
+            clobbered.versions.add(current[slot]);
+        }
+
+        return fresh(instruction);
+    }
+
+    private static void slots(Expr expr, Set<Integer> read, Set<Integer> assigned) {
+        if (expr instanceof Expr.Local local) read.add(local.slot);
+        if (expr instanceof Expr.LocalAssign assignment) assigned.add(assignment.slot);
+
+        expr.forEachChild(child -> slots(child, read, assigned), stmt -> {
+            throw new Unsupported();
+        });
+    }
+
+    private void define(int slot, Ir.Value value, boolean guarded, Ir.Value store, List<Ir.Version> sources) {
+        Ir.Version version = new Ir.Version(slot, value, guarded, store, region, sources);
+        value.versions.add(version);
+        current[slot] = version;
+    }
+
+    // Whether the value can't be nil, which a declaration would store as uninitialized.
+    private static boolean isNonNil(Ir.Value value) {
+        return switch (value.op) {
+            case CONSTANT -> value.constant != null;
+            case UNARY, BINARY, NUMBER_BINARY, NUMBER_NEGATE, CONCAT -> true;
+            default -> false;
+        };
+    }
+
+    private Ir.Value instruction(Ir.Op op, Token token) {
+        return instruction(op, token, null);
+    }
+
+    private Ir.Value instruction(Ir.Op op, Token token, Expr template) {
+        Ir.Value instruction = ir.value(op, token, template);
+        instruction.region = region;
+        region.nodes.add(instruction);
+        return instruction;
+    }
+
+    private void use(Ir.Value user, Operand operand) {
+        Ir.Use use = new Ir.Use(user, null, operand.value, operand.via, operand.pinned, operand.name);
+        if (operand.fresh) operand.value.parent = use;
+        user.operands.add(use);
+    }
+
+    private Ir.Use structural(Operand operand) {
+        Ir.Use use = new Ir.Use(null, region, operand.value, operand.via, operand.pinned, operand.name);
+        if (operand.fresh) operand.value.parent = use;
+        return use;
+    }
+
+    private static Operand constant(Ir.Value constant) {
+        return new Operand(constant, null, false, null, false);
+    }
+
+    private static Operand fresh(Ir.Value instruction) {
+        return new Operand(instruction, null, false, null, true);
+    }
+
+    private void undo(int mark) {
+        while (log.size() > mark) computed.remove(log.remove(log.size() - 1));
+    }
+}
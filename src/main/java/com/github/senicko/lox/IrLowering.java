@@ -0,0 +1,141 @@
+package com.github.senicko.lox;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+// Turns a function body in SSA form back into statements. An instruction still evaluated where its parent
+// expression is becomes that expression's child again. One used anywhere else, which was numbered, hoisted or
+// left without its parent, is kept in a temporary slot: assigned where it is evaluated and read by its other
+// uses. Reads through a version read the version's slot, and constants become literals.
+final class IrLowering {
+    private final Ir ir;
+
+    private IrLowering(Ir ir) {
+        this.ir = ir;
+    }
+
+    static Stmt.Function lower(Ir ir) {
+        IrLowering lowering = new IrLowering(ir);
+        Stmt.Function function = ir.function;
+
+        IrOptimizer.forEachUse(ir.body, lowering::allocate);
+
+        List<Stmt> body = lowering.statements(ir.body);
+        return new Stmt.Function(function.name, function.params, body, ir.slots);
+    }
+
+    // Gives the value a temporary if the use can't read it any other way.
+    private void allocate(Ir.Use use) {
+        Ir.Value value = use.value;
+
+        if (use.via != null || !value.isInstruction() || isChild(use)) return;
+        if (value.op == Ir.Op.STORE) throw new IrBuilder.Unsupported();
+
+        if (value.temp < 0) value.temp = ir.slots++;
+    }
+
+    // Whether the use is by the expression the value was created as a child of, evaluated at the same place.
+    private static boolean isChild(Ir.Use use) {
+        Ir.Value value = use.value;
+        return value.parent == use && (use.user == null || !use.user.removed) && use.region() == value.region;
+    }
+
+    private List<Stmt> statements(Ir.Region region) {
+        List<Stmt> statements = new ArrayList<>();
+        statements(region, statements);
+        return statements;
+    }
+
+    private void statements(Ir.Region region, List<Stmt> statements) {
+        for (Ir.Node node : region.nodes) {
+            if (node instanceof Ir.If branch) {
+                Expr condition = expression(branch.condition);
+                List<Stmt> then = statements(branch.thenBranch);
+                List<Stmt> otherwise = statements(branch.elseBranch);
+
+                statements.add(new Stmt.If(condition, new Stmt.Block(then), otherwise.isEmpty() ? null : new Stmt.Block(otherwise)));
+            } else if (node instanceof Ir.Loop loop) {
+                statements(loop.preheader, statements);
+
+                // The condition has to stay a single expression.
+                if (!statements(loop.condition).isEmpty()) throw new IrBuilder.Unsupported();
+
+                Expr condition = expression(loop.test);
+                statements.add(new Stmt.While(condition, new Stmt.Block(statements(loop.body)), loop.profile));
+            } else {
+                Ir.Value value = (Ir.Value) node;
+                if (value.parent == null || !isChild(value.parent)) statements.add(statement(value));
+            }
+        }
+    }
+
+    private Stmt statement(Ir.Value value) {
+        return switch (value.op) {
+            case PRINT -> new Stmt.Print(expression(value.operands.get(0)));
+            case RETURN -> new Stmt.Return(value.token, value.operands.isEmpty() ? null : expression(value.operands.get(0)));
+            case STORE -> {
+                if (!value.declaration) yield new Stmt.Expression(tree(value));
+                yield new Stmt.LocalVar(value.token, value.slot, value.operands.isEmpty() ? null : expression(value.operands.get(0)));
+            }
+            default -> {
+                Expr expr = tree(value);
+
+                // An operator which was hoisted or numbered is computed into its temporary.
+                if (value.temp >= 0) expr = new Expr.LocalAssign(temporary(value), value.temp, expr);
+                yield new Stmt.Expression(expr);
+            }
+        };
+    }
+
+    private Expr expression(Ir.Use use) {
+        Ir.Value value = use.value;
+
+        if (use.via != null && (use.pinned || value.op != Ir.Op.CONSTANT)) {
+            return new Expr.Local(use.name != null ? use.name : name(use.via), use.via.slot);
+        }
+
+        if (value.op == Ir.Op.CONSTANT) return new Expr.Literal(value.constant);
+        if (isChild(use)) return tree(value);
+        if (value.temp >= 0) return new Expr.Local(temporary(value), value.temp);
+
+        throw new IrBuilder.Unsupported();
+    }
+
+    // The instruction as an expression, which assigns its temporary if it has one.
+    private Expr tree(Ir.Value value) {
+        Expr expr = switch (value.op) {
+            case UNARY -> new Expr.Unary(value.token, operand(value, 0));
+            case NUMBER_NEGATE -> new Expr.NumberNegate(value.token, operand(value, 0));
+            case BINARY -> new Expr.Binary(operand(value, 0), value.token, operand(value, 1));
+            case NUMBER_BINARY -> new Expr.NumberBinary(operand(value, 0), value.token, operand(value, 1));
+            case CONCAT -> new Expr.Concat(operand(value, 0), value.token, operand(value, 1));
+            case STORE -> new Expr.LocalAssign(value.token, value.slot, operand(value, 0));
+            case VERBATIM -> value.template;
+            case OPAQUE -> {
+                Iterator<Ir.Use> operands = value.operands.iterator();
+                yield value.template.withChildren(child -> expression(operands.next()), stmt -> stmt);
+            }
+            case EVAL -> operand(value, 0);
+            default -> throw new IrBuilder.Unsupported();
+        };
+
+        if (value.temp >= 0 && value.parent != null && isChild(value.parent)) return new Expr.LocalAssign(temporary(value), value.temp, expr);
+        return expr;
+    }
+
+    private Expr operand(Ir.Value value, int index) {
+        return expression(value.operands.get(index));
+    }
+
+    // Reads which the builder redirected to another version don't have a name of their own.
+    private static Token name(Ir.Version version) {
+        if (version.store != null && version.store.op == Ir.Op.STORE) return version.store.token;
+        return new Token(TokenType.IDENTIFIER, "$" + version.slot, null, 0);
+    }
+
+    private static Token temporary(Ir.Value value) {
+        int line = value.token != null ? value.token.line() : 0;
+        return new Token(TokenType.IDENTIFIER, "$t" + value.temp, null, line);
+    }
+}
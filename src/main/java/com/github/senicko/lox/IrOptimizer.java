@@ -0,0 +1,442 @@
+package com.github.senicko.lox;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.function.Consumer;
+
+// Optimizes function bodies in SSA form: values are numbered, constants folded and copies propagated while the
+// form is built (see IrBuilder), then loop invariant operators are hoisted in front of their loops, multiplies of
+// a loop's induction variable are reduced to additions, and what nothing needs is removed before the body is
+// lowered back into a tree. Only function and method bodies are optimized: their slots are private to the call,
+// so nothing but the body itself can assign them, while top level variables live in environments which any call
+// may assign.
+class IrOptimizer {
+    record Result(List<Stmt> statements, List<String> listing) {
+    }
+
+    private final List<String> listing;
+
+    private IrOptimizer(boolean list) {
+        this.listing = list ? new ArrayList<>() : null;
+    }
+
+    static List<Stmt> optimize(List<Stmt> statements) {
+        return optimize(statements, false).statements();
+    }
+
+    // With list set, the result holds the optimized form of every function and what was done to it.
+    static Result optimize(List<Stmt> statements, boolean list) {
+        IrOptimizer optimizer = new IrOptimizer(list);
+        List<Stmt> optimized = Stmt.rewriteAll(statements, optimizer::statement);
+        return new Result(optimized, optimizer.listing);
+    }
+
+    private Stmt statement(Stmt stmt) {
+        switch (stmt.kind) {
+            case Stmt.FUNCTION -> {
+                return function((Stmt.Function) stmt, false);
+            }
+            case Stmt.CLASS -> {
+                return stmt.withChildren(expr -> expr, method -> function((Stmt.Function) method, true));
+            }
+            case Stmt.BLOCK -> {
+                Stmt.Block block = (Stmt.Block) stmt;
+                if (Parser.LazyBlock.isDeferred(block)) return stmt;
+                return stmt.withChildren(expr -> expr, this::statement);
+            }
+            case Stmt.IF, Stmt.WHILE, Stmt.COUNTED_LOOP -> {
+                return stmt.withChildren(expr -> expr, this::statement);
+            }
+            default -> {
+                return stmt;
+            }
+        }
+    }
+
+    private Stmt function(Stmt.Function function, boolean method) {
+        Ir ir = new Ir(function);
+
+        try {
+            IrBuilder builder = IrBuilder.build(ir, method);
+            int hoisted = hoist(ir.body);
+            int reduced = reduce(ir, ir.body);
+            int removed = removeDead(ir);
+            Stmt.Function lowered = IrLowering.lower(ir);
+
+            if (listing != null) {
+                listing.add(ir.dump() + String.format("  %d numbered, %d folded, %d hoisted, %d reduced, %d removed",
+                        builder.numbered, builder.folded, hoisted, reduced, removed));
+            }
+
+            return lowered;
+        } catch (IrBuilder.Unsupported | StackOverflowError unsupported) {
+            // Bodies the form can't describe, or nested too deeply to analyze, are left as they are.
+            return function;
+        }
+    }
+
+    // Operators which have no effect besides their result and raise no errors, so they can be evaluated anywhere
+    // their operands are known, or not at all.
+    static boolean isPure(Ir.Op op, Token operator, Ir.Value right) {
+        return switch (op) {
+            case NUMBER_NEGATE, CONCAT -> true;
+            case NUMBER_BINARY -> operator.type() != TokenType.SLASH || isNonZero(right);
+            case UNARY -> operator.type() == TokenType.BANG;
+            case BINARY -> operator.type() == TokenType.EQUAL_EQUAL || operator.type() == TokenType.BANG_EQUAL;
+            default -> false;
+        };
+    }
+
+    static boolean isPure(Ir.Value value) {
+        if (!isPure(value.op, value.token, value.operands.size() > 1 ? value.operands.get(1).value.canonical() : null)) return false;
+
+        for (Ir.Use operand : value.operands) {
+            if (operand.pinned) return false;
+        }
+
+        return true;
+    }
+
+    private static boolean isNonZero(Ir.Value value) {
+        return value != null && value.op == Ir.Op.CONSTANT && Numbers.isNumber(value.constant) && !Numbers.isZero(value.constant);
+    }
+
+    // Operators whose result only depends on their operands, so an equal operator computed before has the same
+    // value. Those which may raise an error raise it at the first one. A '+' which isn't specialized may
+    // concatenate the text of an instance, whose fields may have changed in between.
+    static boolean isNumbered(Ir.Op op, Token operator) {
+        return switch (op) {
+            case UNARY, NUMBER_BINARY, NUMBER_NEGATE, CONCAT -> true;
+            case BINARY -> operator.type() != TokenType.PLUS;
+            default -> false;
+        };
+    }
+
+    static boolean isCommutative(Ir.Op op, Token operator) {
+        return switch (operator.type()) {
+            case PLUS, STAR -> op == Ir.Op.NUMBER_BINARY;
+            case EQUAL_EQUAL, BANG_EQUAL -> op == Ir.Op.BINARY;
+            default -> false;
+        };
+    }
+
+    // Loop invariant code motion. Inner loops are done first, so what they hoist may be hoisted further.
+    private static int hoist(Ir.Region region) {
+        int hoisted = 0;
+
+        for (Ir.Node node : List.copyOf(region.nodes)) {
+            if (node instanceof Ir.If branch) {
+                hoisted += hoist(branch.thenBranch) + hoist(branch.elseBranch);
+            } else if (node instanceof Ir.Loop loop) {
+                hoisted += hoist(loop.condition) + hoist(loop.body);
+                hoisted += hoist(loop, loop.condition) + hoist(loop, loop.body);
+            }
+        }
+
+        return hoisted;
+    }
+
+    // Moves the pure operators in the region, which is part of the loop, whose operands are all computed before
+    // the loop into its preheader. Operands come before the operators using them, so a single pass finds chains.
+    // The condition is evaluated whenever the loop is entered, so up to the first thing in it which may fail or
+    // has an effect, operators which may fail are hoisted too: they fail before the loop exactly when they would
+    // have failed entering it.
+    private static int hoist(Ir.Loop loop, Ir.Region region) {
+        int hoisted = 0;
+        boolean first = region == loop.condition;
+
+        for (Ir.Node node : List.copyOf(region.nodes)) {
+            if (node instanceof Ir.If branch) {
+                hoisted += hoist(loop, branch.thenBranch) + hoist(loop, branch.elseBranch);
+            } else if (node instanceof Ir.Loop inner) {
+                hoisted += hoist(loop, inner.preheader) + hoist(loop, inner.condition) + hoist(loop, inner.body);
+            } else if (node instanceof Ir.Value value) {
+                boolean pure = isPure(value);
+
+                if ((pure || first && isNumbered(value.op, value.token)) && isInvariant(loop, value)) {
+                    move(loop, value);
+                    hoisted++;
+                } else if (!pure) {
+                    first = false;
+                }
+            }
+        }
+
+        return hoisted;
+    }
+
+    private static void move(Ir.Loop loop, Ir.Value value) {
+        value.region.nodes.remove(value);
+        loop.preheader.nodes.add(value);
+        value.region = loop.preheader;
+
+        // Reads made through versions the loop writes are made through those the loop is entered with.
+        for (Ir.Use operand : value.operands) {
+            if (operand.via != null && loop.entry[operand.via.slot] != operand.via) operand.via = entryVersion(loop, operand.value);
+        }
+    }
+
+    private static boolean isInvariant(Ir.Loop loop, Ir.Value value) {
+        for (Ir.Use operand : value.operands) {
+            Ir.Value operandValue = operand.value;
+
+            if (operandValue.op == Ir.Op.CONSTANT) continue;
+            if (operandValue.region != null && operandValue.region.isIn(loop)) return false;
+            if (operand.via == null || loop.entry[operand.via.slot] == operand.via) continue;
+
+            // Read through a version the loop writes. An instruction computed before the loop can be kept in a
+            // temporary, other values have to be held by a slot when the loop is entered.
+            if (entryVersion(loop, operandValue) == null && !operandValue.canonical().isInstruction()) return false;
+        }
+
+        return true;
+    }
+
+    private static Ir.Version entryVersion(Ir.Loop loop, Ir.Value value) {
+        for (Ir.Version version : value.versions) {
+            if (!version.guarded && loop.entry[version.slot] == version) return version;
+        }
+
+        return null;
+    }
+
+    // Strength reduction. In a loop counting an integer i from a constant up to a constant bound by a constant
+    // step, i * c is i's value times c, which is kept in a slot of its own: it starts at the first value of i times
+    // c and grows by the step times c wherever i is incremented. Products are exact integers below 2^53, and c
+    // positive, so the sum is exactly the product the multiply would compute.
+    private static int reduce(Ir ir, Ir.Region region) {
+        int reduced = 0;
+
+        for (Ir.Node node : List.copyOf(region.nodes)) {
+            if (node instanceof Ir.If branch) {
+                reduced += reduce(ir, branch.thenBranch) + reduce(ir, branch.elseBranch);
+            } else if (node instanceof Ir.Loop loop) {
+                reduced += reduce(ir, loop.preheader) + reduce(ir, loop.condition) + reduce(ir, loop.body);
+                reduced += reduce(ir, loop);
+            }
+        }
+
+        return reduced;
+    }
+
+    private static int reduce(Ir ir, Ir.Loop loop) {
+        int reduced = 0;
+
+        for (Ir.Version head : loop.head.values()) {
+            Ir.Value induction = head.value;
+            if (head.sources.size() != 2) continue;
+
+            // var i = start; while (i < bound) { ...; i = i + step; ... }
+            Ir.Value start = head.sources.get(0).value;
+            Ir.Value store = head.sources.get(1).store;
+
+            // The increment has to be a statement of its own, so nothing in the loop runs between it and the update.
+            if (!start.isLong() || store == null || store.op != Ir.Op.STORE || store.region != loop.body || store.parent != null) continue;
+
+            Ir.Value increment = store.canonical();
+            if (!isOperator(increment, Ir.Op.NUMBER_BINARY, TokenType.PLUS, induction)) continue;
+
+            // The variable only holds integers, so the test compares the same whether it was specialized or not.
+            Ir.Value test = loop.test.value.canonical();
+            if (!isComparison(test, Ir.Op.NUMBER_BINARY, induction) && !isComparison(test, Ir.Op.BINARY, induction)) continue;
+
+            long first = (long) start.constant;
+            long step = (long) increment.operands.get(1).value.constant;
+            long bound = (long) test.operands.get(1).value.constant;
+            int position = loop.body.nodes.indexOf(store);
+
+            if (step <= 0 || position < 0) continue;
+
+            // The largest magnitude the variable reaches, with the last increment.
+            double largest = Math.max(Math.abs((double) first), Math.abs((double) bound) + step);
+
+            for (Ir.Value multiply : multiplies(loop, induction, increment, position)) {
+                Ir.Value factor = multiply.operands.get(1).value;
+                long scale = (long) factor.constant;
+
+                if (scale <= 0 || largest * scale > Numbers.MAX_EXACT) continue;
+
+                replace(ir, loop, multiply, first * scale, step * scale, position, increment.token);
+                position += 2;
+                reduced++;
+            }
+        }
+
+        return reduced;
+    }
+
+    private static boolean isComparison(Ir.Value test, Ir.Op op, Ir.Value induction) {
+        return isOperator(test, op, TokenType.LESS, induction) || isOperator(test, op, TokenType.LESS_EQUAL, induction);
+    }
+
+    // Whether the value is induction OPERATOR constant, with the induction variable read and an integer constant.
+    private static boolean isOperator(Ir.Value value, Ir.Op op, TokenType operator, Ir.Value induction) {
+        return value.op == op && value.token.type() == operator && value.operands.size() == 2
+                && value.operands.get(0).value == induction && value.operands.get(1).value.isLong();
+    }
+
+    // The multiplies of the variable by an integer constant, before it is incremented, and of the incremented
+    // value, after.
+    private static List<Ir.Value> multiplies(Ir.Loop loop, Ir.Value induction, Ir.Value increment, int position) {
+        List<Ir.Value> found = new ArrayList<>();
+        collect(loop.condition, induction, found);
+
+        for (int i = 0; i < loop.body.nodes.size(); i++) {
+            Ir.Region single = new Ir.Region(null, null);
+            single.nodes.add(loop.body.nodes.get(i));
+
+            if (i < position) collect(single, induction, found);
+            else if (i > position) collect(single, increment, found);
+        }
+
+        return found;
+    }
+
+    private static void collect(Ir.Region region, Ir.Value multiplied, List<Ir.Value> found) {
+        for (Ir.Node node : region.nodes) {
+            if (node instanceof Ir.If branch) {
+                collect(branch.thenBranch, multiplied, found);
+                collect(branch.elseBranch, multiplied, found);
+            } else if (node instanceof Ir.Loop inner) {
+                collect(inner.preheader, multiplied, found);
+                collect(inner.condition, multiplied, found);
+                collect(inner.body, multiplied, found);
+            } else if (node instanceof Ir.Value value && isOperator(value, Ir.Op.NUMBER_BINARY, TokenType.STAR, multiplied) && !value.operands.get(0).pinned) {
+                found.add(value);
+            }
+        }
+    }
+
+    private static void replace(Ir ir, Ir.Loop loop, Ir.Value multiply, long first, long step, int position, Token plus) {
+        int slot = ir.slots++;
+        Token name = new Token(TokenType.IDENTIFIER, "$i" + slot, null, plus.line());
+
+        Ir.Value product = ir.value(Ir.Op.INDUCTION, null);
+        Ir.Version version = new Ir.Version(slot, product, false, null, loop.condition, List.of());
+        product.versions.add(version);
+
+        // var $i = first;
+        Ir.Value declaration = ir.value(Ir.Op.STORE, name);
+        declaration.slot = slot;
+        declaration.declaration = true;
+        declaration.keep = true;
+        declaration.region = loop.preheader;
+        declaration.operands.add(new Ir.Use(declaration, null, ir.constant(Numbers.valueOf(first)), null, false, null));
+        loop.preheader.nodes.add(declaration);
+
+        // $i = $i + step; right after the increment.
+        Ir.Value sum = ir.value(Ir.Op.NUMBER_BINARY, plus);
+        sum.region = loop.body;
+        sum.operands.add(new Ir.Use(sum, null, product, version, false, name));
+        sum.operands.add(new Ir.Use(sum, null, ir.constant(Numbers.valueOf(step)), null, false, null));
+
+        Ir.Value update = ir.value(Ir.Op.STORE, name);
+        update.slot = slot;
+        update.keep = true;
+        update.region = loop.body;
+        sum.parent = new Ir.Use(update, null, sum, null, false, null);
+        update.operands.add(sum.parent);
+
+        loop.body.nodes.add(position + 1, sum);
+        loop.body.nodes.add(position + 2, update);
+
+        forEachUse(ir.body, use -> {
+            if (use.value == multiply) {
+                use.value = product;
+                use.via = version;
+            }
+        });
+
+        multiply.removed = true;
+        multiply.region.nodes.remove(multiply);
+    }
+
+    static void forEachUse(Ir.Region region, Consumer<Ir.Use> action) {
+        for (Ir.Node node : region.nodes) {
+            if (node instanceof Ir.If branch) {
+                action.accept(branch.condition);
+                forEachUse(branch.thenBranch, action);
+                forEachUse(branch.elseBranch, action);
+            } else if (node instanceof Ir.Loop loop) {
+                forEachUse(loop.preheader, action);
+                forEachUse(loop.condition, action);
+                action.accept(loop.test);
+                forEachUse(loop.body, action);
+            } else if (node instanceof Ir.Value value) {
+                for (Ir.Use operand : value.operands) action.accept(operand);
+            }
+        }
+    }
+
+    // Dead code elimination. Everything with an effect, which may fail, or which a branch or a loop tests is
+    // live, and so is whatever they use: the instructions computing their operands and the stores of the versions
+    // they read through, including the versions merged into those.
+    private static int removeDead(Ir ir) {
+        Deque<Object> pending = new ArrayDeque<>();
+        List<Ir.Value> instructions = new ArrayList<>();
+
+        collect(ir.body, instructions, pending);
+
+        while (!pending.isEmpty()) {
+            Object next = pending.pop();
+
+            if (next instanceof Ir.Use use) {
+                if (use.via != null) pending.push(use.via);
+                else if (use.value.isInstruction()) pending.push(use.value);
+            } else if (next instanceof Ir.Version version) {
+                if (version.needed) continue;
+                version.needed = true;
+
+                if (version.store != null) pending.push(version.store);
+                for (Ir.Version source : version.sources) pending.push(source);
+            } else {
+                Ir.Value value = (Ir.Value) next;
+                if (value.live) continue;
+                value.live = true;
+
+                for (Ir.Use operand : value.operands) pending.push(operand);
+                for (Ir.Version read : value.reads) pending.push(read);
+            }
+        }
+
+        int removed = 0;
+
+        for (Ir.Value instruction : instructions) {
+            if (instruction.live) continue;
+
+            instruction.removed = true;
+            instruction.region.nodes.remove(instruction);
+            removed++;
+        }
+
+        return removed;
+    }
+
+    private static void collect(Ir.Region region, List<Ir.Value> instructions, Deque<Object> roots) {
+        for (Ir.Node node : region.nodes) {
+            if (node instanceof Ir.If branch) {
+                roots.push(branch.condition);
+                collect(branch.thenBranch, instructions, roots);
+                collect(branch.elseBranch, instructions, roots);
+            } else if (node instanceof Ir.Loop loop) {
+                collect(loop.preheader, instructions, roots);
+                collect(loop.condition, instructions, roots);
+                roots.push(loop.test);
+                collect(loop.body, instructions, roots);
+            } else if (node instanceof Ir.Value value) {
+                instructions.add(value);
+                if (isRoot(value)) roots.push(value);
+            }
+        }
+    }
+
+    private static boolean isRoot(Ir.Value value) {
+        return switch (value.op) {
+            case STORE -> value.keep;
+            case UNARY, BINARY, NUMBER_BINARY, NUMBER_NEGATE, CONCAT -> !isPure(value);
+            default -> true;
+        };
+    }
+}
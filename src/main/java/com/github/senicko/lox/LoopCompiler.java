@@ -0,0 +1,306 @@
+package com.github.senicko.lox;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.IntFunction;
+
+// Compiles a loop which got hot in the interpreter into a tree of its own, which runs on frame slots instead of
+// environments. Every variable the loop uses from an enclosing environment is promoted into a slot above the
+// running frame, which the interpreter fills when it enters the compiled loop and writes back when it leaves. The
+// variables the loop declares get slots of their own, and its operators are specialized for the types its slots
+// held when it was compiled.
+//
+// Those types are speculation: the interpreter only enters the compiled loop while the slots it reads hold them,
+// and deoptimizes it otherwise. Nothing but the loop itself assigns its slots while it runs, so a speculation which
+// held on entry can't fail halfway. That is also why loops which call anything, which may assign any variable it
+// sees, or declare functions or classes, which would capture environments that don't exist anymore, are left to the
+// interpreter.
+final class LoopCompiler {
+    static final class Uncompilable extends RuntimeException {
+        // Whether the loop may be compiled once more of it ran.
+        final boolean deferred;
+
+        Uncompilable(String reason) {
+            this(reason, false);
+        }
+
+        Uncompilable(String reason, boolean deferred) {
+            super(reason, null, false, false);
+            this.deferred = deferred;
+        }
+    }
+
+    // The compiled loop runs offset slots above the frame pointer, where the slots of the function it is part of
+    // end. The variables it declares come next and the promoted variables, from first on, after them. Types holds
+    // what each slot the loop reads from outside was speculated to hold on entry, or null, and names what the slot
+    // is called.
+    record Compiled(Stmt.While loop, int offset, int first, List<Token> variables, Set<Integer> assigned, int slots,
+                    TypeInference.Type[] types, Token[] names, int specialized) {
+    }
+
+    private final int first;
+
+    // The next slot for a declaration.
+    private int next;
+
+    private final Map<String, Integer> promoted = new LinkedHashMap<>();
+    private final List<Token> variables = new ArrayList<>();
+    private final Set<Integer> assigned = new HashSet<>();
+
+    // The slots of the function below the loop's own which the loop reads, and a name of each. Slots the loop
+    // declares are read after they are declared, and hold nothing the loop was entered with.
+    private final Map<Integer, Token> read = new TreeMap<>();
+    private final Set<Integer> declared = new HashSet<>();
+
+    // The slot every variable declared in scope resolves to, innermost block last.
+    private final List<Map<String, Integer>> scopes = new ArrayList<>();
+
+    // How deeply the statement or expression being compiled is nested. Compiling recurses, and a loop may get hot
+    // with most of the stack taken by the calls it runs in, so a loop nested deeper than the limit isn't compiled.
+    private static final int DEPTH_LIMIT = 256;
+    private int depth = 0;
+
+    private LoopCompiler(int offset, int declarations) {
+        this.next = offset;
+        this.first = offset + declarations;
+        scopes.add(new HashMap<>());
+    }
+
+    // Compiles the loop, running offset slots above the frame pointer in the environment, for what the frame's
+    // slots and the variables hold now. Slots which broke a speculation before are not speculated on.
+    static Compiled compile(Stmt.While loop, int offset, Environment environment, IntFunction<Object> frame, Set<Integer> unstable) {
+        LoopCompiler compiler = new LoopCompiler(offset, declarations(loop.body));
+
+        Expr condition = compiler.expression(loop.condition);
+        Stmt body = compiler.statement(loop.body);
+        Stmt.While rewritten = new Stmt.While(condition, body, compiled(loop.profile));
+
+        int slots = compiler.first + compiler.variables.size();
+        TypeInference.Type[] types = new TypeInference.Type[slots];
+        Token[] names = new Token[slots];
+        Map<Integer, TypeInference.Type> speculated = new HashMap<>();
+
+        compiler.read.keySet().removeAll(compiler.declared);
+        compiler.read.forEach((slot, name) -> {
+            names[slot] = name;
+            types[slot] = typeOf(frame.apply(slot));
+        });
+
+        for (int i = 0; i < compiler.variables.size(); i++) {
+            Token name = compiler.variables.get(i);
+            Value binding = environment.find(name);
+
+            // The loop would fail on the name if it ever got there.
+            if (binding == null) throw new Uncompilable("'" + name.lexeme() + "' is undefined");
+
+            names[compiler.first + i] = name;
+            types[compiler.first + i] = typeOf(binding instanceof Value.Initialized initialized ? initialized.value : Interpreter.UNINITIALIZED);
+        }
+
+        for (int slot = 0; slot < slots; slot++) {
+            if (types[slot] == null) continue;
+            if (unstable.contains(slot)) types[slot] = TypeInference.Type.UNKNOWN;
+            if (types[slot].isKnown()) speculated.put(slot, types[slot]);
+        }
+
+        TypeInference.Result specialized = TypeInference.speculate(rewritten, speculated);
+        int count = specialized.specialized().size();
+
+        // A speculation which specializes nothing could only deoptimize the loop. Knowing less never specializes
+        // more, so a slot the loop specializes as much without isn't needed.
+        for (int slot : List.copyOf(speculated.keySet())) {
+            Map<Integer, TypeInference.Type> without = new HashMap<>(speculated);
+            without.remove(slot);
+
+            if (TypeInference.speculate(rewritten, without).specialized().size() == count) {
+                speculated.remove(slot);
+                types[slot] = TypeInference.Type.UNKNOWN;
+            }
+        }
+
+        Stmt.While compiled = (Stmt.While) Fusion.fuse(specialized.statements().get(0));
+
+        return new Compiled(compiled, offset, compiler.first, List.copyOf(compiler.variables), Set.copyOf(compiler.assigned),
+                slots, types, names, count);
+    }
+
+    // What a slot holding the value is known to hold.
+    static TypeInference.Type typeOf(Object value) {
+        if (value == Interpreter.UNINITIALIZED) return TypeInference.Type.UNKNOWN;
+        if (value == null) return TypeInference.Type.NIL;
+        if (Numbers.isNumber(value)) return TypeInference.Type.NUMBER;
+        if (value instanceof String) return TypeInference.Type.STRING;
+        if (value instanceof Boolean) return TypeInference.Type.BOOLEAN;
+        return TypeInference.Type.UNKNOWN;
+    }
+
+    static String describe(TypeInference.Type type) {
+        return switch (type) {
+            case NUMBER -> "a number";
+            case STRING -> "a string";
+            case BOOLEAN -> "a boolean";
+            case NIL -> "nil";
+            case UNKNOWN -> "something else";
+        };
+    }
+
+    private Stmt statement(Stmt stmt) {
+        enter();
+
+        try {
+            return rewrite(stmt);
+        } finally {
+            depth--;
+        }
+    }
+
+    private Expr expression(Expr expr) {
+        enter();
+
+        try {
+            return rewrite(expr);
+        } finally {
+            depth--;
+        }
+    }
+
+    private void enter() {
+        if (depth == DEPTH_LIMIT) throw new Uncompilable("it is nested too deeply");
+        depth++;
+    }
+
+    private Stmt rewrite(Stmt stmt) {
+        switch (stmt.kind) {
+            case Stmt.VAR -> {
+                Stmt.Var var = (Stmt.Var) stmt;
+                Expr initializer = var.initializer == null ? null : expression(var.initializer);
+
+                // Declared after its initializer, which still sees what the name meant before.
+                int slot = next++;
+                scopes.get(scopes.size() - 1).put(var.name.lexeme(), slot);
+
+                return new Stmt.LocalVar(var.name, slot, initializer);
+            }
+            case Stmt.BLOCK -> {
+                Stmt.Block block = (Stmt.Block) stmt;
+                if (Parser.LazyBlock.isDeferred(block)) throw new Uncompilable("part of it hasn't been parsed yet", true);
+
+                scopes.add(new HashMap<>());
+
+                try {
+                    return new Stmt.Block(Stmt.rewriteAll(block.statements, this::statement));
+                } finally {
+                    scopes.remove(scopes.size() - 1);
+                }
+            }
+            case Stmt.WHILE -> {
+                Stmt.While loop = (Stmt.While) stmt;
+                Expr condition = expression(loop.condition);
+                Stmt body = statement(loop.body);
+
+                return new Stmt.While(condition, body, compiled(loop.profile));
+            }
+            case Stmt.COUNTED_LOOP -> {
+                // Runs as the loop it was recognized in, which specializes like any other once its induction
+                // variable is a slot.
+                Stmt.CountedLoop loop = (Stmt.CountedLoop) stmt;
+                scopes.add(new HashMap<>());
+
+                try {
+                    Stmt initializer = statement(loop.initializer);
+                    return new Stmt.Block(List.of(initializer, statement(loop.fallback)));
+                } finally {
+                    scopes.remove(scopes.size() - 1);
+                }
+            }
+            case Stmt.LOCAL_VAR -> {
+                declared.add(((Stmt.LocalVar) stmt).slot);
+                return stmt.withChildren(this::expression, this::statement);
+            }
+            case Stmt.FUNCTION, Stmt.CLASS -> throw new Uncompilable("it declares a function or a class");
+            case Stmt.PRINT_VARIABLE, Stmt.PRINT_LOCAL -> {
+                return statement(Fusion.expand(stmt));
+            }
+            default -> {
+                return stmt.withChildren(this::expression, this::statement);
+            }
+        }
+    }
+
+    private Expr rewrite(Expr expr) {
+        switch (expr.kind) {
+            case Expr.VARIABLE -> {
+                Expr.Variable variable = (Expr.Variable) expr;
+                return new Expr.Local(variable.name, resolve(variable.name));
+            }
+            case Expr.ASSIGNMENT -> {
+                Expr.Assignment assignment = (Expr.Assignment) expr;
+                Expr value = expression(assignment.value);
+                int slot = resolve(assignment.name);
+
+                if (slot >= first) assigned.add(slot);
+                return new Expr.LocalAssign(assignment.name, slot, value);
+            }
+            case Expr.LOCAL -> {
+                Expr.Local local = (Expr.Local) expr;
+                read.putIfAbsent(local.slot, local.name);
+                return expr;
+            }
+            case Expr.CALL -> throw new Uncompilable("it calls a function");
+            // Fused again once the loop is specialized, which only knows the plain shapes.
+            case Expr.INCREMENT, Expr.LOCAL_INCREMENT, Expr.COMPARE, Expr.LOCAL_COMPARE, Expr.COPY, Expr.LOCAL_COPY -> {
+                return expression(Fusion.expand(expr));
+            }
+            default -> {
+                return expr.withChildren(this::expression, this::statement);
+            }
+        }
+    }
+
+    // The slot of the innermost declaration of the name the loop made so far, or of the promoted variable.
+    private int resolve(Token name) {
+        for (int i = scopes.size() - 1; i >= 0; i--) {
+            Integer slot = scopes.get(i).get(name.lexeme());
+            if (slot != null) return slot;
+        }
+
+        return first + promoted.computeIfAbsent(name.lexeme(), lexeme -> {
+            variables.add(name);
+            return variables.size() - 1;
+        });
+    }
+
+    // An upper bound on the variables the statement declares: a counted loop's body is counted twice, as a part
+    // of its fallback loop as well.
+    private static int declarations(Stmt stmt) {
+        Deque<Stmt> pending = new ArrayDeque<>();
+        pending.push(stmt);
+        int count = 0;
+
+        while (!pending.isEmpty()) {
+            Stmt next = pending.pop();
+            if (next instanceof Stmt.Block block && Parser.LazyBlock.isDeferred(block)) continue;
+
+            if (next.kind == Stmt.VAR) count++;
+            next.forEachChild(expr -> {
+            }, pending::push);
+        }
+
+        return count;
+    }
+
+    // Loops inside compiled code are compiled already.
+    private static LoopProfile compiled(LoopProfile profile) {
+        LoopProfile compiled = new LoopProfile(profile.line);
+        compiled.disable();
+        return compiled;
+    }
+}
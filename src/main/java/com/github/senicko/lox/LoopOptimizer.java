@@ -0,0 +1,112 @@
+package com.github.senicko.lox;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.function.Predicate;
+
+// Recognizes the counted loops Parser.forStatement desugars
+//
+//     for (var i = start; i < bound; i = i + step) body
+//
+// into Block(Var, While(i < bound, Block(body, i = i + step))), and replaces them with Stmt.CountedLoop, which the
+// interpreter runs with a primitive double induction variable and a bound evaluated once. A loop only qualifies
+// when the body provably never assigns the induction variable or the bound variable.
+class LoopOptimizer {
+    static List<Stmt> optimize(List<Stmt> statements) {
+        return Stmt.rewriteAll(statements, LoopOptimizer::optimize);
+    }
+
+    private static Stmt optimize(Stmt stmt) {
+        // Bodies which haven't been parsed yet are left alone rather than parsed just to be inspected.
+        if (stmt instanceof Stmt.Block block && Parser.LazyBlock.isDeferred(block)) return stmt;
+
+        Stmt rewritten = stmt.withChildren(expr -> expr, LoopOptimizer::optimize);
+
+        if (rewritten instanceof Stmt.Block block) {
+            Stmt loop = countedLoop(block);
+            if (loop != null) return loop;
+        }
+
+        return rewritten;
+    }
+
+    private static Stmt countedLoop(Stmt.Block block) {
+        if (block.statements.size() != 2) return null;
+        if (!(block.statements.get(0) instanceof Stmt.Var var) || var.initializer == null) return null;
+        if (!(block.statements.get(1) instanceof Stmt.While loop)) return null;
+
+        String name = var.name.lexeme();
+
+        // i < bound, i <= bound, i > bound or i >= bound
+        if (!(loop.condition instanceof Expr.Binary condition) || !isVariable(condition.left, name)) return null;
+
+        switch (condition.operator.type()) {
+            case LESS, LESS_EQUAL, GREATER, GREATER_EQUAL -> {
+            }
+            default -> {
+                return null;
+            }
+        }
+
+        // Block(body, i = i + step) or Block(body, i = i - step)
+        if (!(loop.body instanceof Stmt.Block inner) || Parser.LazyBlock.isDeferred(inner) || inner.statements.size() != 2) return null;
+        if (!(inner.statements.get(1) instanceof Stmt.Expression increment)) return null;
+        if (!(increment.expression instanceof Expr.Assignment assignment) || !assignment.name.lexeme().equals(name)) return null;
+        if (!(assignment.value instanceof Expr.Binary next) || !isVariable(next.left, name)) return null;
+        if (!(next.right instanceof Expr.Literal literal) || !Numbers.isNumber(literal.value)) return null;
+        if (next.operator.type() != TokenType.PLUS && next.operator.type() != TokenType.MINUS) return null;
+
+        Stmt body = inner.statements.get(0);
+        if (assigns(body, name)) return null;
+
+        // The bound must be a number literal, or a variable which the body never assigns. A function declared
+        // outside the loop may assign the bound as well, so calls disqualify a variable bound.
+        if (condition.right instanceof Expr.Variable bound) {
+            if (bound.name.lexeme().equals(name) || assigns(body, bound.name.lexeme()) || calls(body)) return null;
+        } else if (!(condition.right instanceof Expr.Literal bound) || !Numbers.isNumber(bound.value)) {
+            return null;
+        }
+
+        // x - c is exactly x + (-c) in floating point.
+        double step = Numbers.toDouble(literal.value);
+        double delta = next.operator.type() == TokenType.PLUS ? step : -step;
+
+        return new Stmt.CountedLoop(var, condition.operator, condition.right, delta, body, loop);
+    }
+
+    private static boolean isVariable(Expr expr, String name) {
+        return expr instanceof Expr.Variable variable && variable.name.lexeme().equals(name);
+    }
+
+    // Whether anything in stmt may assign the variable. Unparsed blocks are assumed to.
+    private static boolean assigns(Stmt stmt, String name) {
+        return any(stmt, expr -> expr instanceof Expr.Assignment assignment && assignment.name.lexeme().equals(name));
+    }
+
+    // Whether anything in stmt may call a function. Unparsed blocks are assumed to.
+    private static boolean calls(Stmt stmt) {
+        return any(stmt, expr -> expr.kind == Expr.CALL);
+    }
+
+    // Whether any expression in stmt matches, or it has an unparsed block. Walked with an explicit stack, as
+    // trees parsed iteratively can be arbitrarily deep.
+    private static boolean any(Stmt stmt, Predicate<Expr> matches) {
+        Deque<Object> pending = new ArrayDeque<>();
+        pending.push(stmt);
+
+        while (!pending.isEmpty()) {
+            Object node = pending.pop();
+
+            if (node instanceof Expr expr) {
+                if (matches.test(expr)) return true;
+                expr.forEachChild(pending::push, pending::push);
+            } else {
+                if (node instanceof Stmt.Block block && Parser.LazyBlock.isDeferred(block)) return true;
+                ((Stmt) node).forEachChild(pending::push, pending::push);
+            }
+        }
+
+        return false;
+    }
+}
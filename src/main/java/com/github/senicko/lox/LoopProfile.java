@@ -0,0 +1,48 @@
+package com.github.senicko.lox;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// What the interpreter learned about one loop while running it: how often it went back to its condition, the
+// compiled form it runs in once it got hot, and which of the speculations it was compiled with failed. A script
+// compiled once can run on several threads, through the script cache or forked snapshots. The counters are plain
+// state like a property cache's, which concurrent runs may lose updates to, but the compiled loop is published
+// whole and read once by a run entering it, and the set of unstable slots is concurrent.
+final class LoopProfile {
+    final int line;
+
+    int backEdges = 0;
+    volatile LoopCompiler.Compiled compiled = null;
+
+    int deoptimizations = 0;
+    boolean disabled = false;
+
+    // Slots whose type broke a speculation, which the loop isn't compiled for again.
+    final Set<Integer> unstable = ConcurrentHashMap.newKeySet();
+
+    // Whether the body declares a function or a class, see capturesScope. One field, written once, so a thread
+    // sees either the answer or that there is none yet.
+    private static final int UNKNOWN = 0;
+    private static final int CAPTURES = 1;
+    private static final int ISOLATED = 2;
+    private int scope = UNKNOWN;
+
+    LoopProfile(int line) {
+        this.line = line;
+    }
+
+    // Whether running the body may capture the scope it runs in, which then can't be reset for the next
+    // iteration. Worked out the first time the loop runs.
+    boolean capturesScope(Stmt body) {
+        if (scope == UNKNOWN) scope = Interpreter.declaresClosures(body) ? CAPTURES : ISOLATED;
+        return scope == CAPTURES;
+    }
+
+    // Leaves the loop to the interpreter for good. The count can't reach the threshold again for about as many
+    // back-edges as an int holds.
+    void disable() {
+        disabled = true;
+        compiled = null;
+        backEdges = Integer.MIN_VALUE;
+    }
+}
@@ -0,0 +1,79 @@
+package com.github.senicko.lox;
+
+// A fixed size array of numbers stored unboxed. The bulk operations are plain counted loops over the double[],
+// which C2 compiles to SIMD code; the reductions keep four independent sums so they aren't serialized on a single
+// floating point add chain, which also means their rounding can differ from a left to right sum.
+class LoxArray {
+    final double[] elements;
+
+    LoxArray(int length) {
+        this.elements = new double[length];
+    }
+
+    private LoxArray(double[] elements) {
+        this.elements = elements;
+    }
+
+    int length() {
+        return elements.length;
+    }
+
+    double sum() {
+        double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = 0;
+
+        for (; i + 4 <= elements.length; i += 4) {
+            s0 += elements[i];
+            s1 += elements[i + 1];
+            s2 += elements[i + 2];
+            s3 += elements[i + 3];
+        }
+
+        for (; i < elements.length; i++) {
+            s0 += elements[i];
+        }
+
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    double dot(LoxArray other) {
+        double[] others = other.elements;
+        double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = 0;
+
+        for (; i + 4 <= elements.length; i += 4) {
+            s0 += elements[i] * others[i];
+            s1 += elements[i + 1] * others[i + 1];
+            s2 += elements[i + 2] * others[i + 2];
+            s3 += elements[i + 3] * others[i + 3];
+        }
+
+        for (; i < elements.length; i++) {
+            s0 += elements[i] * others[i];
+        }
+
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    LoxArray scale(double factor) {
+        double[] result = new double[elements.length];
+
+        for (int i = 0; i < elements.length; i++) {
+            result[i] = elements[i] * factor;
+        }
+
+        return new LoxArray(result);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("[");
+
+        for (int i = 0; i < elements.length; i++) {
+            if (i > 0) builder.append(", ");
+            builder.append(Numbers.format(Numbers.valueOf(elements[i])));
+        }
+
+        return builder.append("]").toString();
+    }
+}
@@ -0,0 +1,10 @@
+package com.github.senicko.lox;
+
+import java.util.List;
+
+interface LoxCallable {
+    int arity();
+
+    // The paren token locates runtime errors raised by the call.
+    Object call(Interpreter interpreter, Token paren, List<Object> arguments);
+}
@@ -0,0 +1,74 @@
+package com.github.senicko.lox;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+class LoxClass implements LoxCallable {
+    // A method as declared, which is called through the copy bound to an instance.
+    interface Method extends LoxCallable {
+        LoxCallable bind(LoxInstance receiver);
+    }
+
+    // Where a subclass' methods find their superclass.
+    static final Token SUPER = new Token(TokenType.IDENTIFIER, "super", Symbol.intern("super"), 0);
+
+    final String name;
+    final LoxClass superclass;
+    final Shape root = new Shape(this);
+
+    private final Map<String, Method> methods;
+
+    // The most fields any shape of this class has, which new instances are allocated for.
+    private volatile int expectedFields = 0;
+
+    LoxClass(String name, LoxClass superclass, Map<String, Method> methods) {
+        this.name = name;
+        this.superclass = superclass;
+        this.methods = methods;
+    }
+
+    // The method, inherited or not, or null if there is none by that name.
+    Method findMethod(String name) {
+        for (LoxClass klass = this; klass != null; klass = klass.superclass) {
+            Method method = klass.methods.get(name);
+            if (method != null) return method;
+        }
+
+        return null;
+    }
+
+    // The methods the class declares itself, without the inherited ones.
+    Collection<Method> methods() {
+        return methods.values();
+    }
+
+    int expectedFields() {
+        return expectedFields;
+    }
+
+    void expect(int fields) {
+        if (fields > expectedFields) expectedFields = fields;
+    }
+
+    @Override
+    public int arity() {
+        Method initializer = findMethod("init");
+        return initializer == null ? 0 : initializer.arity();
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, Token paren, List<Object> arguments) {
+        LoxInstance instance = new LoxInstance(this);
+        Method initializer = findMethod("init");
+
+        if (initializer != null) initializer.bind(instance).call(interpreter, paren, arguments);
+
+        return instance;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
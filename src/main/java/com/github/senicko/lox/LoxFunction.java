@@ -0,0 +1,48 @@
+package com.github.senicko.lox;
+
+import java.util.List;
+
+class LoxFunction implements LoxClass.Method {
+    final Stmt.Function declaration;
+
+    // Where the names the body doesn't declare itself are looked up.
+    final Environment closure;
+
+    // The instance a method is bound to, which the body sees as 'this' in slot 0. Null for plain functions and for
+    // methods which are not bound yet.
+    final LoxInstance receiver;
+
+    // An initializer returns its instance, whatever the body returns.
+    final boolean initializer;
+
+    LoxFunction(Stmt.Function declaration, Environment closure) {
+        this(declaration, closure, null, false);
+    }
+
+    LoxFunction(Stmt.Function declaration, Environment closure, LoxInstance receiver, boolean initializer) {
+        this.declaration = declaration;
+        this.closure = closure;
+        this.receiver = receiver;
+        this.initializer = initializer;
+    }
+
+    @Override
+    public LoxCallable bind(LoxInstance receiver) {
+        return new LoxFunction(declaration, closure, receiver, initializer);
+    }
+
+    @Override
+    public int arity() {
+        return declaration.params.size();
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, Token paren, List<Object> arguments) {
+        return interpreter.call(this, arguments);
+    }
+
+    @Override
+    public String toString() {
+        return "<fn " + declaration.name.lexeme() + ">";
+    }
+}
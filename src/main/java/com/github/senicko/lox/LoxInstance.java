@@ -0,0 +1,27 @@
+package com.github.senicko.lox;
+
+import java.util.Arrays;
+
+// An instance keeps its fields in a plain array laid out by its shape, instead of a map of its own.
+class LoxInstance {
+    final LoxClass klass;
+    Shape shape;
+    Object[] fields;
+
+    LoxInstance(LoxClass klass) {
+        this.klass = klass;
+        this.shape = klass.root;
+        this.fields = new Object[klass.expectedFields()];
+    }
+
+    // Moves the instance to a shape with more fields.
+    void reshape(Shape next) {
+        if (next.size > fields.length) fields = Arrays.copyOf(fields, Math.max(next.size, 2 * fields.length));
+        shape = next;
+    }
+
+    @Override
+    public String toString() {
+        return klass.name + " instance";
+    }
+}
@@ -0,0 +1,179 @@
+package com.github.senicko.lox;
+
+import java.util.function.Consumer;
+
+// A map from strings and numbers to values, as an open addressing table with linear probing in parallel arrays.
+// String keys are stored with their hash and number keys as the bits of their double value, so probes compare
+// ints and longs before anything else, and no key is ever boxed. Keys are equal exactly when == says they are.
+class LoxMap {
+    private static final byte EMPTY = 0;
+    private static final byte NUMBER = 1;
+    private static final byte STRING = 2;
+
+    // Per slot: the key kind, the string hash or number bits, the string key and the value.
+    private byte[] kinds = new byte[8];
+    private long[] hashes = new long[8];
+    private String[] strings = new String[8];
+    private Object[] values = new Object[8];
+    private int size = 0;
+
+    // 64 - log2(capacity), see slot().
+    private int shift = 61;
+
+    static boolean isKey(Object key) {
+        return key instanceof String || Numbers.isNumber(key);
+    }
+
+    int size() {
+        return size;
+    }
+
+    // The value of the key, or null when it is absent.
+    Object get(Object key) {
+        int slot = find(key);
+        return slot < 0 ? null : values[slot];
+    }
+
+    void forEachValue(Consumer<Object> action) {
+        for (int slot = 0; slot < kinds.length; slot++) {
+            if (kinds[slot] != EMPTY) action.accept(values[slot]);
+        }
+    }
+
+    boolean containsKey(Object key) {
+        return find(key) >= 0;
+    }
+
+    void put(Object key, Object value) {
+        int slot = find(key);
+
+        if (slot >= 0) {
+            values[slot] = value;
+            return;
+        }
+
+        // Kept at most half full, so probe sequences stay short.
+        if (2 * (size + 1) > kinds.length) grow();
+
+        if (key instanceof String string) {
+            int hash = string.hashCode();
+            insert(STRING, hash, string, value, slot(hash));
+        } else {
+            long bits = bits(key);
+            insert(NUMBER, bits, null, value, slot(bits));
+        }
+
+        size++;
+    }
+
+    boolean remove(Object key) {
+        int slot = find(key);
+        if (slot < 0) return false;
+
+        // Backward shift deletion: later entries of the probe sequence move into the hole, so no tombstones are
+        // needed and lookups can stop at the first empty slot.
+        int mask = kinds.length - 1;
+        int hole = slot;
+
+        for (int next = (hole + 1) & mask; kinds[next] != EMPTY; next = (next + 1) & mask) {
+            int home = slot(hashes[next]);
+
+            // Moves the entry unless its home lies cyclically within (hole, next].
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                kinds[hole] = kinds[next];
+                hashes[hole] = hashes[next];
+                strings[hole] = strings[next];
+                values[hole] = values[next];
+                hole = next;
+            }
+        }
+
+        kinds[hole] = EMPTY;
+        strings[hole] = null;
+        values[hole] = null;
+        size--;
+        return true;
+    }
+
+    private int find(Object key) {
+        int mask = kinds.length - 1;
+
+        if (key instanceof String string) {
+            int hash = string.hashCode();
+
+            for (int slot = slot(hash); kinds[slot] != EMPTY; slot = (slot + 1) & mask) {
+                if (kinds[slot] == STRING && hashes[slot] == hash && strings[slot].equals(string)) return slot;
+            }
+        } else {
+            long bits = bits(key);
+
+            for (int slot = slot(bits); kinds[slot] != EMPTY; slot = (slot + 1) & mask) {
+                if (kinds[slot] == NUMBER && hashes[slot] == bits) return slot;
+            }
+        }
+
+        return -1;
+    }
+
+    private void insert(byte kind, long hash, String string, Object value, int slot) {
+        int mask = kinds.length - 1;
+
+        while (kinds[slot] != EMPTY) slot = (slot + 1) & mask;
+
+        kinds[slot] = kind;
+        hashes[slot] = hash;
+        strings[slot] = string;
+        values[slot] = value;
+    }
+
+    private void grow() {
+        byte[] oldKinds = kinds;
+        long[] oldHashes = hashes;
+        String[] oldStrings = strings;
+        Object[] oldValues = values;
+
+        kinds = new byte[oldKinds.length * 2];
+        hashes = new long[oldKinds.length * 2];
+        strings = new String[oldKinds.length * 2];
+        values = new Object[oldKinds.length * 2];
+        shift--;
+
+        for (int i = 0; i < oldKinds.length; i++) {
+            if (oldKinds[i] == EMPTY) continue;
+            insert(oldKinds[i], oldHashes[i], oldStrings[i], oldValues[i], slot(oldHashes[i]));
+        }
+    }
+
+    // Fibonacci hashing: the top bits of the product depend on every bit of the hash, which matters for doubles,
+    // whose low bits are all zero for small integers.
+    private int slot(long hash) {
+        return (int) ((hash * 0x9E3779B97F4A7C15L) >>> shift);
+    }
+
+    // Equal bits mean Double.equals, which is how == compares numbers.
+    private static long bits(Object number) {
+        return Double.doubleToLongBits(Numbers.toDouble(number));
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("{");
+
+        for (int i = 0; i < kinds.length; i++) {
+            if (kinds[i] == EMPTY) continue;
+
+            if (builder.length() > 1) builder.append(", ");
+
+            Object key = kinds[i] == STRING ? strings[i] : Numbers.valueOf(Double.longBitsToDouble(hashes[i]));
+            builder.append(text(key)).append(": ").append(text(values[i]));
+        }
+
+        return builder.append("}").toString();
+    }
+
+    private static String text(Object value) {
+        if (value == null) return "nil";
+        if (Numbers.isNumber(value)) return Numbers.format(value);
+        return value.toString();
+    }
+}
@@ -1,34 +1,136 @@
 package com.github.senicko.lox;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.List;
 
 public class Main {
-    private static final Interpreter interpreter = new Interpreter();
+    private static Interpreter interpreter;
+
+    // Prompt lines are often entered again, so their compiled form is kept around.
+    private static ScriptCache scripts;
+    private static final long PROMPT_CACHE_BYTES = 4L << 20;
 
     static boolean hadError = false;
     static boolean hadRuntimeError = false;
 
+    // Parses and evaluates expressions without recursion, for very deeply nested machine generated input.
+    static boolean deep = false;
+
+    // Lexes scripts of ParallelScanner.THRESHOLD characters or more in chunks on the common fork-join pool.
+    static boolean parallelScan = false;
+
+    // Runs script files from a flat, arena allocated AST instead of the Expr/Stmt object tree.
+    static boolean flat = false;
+
+    // Defers parsing block bodies until they first run, which shortens the time to the first statement.
+    static boolean lazy = false;
+
+    // Parses the whole script eagerly and reports every syntax error without running it.
+    static boolean check = false;
+
+    // Writes the script's AST to stdout instead of running it, as S-expressions or in the compact binary format.
+    static boolean dump = false;
+    static boolean dumpBinary = false;
+
+    // Reports how well the property access caches did once the script has run.
+    static boolean stats = false;
+
+    // Reports the operators type inference specialized before the script runs.
+    static boolean types = false;
+
+    // Reports the optimized SSA form of every function body before the script runs.
+    static boolean ir = false;
+
+    // Shares structurally identical side-effect free expressions, and reports the memory it saved.
+    static boolean intern = false;
+
+    // Loops which went back to their condition osrThreshold times are compiled, and left to the interpreter for
+    // good once their speculation failed deoptLimit times. --osr-threshold=0 keeps every loop interpreted.
+    static int osrThreshold = 1000;
+    static int deoptLimit = 3;
+
+    // Reports loops being compiled and deoptimized while the script runs.
+    static boolean traceOsr = false;
+
     public static void main(String[] args) throws IOException {
-        if (args.length > 1) {
-            System.out.println("Usage: lox [script]");
-            System.exit(64);
-        } else if (args.length == 1) {
-            runFile(args[0]);
+        int index = 0;
+
+        while (index < args.length && args[index].startsWith("--")) {
+            switch (args[index]) {
+                case "--deep" -> deep = true;
+                case "--parallel-scan" -> parallelScan = true;
+                case "--flat" -> flat = true;
+                case "--lazy" -> lazy = true;
+                case "--check" -> check = true;
+                case "--dump" -> dump = true;
+                case "--dump-binary" -> dumpBinary = true;
+                case "--stats" -> stats = true;
+                case "--types" -> types = true;
+                case "--ir" -> ir = true;
+                case "--intern" -> intern = true;
+                case "--trace-osr" -> traceOsr = true;
+                default -> {
+                    if (args[index].startsWith("--osr-threshold=")) osrThreshold = count(args[index]);
+                    else if (args[index].startsWith("--deopt-limit=")) deoptLimit = count(args[index]);
+                    else usage();
+                }
+            }
+            index++;
+        }
+
+        // Lowering to the flat AST and running it both recurse, so it can't take the input --deep is for.
+        if (deep && flat) usage();
+
+        interpreter = new Interpreter(deep);
+        interpreter.tiering(osrThreshold, deoptLimit, traceOsr ? System.err : null);
+        scripts = new ScriptCache(PROMPT_CACHE_BYTES, deep);
+
+        if (args.length - index > 1) {
+            usage();
+        } else if (args.length - index == 1) {
+            runFile(args[index]);
         } else {
             runPrompt();
         }
     }
 
+    private static void usage() {
+        System.out.println("Usage: lox [--deep | --flat] [--parallel-scan] [--lazy] [--check] [--dump | --dump-binary] [--stats] [--types] [--ir] [--intern]"
+                + " [--osr-threshold=N] [--deopt-limit=N] [--trace-osr] [script]");
+        System.exit(64);
+    }
+
+    // The value of an option written as --name=N.
+    private static int count(String option) {
+        try {
+            int count = Integer.parseInt(option.substring(option.indexOf('=') + 1));
+            if (count >= 0) return count;
+        } catch (NumberFormatException ignored) {
+        }
+
+        usage();
+        return 0;
+    }
+
     private static void runFile(String path) throws IOException {
         byte[] bytes = Files.readAllBytes(Paths.get(path));
 
-        run(new String(bytes, Charset.defaultCharset()));
+        String source = new String(bytes, Charset.defaultCharset());
+
+        if (check) check(source);
+        else if (dump || dumpBinary) dumpAst(source);
+        else if (flat) runFlat(source);
+        else run(source);
 
         if (hadError) System.exit(65);
         if (hadRuntimeError) System.exit(70);
@@ -48,7 +150,8 @@ public class Main {
             if (line.charAt(line.length() - 1) != ';') line += ';';
 
             try {
-                run(line);
+                if (lazy || types || ir || intern) run(line);
+                else runCached(line);
             } catch (RuntimeException exception) {
                 System.out.println(exception);
             }
@@ -58,27 +161,123 @@ public class Main {
     }
 
     private static void run(String source) {
-        Scanner scanner = new Scanner(source);
-        List<Token> tokens = scanner.scanTokens();
+        List<Token> tokens = scan(source);
 
 //        for (Token token : tokens) {
 //            System.out.println(token.toString());
 //        }
 
-        Parser parser = new Parser(tokens);
+        Interner interner = intern ? new Interner() : null;
+        Parser parser = new Parser(tokens, deep, lazy, interner);
         List<Stmt> expression = parser.parse();
 
         if (hadError) return;
 
+        // Counted loops are recognized from the plain operators, before they are specialized.
+        expression = LoopOptimizer.optimize(expression);
+
+        TypeInference.Result typed = TypeInference.infer(expression);
+        if (types) printTypes(typed);
+        if (typed.hadError()) return;
+
+        // Function bodies are optimized after specialization, which tells which operators can't fail.
+        IrOptimizer.Result optimized = IrOptimizer.optimize(typed.statements(), ir);
+        if (ir) printIr(optimized);
+
+        // The passes above recognize the plain shapes, so they are fused last.
+        expression = Fusion.fuse(optimized.statements());
+
+        // The passes copied the nodes they rewrote, which are shared again.
+        if (interner != null) {
+            expression = interner.intern(expression);
+            printInterning(Interner.stats(expression));
+        }
+
 //        new AstPrinter().print(expression.get(0));
 
-        if(expression.size() == 1 && expression.get(0) instanceof Stmt.Expression expr) {
+        execute(expression);
+
+        if (stats) printStats(PropertyCache.stats(expression));
+    }
+
+    private static void check(String source) {
+        List<Stmt> program = new Parser(scan(source), deep, false).parse();
+        if (!hadError) TypeInference.infer(program);
+    }
+
+    // Lines are only cached when they're compiled as the cache compiles them: with blocks parsed up front, no
+    // sharing, and nothing reported about the passes, which a cached line wouldn't go through again.
+    private static void runCached(String source) {
+        ScriptCache.Script script = scripts.get(source);
+
+        if (script == null) return;
+
+        execute(script.statements());
+
+        if (stats) printStats(PropertyCache.stats(script.statements()));
+    }
+
+    private static void execute(List<Stmt> statements) {
+        if(statements.size() == 1 && statements.get(0) instanceof Stmt.Expression expr) {
             interpreter.printExpression(expr);
         } else {
-            interpreter.interpret(expression);
+            interpreter.interpret(statements);
+        }
+    }
+
+    private static void runFlat(String source) {
+        // Lowering visits every block, so deferring their parsing would gain nothing.
+        Parser parser = new Parser(scan(source), deep, false);
+        FlatAst ast = parser.parseFlat();
+
+        if (hadError) return;
+
+        new FlatInterpreter(interpreter, ast).interpret();
+
+        if (stats) printStats(PropertyCache.stats(ast));
+    }
+
+    private static void printStats(PropertyCache.Stats stats) {
+        System.err.printf("property caches: %d sites, %d hits, %d misses (%.2f%% hit rate), %d megamorphic%n",
+                stats.sites(), stats.hits(), stats.misses(), 100 * stats.hitRate(), stats.megamorphic());
+    }
+
+    private static void printTypes(TypeInference.Result typed) {
+        for (String site : typed.specialized()) System.err.println(site);
+        System.err.printf("type inference: %d operators specialized%n", typed.specialized().size());
+    }
+
+    private static void printInterning(Interner.Stats stats) {
+        System.err.printf("interning: %d expression nodes, %d distinct, %d shared (%.2f%%), about %d KB saved%n",
+                stats.nodes(), stats.distinct(), stats.shared(), stats.nodes() == 0 ? 0.0 : 100.0 * stats.shared() / stats.nodes(),
+                stats.bytesSaved() / 1024);
+    }
+
+    private static void printIr(IrOptimizer.Result optimized) {
+        for (String function : optimized.listing()) System.err.println(function);
+    }
+
+    private static void dumpAst(String source) throws IOException {
+        List<Stmt> program = new Parser(scan(source), deep, false).parse();
+
+        if (hadError) return;
+
+        if (dumpBinary) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(System.out));
+            AstDumper.dumpBinary(program, out);
+            out.flush();
+        } else {
+            Writer out = new BufferedWriter(new OutputStreamWriter(System.out));
+            AstDumper.dump(program, out);
+            out.flush();
         }
     }
 
+    private static List<Token> scan(String source) {
+        if (parallelScan && source.length() >= ParallelScanner.THRESHOLD) return ParallelScanner.scanTokens(source);
+        return new Scanner(source).scanTokens();
+    }
+
     static void error(Token token, String message) {
         if (token.type() == TokenType.EOF) {
             report(token.line(), " at end", message);
@@ -0,0 +1,127 @@
+package com.github.senicko.lox;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+// Functions implemented in Java which every program can call.
+final class Natives {
+    interface Body {
+        Object call(Interpreter interpreter, Token paren, List<Object> arguments);
+    }
+
+    record Function(String name, int arity, Body body) implements LoxCallable {
+        @Override
+        public Object call(Interpreter interpreter, Token paren, List<Object> arguments) {
+            return body.call(interpreter, paren, arguments);
+        }
+
+        @Override
+        public String toString() {
+            return "<native fn " + name + ">";
+        }
+    }
+
+    private Natives() {
+    }
+
+    static void define(Environment globals) {
+        // Seconds since an arbitrary origin, for timing.
+        define(globals, "clock", 0, (interpreter, paren, arguments) -> Numbers.valueOf(System.nanoTime() / 1e9));
+
+        // Numeric arrays
+        define(globals, "array", 1, (interpreter, paren, arguments) -> {
+            double length = Numbers.isNumber(arguments.get(0)) ? Numbers.toDouble(arguments.get(0)) : -1;
+
+            if (length < 0 || length != Math.rint(length) || length > Integer.MAX_VALUE - 8)
+                throw new LoxRuntimeError(paren, "Array length must be a non-negative integer.");
+
+            return new LoxArray((int) length);
+        });
+
+        define(globals, "len", 1, (interpreter, paren, arguments) -> {
+            if (arguments.get(0) instanceof LoxMap map) return (long) map.size();
+            if (arguments.get(0) instanceof LoxArray array) return (long) array.length();
+            throw new LoxRuntimeError(paren, "Argument must be an array or a map.");
+        });
+
+        define(globals, "sum", 1, (interpreter, paren, arguments) ->
+                Numbers.valueOf(array(paren, arguments.get(0)).sum()));
+
+        define(globals, "dot", 2, (interpreter, paren, arguments) -> {
+            LoxArray left = array(paren, arguments.get(0));
+            LoxArray right = array(paren, arguments.get(1));
+
+            if (left.length() != right.length()) throw new LoxRuntimeError(paren, "Arrays must have the same length.");
+
+            return Numbers.valueOf(left.dot(right));
+        });
+
+        define(globals, "scale", 2, (interpreter, paren, arguments) -> {
+            LoxArray array = array(paren, arguments.get(0));
+
+            if (!Numbers.isNumber(arguments.get(1))) throw new LoxRuntimeError(paren, "Factor must be a number.");
+
+            return array.scale(Numbers.toDouble(arguments.get(1)));
+        });
+
+        // Maps, besides indexing
+        define(globals, "has", 2, (interpreter, paren, arguments) ->
+                map(paren, arguments.get(0)).containsKey(key(paren, arguments.get(1))));
+
+        define(globals, "remove", 2, (interpreter, paren, arguments) ->
+                map(paren, arguments.get(0)).remove(key(paren, arguments.get(1))));
+
+        // Input, one record at a time: var reader = lines("log.txt"); var line = next(reader); ...
+        define(globals, "lines", 1, (interpreter, paren, arguments) ->
+                open(paren, arguments.get(0), (byte) '\n', true));
+
+        define(globals, "records", 2, (interpreter, paren, arguments) -> {
+            if (!(arguments.get(1) instanceof String delimiter) || delimiter.length() != 1 || delimiter.charAt(0) > 0x7F)
+                throw new LoxRuntimeError(paren, "Delimiter must be a single ASCII character.");
+
+            return open(paren, arguments.get(0), (byte) delimiter.charAt(0), false);
+        });
+
+        define(globals, "next", 1, (interpreter, paren, arguments) -> {
+            if (!(arguments.get(0) instanceof RecordReader reader))
+                throw new LoxRuntimeError(paren, "Argument must be a reader.");
+
+            try {
+                return reader.next();
+            } catch (IOException exception) {
+                throw new LoxRuntimeError(paren, "Could not read " + reader + ": " + exception.getMessage());
+            }
+        });
+    }
+
+    private static void define(Environment globals, String name, int arity, Body body) {
+        Token token = new Token(TokenType.IDENTIFIER, name, Symbol.intern(name), 0);
+        globals.define(token, new Function(name, arity, body));
+    }
+
+    private static LoxArray array(Token paren, Object argument) {
+        if (argument instanceof LoxArray array) return array;
+        throw new LoxRuntimeError(paren, "Argument must be an array.");
+    }
+
+    private static LoxMap map(Token paren, Object argument) {
+        if (argument instanceof LoxMap map) return map;
+        throw new LoxRuntimeError(paren, "Argument must be a map.");
+    }
+
+    private static Object key(Token paren, Object argument) {
+        if (LoxMap.isKey(argument)) return argument;
+        throw new LoxRuntimeError(paren, "Map keys must be strings or numbers.");
+    }
+
+    private static RecordReader open(Token paren, Object path, byte delimiter, boolean lines) {
+        if (!(path instanceof String file)) throw new LoxRuntimeError(paren, "Path must be a string.");
+
+        try {
+            return new RecordReader(Path.of(file), delimiter, lines);
+        } catch (IOException exception) {
+            throw new LoxRuntimeError(paren, "Could not open '" + file + "'.");
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.github.senicko.lox;
+
+// Lox has a single number type, which is represented either as a Long or as a Double. A Long is only used for
+// integers doubles represent exactly (|n| <= 2^53), so integer arithmetic stays on longs and produces exactly
+// the value double arithmetic would have; anything else promotes to a Double.
+final class Numbers {
+    static final long MAX_EXACT = 1L << 53;
+
+    // Double.toString switches to scientific notation at this magnitude, and integers have to print the same way.
+    private static final long PLAIN_LIMIT = 10_000_000;
+
+    private Numbers() {
+    }
+
+    static Object parse(String text) {
+        // Up to 15 digits always fit below 2^53.
+        if (text.indexOf('.') < 0 && text.length() <= 15) return Long.parseLong(text);
+        return valueOf(Double.parseDouble(text));
+    }
+
+    // The canonical representation of a double.
+    static Object valueOf(double value) {
+        if (value == (long) value && Math.abs(value) <= MAX_EXACT && (value != 0 || 1 / value > 0)) {
+            return (long) value;
+        }
+
+        return value;
+    }
+
+    // The canonical representation of a long.
+    static Object valueOf(long value) {
+        return exact(value);
+    }
+
+    static boolean isNumber(Object value) {
+        return value instanceof Long || value instanceof Double;
+    }
+
+    static double toDouble(Object number) {
+        if (number instanceof Long integer) return integer;
+        return (Double) number;
+    }
+
+    static Object negate(Object operand) {
+        // -0 is a double.
+        if (operand instanceof Long integer && integer != 0) return -integer;
+        return -toDouble(operand);
+    }
+
+    static Object add(Object left, Object right) {
+        if (left instanceof Long lh && right instanceof Long rh) return exact(lh + rh);
+        return toDouble(left) + toDouble(right);
+    }
+
+    static Object subtract(Object left, Object right) {
+        if (left instanceof Long lh && right instanceof Long rh) return exact(lh - rh);
+        return toDouble(left) - toDouble(right);
+    }
+
+    static Object multiply(Object left, Object right) {
+        if (left instanceof Long lh && right instanceof Long rh) {
+            double product = (double) lh * rh;
+
+            // Large products can't be exact, and a zero with a negative factor is -0.
+            if (Math.abs(product) > MAX_EXACT || product == 0 && (lh < 0 || rh < 0)) return product;
+
+            return exact(lh * rh);
+        }
+
+        return toDouble(left) * toDouble(right);
+    }
+
+    static boolean isZero(Object number) {
+        if (number instanceof Long integer) return integer == 0;
+        return (Double) number == 0;
+    }
+
+    // Like Double.compare, so -0 sorts before 0 and NaN after everything.
+    static int compare(Object left, Object right) {
+        if (left instanceof Long lh && right instanceof Long rh) return Long.compare(lh, rh);
+        return Double.compare(toDouble(left), toDouble(right));
+    }
+
+    // Like Double.equals, so -0 and 0 differ and NaN equals itself.
+    static boolean equals(Object left, Object right) {
+        if (left instanceof Long lh && right instanceof Long rh) return lh.longValue() == rh.longValue();
+        return Double.valueOf(toDouble(left)).equals(toDouble(right));
+    }
+
+    // The text Double.toString gives for the same value.
+    static String toString(Object number) {
+        if (number instanceof Long integer && Math.abs(integer) < PLAIN_LIMIT) return integer + ".0";
+        return Double.toString(toDouble(number));
+    }
+
+    // How Lox prints a number: like Double.toString, without a trailing ".0".
+    static String format(Object number) {
+        if (number instanceof Long integer && Math.abs(integer) < PLAIN_LIMIT) return integer.toString();
+
+        String text = Double.toString(toDouble(number));
+        if (text.endsWith(".0")) text = text.substring(0, text.length() - 2);
+        return text;
+    }
+
+    private static Object exact(long result) {
+        if (Math.abs(result) <= MAX_EXACT) return result;
+        return (double) result;
+    }
+}
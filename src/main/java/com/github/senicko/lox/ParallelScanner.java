@@ -0,0 +1,107 @@
+package com.github.senicko.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+// Lexes large sources by splitting them at newlines and scanning the chunks concurrently. Every chunk is scanned
+// speculatively, assuming it doesn't start inside a string literal (a chunk can never start inside a comment, as
+// those end at the newline). The chunks are then stitched together in order, rescanning from the opening quote
+// wherever a string literal crosses a chunk boundary. The result is identical to Scanner.scanTokens().
+class ParallelScanner {
+    // Sources below this size are faster to scan on a single thread.
+    static final int THRESHOLD = 1 << 20;
+
+    private static final int CHUNK_SIZE = 1 << 18;
+
+    static List<Token> scanTokens(String source) {
+        return scanTokens(source, ForkJoinPool.commonPool());
+    }
+
+    static List<Token> scanTokens(String source, ForkJoinPool pool) {
+        return scanTokens(source, pool, CHUNK_SIZE);
+    }
+
+    static List<Token> scanTokens(String source, ForkJoinPool pool, int chunkSize) {
+        List<Integer> bounds = split(source, chunkSize);
+        int chunks = bounds.size() - 1;
+
+        // Every newline advances the line exactly once, wherever it is, so the first line of each chunk is known
+        // up front and tokens never need their line fixed up afterwards.
+        List<ForkJoinTask<Integer>> newlines = new ArrayList<>(chunks);
+        for (int i = 0; i < chunks; i++) {
+            int from = bounds.get(i);
+            int to = bounds.get(i + 1);
+            newlines.add(pool.submit(() -> countNewlines(source, from, to)));
+        }
+
+        int[] lines = new int[chunks];
+        int line = 1;
+        for (int i = 0; i < chunks; i++) {
+            lines[i] = line;
+            line += newlines.get(i).join();
+        }
+
+        List<ForkJoinTask<Scanner>> scans = new ArrayList<>(chunks);
+        for (int i = 0; i < chunks; i++) {
+            Scanner scanner = new Scanner(source, bounds.get(i), bounds.get(i + 1), lines[i]);
+            scans.add(pool.submit(() -> {
+                scanner.scanRange();
+                return scanner;
+            }));
+        }
+
+        List<Token> tokens = new ArrayList<>();
+        Scanner chunk = null;
+
+        for (int i = 0; i < chunks; i++) {
+            chunk = scans.get(i).join();
+            accept(chunk, tokens);
+
+            // The next chunk actually starts inside a string literal, so its speculative result is wrong. Rescan
+            // from the opening quote to the end of that chunk, for as long as the literal keeps crossing boundaries.
+            while (chunk.endsInsideString()) {
+                i++;
+                scans.get(i).cancel(false);
+
+                chunk = new Scanner(source, chunk.openString(), bounds.get(i + 1), chunk.openStringLine());
+                chunk.scanRange();
+                accept(chunk, tokens);
+            }
+        }
+
+        tokens.add(new Token(TokenType.EOF, "", null, chunk == null ? 1 : chunk.line()));
+        return tokens;
+    }
+
+    private static void accept(Scanner chunk, List<Token> tokens) {
+        tokens.addAll(chunk.tokens());
+        chunk.reportErrors();
+    }
+
+    // Chunk boundaries, each one right after a newline.
+    private static List<Integer> split(String source, int chunkSize) {
+        List<Integer> bounds = new ArrayList<>();
+        bounds.add(0);
+
+        int position = 0;
+        while (position < source.length()) {
+            int newline = source.indexOf('\n', position + chunkSize - 1);
+            position = newline < 0 ? source.length() : newline + 1;
+            bounds.add(position);
+        }
+
+        return bounds;
+    }
+
+    private static int countNewlines(String source, int from, int to) {
+        int count = 0;
+
+        for (int i = from; i < to; i++) {
+            if (source.charAt(i) == '\n') count++;
+        }
+
+        return count;
+    }
+}
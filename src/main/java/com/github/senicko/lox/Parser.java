@@ -1,17 +1,30 @@
 package com.github.senicko.lox;
 
+import java.util.AbstractList;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Deque;
 import java.util.List;
 
 /*
 program    -> declaration* EOF
 
-declaration -> varDecl | statement
+declaration -> classDecl | funDecl | varDecl | statement
+
+classDecl  -> "class" IDENTIFIER ( "<" IDENTIFIER )? "{" method* "}"
+
+method     -> IDENTIFIER "(" parameters? ")" block
+
+funDecl    -> "fun" IDENTIFIER "(" parameters? ")" block
+
+parameters -> IDENTIFIER ( "," IDENTIFIER )*
 
 varDecl    -> "var" IDENTIFIER ("=" expression)? ";"
 
-statement  -> exprStmt | forStmt | ifStmt | printStmt | whileStmt | block
+statement  -> exprStmt | forStmt | ifStmt | printStmt | returnStmt | whileStmt | block
+
+returnStmt -> "return" expression? ";"
 
 forStmt    -> "for" "(" (varDecl | exprStmt | ";") expression? ";" expression? ")" statement
 
@@ -27,7 +40,7 @@ printStmt  -> "print" expression ";"
 
 expression -> assignment
 
-assignment -> IDENTIFIER "=" assignment | logic_or | ternary
+assignment -> ( IDENTIFIER | call "[" expression "]" | call "." IDENTIFIER ) "=" assignment | logic_or | ternary
 
 logic_or   -> logic_and ( "or" logic_and )*
 
@@ -43,20 +56,203 @@ term       -> factor (( "-" | "+" ) factor)*
 
 factor     -> unary (( "/" | "*" ) unary)*
 
-unary      -> ( "!" | "-" ) unary | primary
+unary      -> ( "!" | "-" ) unary | call
 
-primary    -> NUMBER | STRING | "true" | "false" | "nil" | "(" expression ")" | IDENTIFIER
+call       -> primary ( "(" arguments? ")" | "[" expression "]" | "." IDENTIFIER )*
+
+arguments  -> expression ( "," expression )*
+
+primary    -> NUMBER | STRING | "true" | "false" | "nil" | "(" expression ")" | IDENTIFIER | map | "this"
+            | "super" "." IDENTIFIER
+
+map        -> "{" ( expression ":" expression ( "," expression ":" expression )* )? "}"
 */
 
 public class Parser {
     private static class ParseError extends RuntimeException {
     }
 
+    // An expression whose operator or operand is still being parsed by iterativeExpression().
+    private static class PendingExpr {
+        static final int UNARY = 0;
+        static final int GROUPING = 1;
+        static final int INFIX = 2;
+        static final int TERNARY_THEN = 3;
+        static final int TERNARY_ELSE = 4;
+        static final int CALL = 5;
+        static final int INDEX = 6;
+        static final int MAP = 7;
+
+        final int kind;
+        final Token operator;
+        final Expr left;
+        final Expr middle;
+        final int minPower;
+
+        // The arguments of a call, or the alternating keys and values of a map, parsed so far.
+        final List<Expr> arguments;
+
+        PendingExpr(int kind, Token operator, Expr left, Expr middle, int minPower) {
+            this.kind = kind;
+            this.operator = operator;
+            this.left = left;
+            this.middle = middle;
+            this.minPower = minPower;
+            this.arguments = kind == CALL || kind == MAP ? new ArrayList<>() : null;
+        }
+    }
+
+    private interface PrefixRule {
+        Expr parse(Parser parser, Token token);
+    }
+
+    private interface InfixRule {
+        Expr parse(Parser parser, Expr left, Token operator);
+    }
+
+    // Expression rules indexed by TokenType ordinal. A binding power of zero means the token is not an infix
+    // operator; the powers follow the precedence levels of the grammar above.
+    private static final PrefixRule[] PREFIX = new PrefixRule[TokenType.values().length];
+    private static final InfixRule[] INFIX = new InfixRule[TokenType.values().length];
+    private static final int[] POWERS = new int[TokenType.values().length];
+
+    private static final int UNARY_POWER = 9;
+    private static final int CALL_POWER = 10;
+
+    private static final int MAX_ARGUMENTS = 255;
+
+    // How deep an iterative parser recurses into nested expressions before it parses the rest with an explicit
+    // stack. Recursing is faster, and the few levels almost every expression has fit the thread stack easily.
+    static final int RECURSION_LIMIT = 64;
+
+    static {
+        registerPrefix(Parser::literal, TokenType.FALSE, TokenType.TRUE, TokenType.NIL, TokenType.NUMBER, TokenType.STRING);
+        registerPrefix(Parser::variable, TokenType.IDENTIFIER);
+        registerPrefix(Parser::self, TokenType.THIS);
+        registerPrefix(Parser::superMethod, TokenType.SUPER);
+        registerPrefix(Parser::grouping, TokenType.LEFT_PAREN);
+        registerPrefix(Parser::unary, TokenType.BANG, TokenType.MINUS);
+        // A brace only starts a map where an expression is expected; at the start of a statement it is a block.
+        registerPrefix(Parser::map, TokenType.LEFT_BRACE);
+
+        registerInfix(Parser::assignment, 1, TokenType.EQUAL);
+        registerInfix(Parser::binary, 2, TokenType.OR);
+        registerInfix(Parser::binary, 3, TokenType.AND);
+        registerInfix(Parser::ternary, 4, TokenType.QUESTION_MARK);
+        registerInfix(Parser::binary, 5, TokenType.BANG_EQUAL, TokenType.EQUAL_EQUAL);
+        registerInfix(Parser::binary, 6, TokenType.GREATER, TokenType.GREATER_EQUAL, TokenType.LESS, TokenType.LESS_EQUAL,
+                TokenType.SPACESHIP);
+        registerInfix(Parser::binary, 7, TokenType.MINUS, TokenType.PLUS);
+        registerInfix(Parser::binary, 8, TokenType.SLASH, TokenType.STAR);
+        registerInfix(Parser::call, CALL_POWER, TokenType.LEFT_PAREN);
+        registerInfix(Parser::index, CALL_POWER, TokenType.LEFT_BRACKET);
+        registerInfix(Parser::property, CALL_POWER, TokenType.DOT);
+    }
+
+    private static void registerPrefix(PrefixRule rule, TokenType... types) {
+        for (TokenType type : types) {
+            PREFIX[type.ordinal()] = rule;
+        }
+    }
+
+    private static void registerInfix(InfixRule rule, int power, TokenType... types) {
+        for (TokenType type : types) {
+            INFIX[type.ordinal()] = rule;
+            POWERS[type.ordinal()] = power;
+        }
+    }
+
+    // Statements of a block which has only been brace-matched. The body is parsed, and its syntax errors are
+    // reported, when the statements are first accessed, which normally means the first time the block runs.
+    static class LazyBlock extends AbstractList<Stmt> {
+        private final Parser parser;
+        private final Token brace;
+        private final int start;
+        private volatile List<Stmt> statements;
+
+        private LazyBlock(Parser parser, Token brace, int start) {
+            this.parser = parser;
+            this.brace = brace;
+            this.start = start;
+        }
+
+        @Override
+        public Stmt get(int index) {
+            return statements().get(index);
+        }
+
+        @Override
+        public int size() {
+            return statements().size();
+        }
+
+        boolean isParsed() {
+            return statements != null;
+        }
+
+        // Whether the block's body hasn't been parsed yet. Passes leave such a block as it is rather than parse it
+        // by reading its statements, which would report its syntax errors before it ever runs.
+        static boolean isDeferred(Stmt.Block block) {
+            return block.statements instanceof LazyBlock lazy && !lazy.isParsed();
+        }
+
+        private List<Stmt> statements() {
+            List<Stmt> statements = this.statements;
+            if (statements == null) statements = parse();
+            return statements;
+        }
+
+        private synchronized List<Stmt> parse() {
+            if (statements != null) return statements;
+
+            Parser body = new Parser(parser.tokens, parser.iterative, true, parser.interner);
+            body.current = start;
+
+            try {
+                List<Stmt> parsed = body.block();
+                if (!body.hadError) return statements = parsed;
+            } catch (ParseError error) {
+                // Already reported.
+            }
+
+            throw new LoxRuntimeError(brace, "Block contains syntax errors.");
+        }
+    }
+
     private final List<Token> tokens;
+    private final boolean iterative;
+    private boolean lazy;
+
+    // Shares structurally identical expressions, if set.
+    private final Interner interner;
+    private boolean hadError = false;
     private int current = 0;
 
+    // How many parsePrecedence() calls are running.
+    private int depth = 0;
+
+    // Whether a function body is being parsed.
+    private boolean inFunction = false;
+
+    // Whether a method of a class, of a class with a superclass or of an initializer is being parsed.
+    private boolean inClass = false;
+    private boolean inSubclass = false;
+    private boolean inInitializer = false;
+
     Parser(List<Token> tokens) {
+        this(tokens, false, false);
+    }
+
+    // An iterative parser doesn't recurse while parsing expressions, a lazy one defers parsing block bodies.
+    Parser(List<Token> tokens, boolean iterative, boolean lazy) {
+        this(tokens, iterative, lazy, null);
+    }
+
+    Parser(List<Token> tokens, boolean iterative, boolean lazy, Interner interner) {
         this.tokens = tokens;
+        this.iterative = iterative;
+        this.lazy = lazy;
+        this.interner = interner;
     }
 
     List<Stmt> parse() {
@@ -69,8 +265,28 @@ public class Parser {
         return statements;
     }
 
+    // Whether this parser reported a syntax error. Unlike Main.hadError it is not shared with other parses.
+    boolean hadError() {
+        return hadError;
+    }
+
+    // Lowers every top-level statement into a flat arena as soon as it is parsed, so only one statement exists as
+    // Expr/Stmt objects at a time.
+    FlatAst parseFlat() {
+        FlatAst.Builder builder = new FlatAst.Builder();
+
+        while (!isAtEnd()) {
+            Stmt statement = declaration();
+            if (!hadError) builder.add(statement);
+        }
+
+        return builder.build();
+    }
+
     private Stmt declaration() {
         try {
+            if (match(TokenType.CLASS)) return classDeclaration();
+            if (match(TokenType.FUN)) return function(false);
             if (match(TokenType.VAR)) return varDeclaration();
             return statement();
         } catch (ParseError error) {
@@ -84,12 +300,14 @@ public class Parser {
         if (match(TokenType.FOR)) return forStatement();
         if (match(TokenType.WHILE)) return whileStatement();
         if (match(TokenType.PRINT)) return printStatement();
-        if (match(TokenType.LEFT_BRACE)) return new Stmt.Block(block());
+        if (match(TokenType.RETURN)) return returnStatement();
+        if (match(TokenType.LEFT_BRACE)) return new Stmt.Block(lazy ? skipBlock() : block());
 
         return expressionStatement();
     }
 
     private Stmt forStatement() {
+        Token keyword = previous();
         consume(TokenType.LEFT_PAREN, "Expect '(' after 'for'.");
 
         Stmt initializer;
@@ -121,7 +339,7 @@ public class Parser {
         }
 
         if(condition == null) condition = new Expr.Literal(true);
-        body = new Stmt.While(condition, body);
+        body = new Stmt.While(condition, body, new LoopProfile(keyword.line()));
 
         if(initializer != null) {
             body = new Stmt.Block(Arrays.asList(initializer, body));
@@ -151,6 +369,104 @@ public class Parser {
         return new Stmt.Print(value);
     }
 
+    private Stmt classDeclaration() {
+        Token keyword = previous();
+
+        // Methods are resolved like functions, so they couldn't close over a function's frame either.
+        if (inFunction) error(keyword, "Classes can't be declared inside functions.");
+
+        Token name = consume(TokenType.IDENTIFIER, "Expect class name.");
+
+        Expr superclass = null;
+        if (match(TokenType.LESS)) {
+            Token superName = consume(TokenType.IDENTIFIER, "Expect superclass name.");
+            if (superName.lexeme().equals(name.lexeme())) error(superName, "A class can't inherit from itself.");
+
+            superclass = new Expr.Variable(superName);
+        }
+
+        consume(TokenType.LEFT_BRACE, "Expect '{' before class body.");
+
+        boolean wasInFunction = inFunction;
+        boolean wasInClass = inClass;
+        boolean wasInSubclass = inSubclass;
+        List<Stmt> methods = new ArrayList<>();
+
+        try {
+            inFunction = false;
+            inClass = true;
+            inSubclass = superclass != null;
+
+            while (!check(TokenType.RIGHT_BRACE) && !isAtEnd()) {
+                methods.add(function(true));
+            }
+        } finally {
+            inFunction = wasInFunction;
+            inClass = wasInClass;
+            inSubclass = wasInSubclass;
+        }
+
+        consume(TokenType.RIGHT_BRACE, "Expect '}' after class body.");
+        return new Stmt.Class(name, superclass, methods);
+    }
+
+    private Stmt function(boolean method) {
+        String kind = method ? "method" : "function";
+
+        // Frames are flat slot arrays which nothing outlives, so there is nothing an inner function could close over.
+        if (inFunction) error(previous(), "Functions can't be nested.");
+
+        Token name = consume(TokenType.IDENTIFIER, "Expect " + kind + " name.");
+        consume(TokenType.LEFT_PAREN, "Expect '(' after " + kind + " name.");
+
+        List<Token> params = new ArrayList<>();
+
+        if (!check(TokenType.RIGHT_PAREN)) {
+            do {
+                if (params.size() == MAX_ARGUMENTS) error(peek(), "Can't have more than 255 parameters.");
+                params.add(consume(TokenType.IDENTIFIER, "Expect parameter name."));
+            } while (match(TokenType.COMMA));
+        }
+
+        consume(TokenType.RIGHT_PAREN, "Expect ')' after parameters.");
+        consume(TokenType.LEFT_BRACE, "Expect '{' before " + kind + " body.");
+
+        // Bodies are resolved as soon as they are parsed, so they are never deferred.
+        boolean wasLazy = lazy;
+        boolean wasInFunction = inFunction;
+        boolean wasInInitializer = inInitializer;
+        List<Stmt> body;
+
+        try {
+            lazy = false;
+            inFunction = true;
+            inInitializer = method && name.lexeme().equals("init");
+            body = block();
+        } finally {
+            lazy = wasLazy;
+            inFunction = wasInFunction;
+            inInitializer = wasInInitializer;
+        }
+
+        if (method) return Resolver.resolveMethod(name, params, body);
+        return Resolver.resolve(name, params, body);
+    }
+
+    private Stmt returnStatement() {
+        Token keyword = previous();
+
+        if (!inFunction) error(keyword, "Can't return from top-level code.");
+
+        Expr value = null;
+        if (!check(TokenType.SEMICOLON)) {
+            if (inInitializer) error(keyword, "Can't return a value from an initializer.");
+            value = expression();
+        }
+
+        consume(TokenType.SEMICOLON, "Expect ';' after return value.");
+        return new Stmt.Return(keyword, value);
+    }
+
     private Stmt varDeclaration() {
         Token name = consume(TokenType.IDENTIFIER, "Expect variable name.");
 
@@ -164,12 +480,13 @@ public class Parser {
     }
 
     private Stmt whileStatement() {
+        Token keyword = previous();
         consume(TokenType.LEFT_PAREN, "Expect '(' after 'while'.");
         Expr condition = expression();
         consume(TokenType.RIGHT_PAREN, "Expect ')' after condition.");
         Stmt body = statement();
 
-        return new Stmt.While(condition, body);
+        return new Stmt.While(condition, body, new LoopProfile(keyword.line()));
     }
 
     private Stmt expressionStatement() {
@@ -189,145 +506,324 @@ public class Parser {
         return statements;
     }
 
+    private List<Stmt> skipBlock() {
+        Token brace = previous();
+        int start = current;
+        int depth = 1;
+
+        while (!isAtEnd()) {
+            TokenType type = advance().type();
+
+            if (type == TokenType.LEFT_BRACE) depth++;
+            else if (type == TokenType.RIGHT_BRACE && --depth == 0) return new LazyBlock(this, brace, start);
+        }
+
+        throw error(peek(), "Expect '}' after block.");
+    }
+
     private Expr expression() {
-        return assignment();
+        return parsePrecedence(0);
     }
 
-    private Expr assignment() {
-        Expr expr = or();
+    // Pratt parser: the prefix rule of the current token parses an operand, then infix rules are applied for as
+    // long as the next operator binds tighter than the caller's minimum power.
+    private Expr parsePrecedence(int minPower) {
+        if (iterative && depth >= RECURSION_LIMIT) return iterativeExpression(minPower);
 
-        if (match(TokenType.EQUAL)) {
-            Token target = previous();
-            Expr value = assignment();
+        depth++;
+
+        try {
+            Expr expr = operand();
 
-            if (expr instanceof Expr.Variable var) {
-                Token name = var.name;
-                return new Expr.Assignment(name, value);
+            while (POWERS[peek().type().ordinal()] > minPower) {
+                Token operator = advance();
+                expr = INFIX[operator.type().ordinal()].parse(this, expr, operator);
             }
 
-            error(target, "Invalid assignment target");
+            return expr;
+        } finally {
+            depth--;
         }
-
-        return expr;
     }
 
-    private Expr or() {
-        Expr expr = and();
+    private Expr operand() {
+        Token token = peek();
+        PrefixRule rule = PREFIX[token.type().ordinal()];
 
-        while (match(TokenType.OR)) {
-            Token operator = previous();
-            Expr right = and();
-            expr = new Expr.Logical(expr, operator, right);
-        }
+        if (rule == null) throw error(token, "Expect expression.");
 
-        return expr;
+        advance();
+        return rule.parse(this, token);
     }
 
-    private Expr and() {
-        Expr expr = ternary();
+    private Expr literal(Token token) {
+        return switch (token.type()) {
+            case FALSE -> intern(new Expr.Literal(false));
+            case TRUE -> intern(new Expr.Literal(true));
+            case NIL -> intern(new Expr.Literal(null));
+            default -> intern(new Expr.Literal(token.literal()));
+        };
+    }
 
-        while (match(TokenType.AND)) {
-            Token operator = previous();
-            Expr right = ternary();
-            expr = new Expr.Logical(expr, operator, right);
-        }
+    private Expr variable(Token token) {
+        return intern(new Expr.Variable(token));
+    }
 
-        return expr;
+    // The node shared with every structurally identical one parsed before, when interning.
+    private Expr intern(Expr expr) {
+        return interner == null ? expr : interner.intern(expr);
     }
 
-    private Expr ternary() {
-        Expr expr = equality();
+    // 'this' reads the first slot of the method's frame, see Resolver.
+    private Expr self(Token keyword) {
+        if (!inClass) error(keyword, "Can't use 'this' outside of a class.");
+        return intern(new Expr.Variable(keyword));
+    }
 
-        // If the next token is ?
-        if (match(TokenType.QUESTION_MARK)) {
-            // Get the 'when truthy' expression
-            Expr a = expression();
+    private Expr superMethod(Token keyword) {
+        if (!inClass) error(keyword, "Can't use 'super' outside of a class.");
+        else if (!inSubclass) error(keyword, "Can't use 'super' in a class with no superclass.");
 
-            // Check if the next token is ':'
-            if (match(TokenType.COLON)) {
-                // Get the 'when falsy' expression
-                Expr b = expression();
-                expr = new Expr.Ternary(expr, a, b);
-            } else {
-                throw error(peek(), "expected ':'");
-            }
-        }
+        consume(TokenType.DOT, "Expect '.' after 'super'.");
+        Token method = consume(TokenType.IDENTIFIER, "Expect superclass method name.");
 
-        return expr;
+        Token self = new Token(TokenType.THIS, "this", null, keyword.line());
+        return new Expr.Super(keyword, method, new Expr.Variable(self));
     }
 
-    private Expr equality() {
-        Expr expr = comparison();
+    private Expr grouping(Token token) {
+        Expr expr = parsePrecedence(0);
+        consume(TokenType.RIGHT_PAREN, "Expect ')' after expression.");
+        return intern(new Expr.Grouping(expr));
+    }
+
+    private Expr map(Token brace) {
+        List<Expr> keys = new ArrayList<>();
+        List<Expr> values = new ArrayList<>();
 
-        while (match(TokenType.BANG_EQUAL, TokenType.EQUAL_EQUAL)) {
-            Token operator = previous();
-            Expr right = comparison();
-            expr = new Expr.Binary(expr, operator, right);
+        if (!check(TokenType.RIGHT_BRACE)) {
+            do {
+                keys.add(parsePrecedence(0));
+                consume(TokenType.COLON, "Expect ':' after map key.");
+                values.add(parsePrecedence(0));
+            } while (match(TokenType.COMMA));
         }
 
-        return expr;
+        consume(TokenType.RIGHT_BRACE, "Expect '}' after map entries.");
+        return new Expr.MapLiteral(brace, keys, values);
     }
 
-    private Expr comparison() {
-        Expr expr = term();
+    private Expr unary(Token operator) {
+        return intern(new Expr.Unary(operator, parsePrecedence(UNARY_POWER)));
+    }
 
-        while (match(TokenType.GREATER, TokenType.GREATER_EQUAL, TokenType.LESS, TokenType.LESS_EQUAL, TokenType.SPACESHIP)) {
-            Token operator = previous();
-            Expr right = term();
-            expr = new Expr.Binary(expr, operator, right);
-        }
+    private Expr binary(Expr left, Token operator) {
+        Expr right = parsePrecedence(POWERS[operator.type().ordinal()]);
+        return infix(left, operator, right);
+    }
 
-        return expr;
+    private Expr assignment(Expr left, Token operator) {
+        // Assignment is right associative, so the value may itself be an assignment.
+        Expr value = parsePrecedence(POWERS[operator.type().ordinal()] - 1);
+        return infix(left, operator, value);
     }
 
-    private Expr term() {
-        Expr expr = factor();
+    private Expr ternary(Expr condition, Token operator) {
+        Expr truthy = parsePrecedence(0);
 
-        while (match(TokenType.MINUS, TokenType.PLUS)) {
-            Token operator = previous();
-            Expr right = factor();
-            expr = new Expr.Binary(expr, operator, right);
-        }
+        if (!match(TokenType.COLON)) throw error(peek(), "expected ':'");
 
-        return expr;
+        Expr falsy = parsePrecedence(0);
+        return intern(new Expr.Ternary(condition, truthy, falsy));
     }
 
-    private Expr factor() {
-        Expr expr = unary();
+    private Expr call(Expr callee, Token paren) {
+        List<Expr> arguments = new ArrayList<>();
 
-        while (match(TokenType.SLASH, TokenType.STAR)) {
-            Token operator = previous();
-            Expr right = unary();
-            expr = new Expr.Binary(expr, operator, right);
+        if (!check(TokenType.RIGHT_PAREN)) {
+            do {
+                if (arguments.size() == MAX_ARGUMENTS) error(peek(), "Can't have more than 255 arguments.");
+                arguments.add(parsePrecedence(0));
+            } while (match(TokenType.COMMA));
         }
 
-        return expr;
+        consume(TokenType.RIGHT_PAREN, "Expect ')' after arguments.");
+        return new Expr.Call(callee, paren, arguments);
+    }
+
+    private Expr property(Expr object, Token dot) {
+        Token name = consume(TokenType.IDENTIFIER, "Expect property name after '.'.");
+        return new Expr.Get(object, name, new PropertyCache());
+    }
+
+    private Expr index(Expr object, Token bracket) {
+        Expr index = parsePrecedence(0);
+        consume(TokenType.RIGHT_BRACKET, "Expect ']' after index.");
+        return new Expr.Index(object, bracket, index);
+    }
+
+    // Parses an expression with an explicit stack instead of recursion, so the nesting depth is bounded by the
+    // heap rather than the thread stack. It produces the same trees and errors as parsePrecedence().
+    private Expr iterativeExpression(int minPower) {
+        Deque<PendingExpr> pending = new ArrayDeque<>();
+
+        next:
+        while (true) {
+            // Prefix operators and groupings are opened before their operand is known.
+            while (true) {
+                if (check(TokenType.BANG) || check(TokenType.MINUS)) {
+                    advance();
+                    pending.push(new PendingExpr(PendingExpr.UNARY, previous(), null, null, minPower));
+                    minPower = UNARY_POWER;
+                } else if (match(TokenType.LEFT_PAREN)) {
+                    pending.push(new PendingExpr(PendingExpr.GROUPING, previous(), null, null, minPower));
+                    minPower = 0;
+                } else if (check(TokenType.LEFT_BRACE) && peekNext().type() != TokenType.RIGHT_BRACE) {
+                    // Empty maps are left to operand().
+                    advance();
+                    pending.push(new PendingExpr(PendingExpr.MAP, previous(), null, null, minPower));
+                    minPower = 0;
+                } else {
+                    break;
+                }
+            }
+
+            Expr expr = operand();
+
+            while (true) {
+                int power = POWERS[peek().type().ordinal()];
+
+                if (power > minPower) {
+                    Token operator = advance();
+
+                    if (operator.type() == TokenType.LEFT_PAREN) {
+                        if (match(TokenType.RIGHT_PAREN)) {
+                            expr = new Expr.Call(expr, operator, new ArrayList<>());
+                            continue;
+                        }
+
+                        pending.push(new PendingExpr(PendingExpr.CALL, operator, expr, null, minPower));
+                        minPower = 0;
+                    } else if (operator.type() == TokenType.DOT) {
+                        expr = property(expr, operator);
+                        continue;
+                    } else if (operator.type() == TokenType.LEFT_BRACKET) {
+                        pending.push(new PendingExpr(PendingExpr.INDEX, operator, expr, null, minPower));
+                        minPower = 0;
+                    } else if (operator.type() == TokenType.QUESTION_MARK) {
+                        pending.push(new PendingExpr(PendingExpr.TERNARY_THEN, operator, expr, null, minPower));
+                        minPower = 0;
+                    } else {
+                        pending.push(new PendingExpr(PendingExpr.INFIX, operator, expr, null, minPower));
+                        // Assignment is the only right associative operator.
+                        minPower = operator.type() == TokenType.EQUAL ? power - 1 : power;
+                    }
+
+                    continue next;
+                }
+
+                if (pending.isEmpty()) return expr;
+
+                PendingExpr frame = pending.pop();
+                minPower = frame.minPower;
+
+                switch (frame.kind) {
+                    case PendingExpr.UNARY -> expr = intern(new Expr.Unary(frame.operator, expr));
+                    case PendingExpr.GROUPING -> {
+                        consume(TokenType.RIGHT_PAREN, "Expect ')' after expression.");
+                        expr = intern(new Expr.Grouping(expr));
+                    }
+                    case PendingExpr.INFIX -> expr = infix(frame.left, frame.operator, expr);
+                    case PendingExpr.TERNARY_THEN -> {
+                        if (!match(TokenType.COLON)) throw error(peek(), "expected ':'");
+
+                        pending.push(new PendingExpr(PendingExpr.TERNARY_ELSE, null, frame.left, expr, minPower));
+                        minPower = 0;
+                        continue next;
+                    }
+                    case PendingExpr.TERNARY_ELSE -> expr = intern(new Expr.Ternary(frame.left, frame.middle, expr));
+                    case PendingExpr.INDEX -> {
+                        consume(TokenType.RIGHT_BRACKET, "Expect ']' after index.");
+                        expr = new Expr.Index(frame.left, frame.operator, expr);
+                    }
+                    case PendingExpr.MAP -> {
+                        frame.arguments.add(expr);
+
+                        // Odd sizes end in a key, even ones in a value.
+                        if (frame.arguments.size() % 2 == 1) {
+                            consume(TokenType.COLON, "Expect ':' after map key.");
+                            pending.push(frame);
+                            minPower = 0;
+                            continue next;
+                        }
+
+                        if (match(TokenType.COMMA)) {
+                            pending.push(frame);
+                            minPower = 0;
+                            continue next;
+                        }
+
+                        consume(TokenType.RIGHT_BRACE, "Expect '}' after map entries.");
+                        expr = mapLiteral(frame.operator, frame.arguments);
+                    }
+                    case PendingExpr.CALL -> {
+                        frame.arguments.add(expr);
+
+                        if (match(TokenType.COMMA)) {
+                            if (frame.arguments.size() == MAX_ARGUMENTS) error(peek(), "Can't have more than 255 arguments.");
+
+                            pending.push(frame);
+                            minPower = 0;
+                            continue next;
+                        }
+
+                        consume(TokenType.RIGHT_PAREN, "Expect ')' after arguments.");
+                        expr = new Expr.Call(frame.left, frame.operator, frame.arguments);
+                    }
+                }
+            }
+        }
     }
 
-    private Expr unary() {
-        if (match(TokenType.BANG, TokenType.MINUS)) {
-            Token operator = previous();
-            Expr right = unary();
-            return new Expr.Unary(operator, right);
+    private Expr mapLiteral(Token brace, List<Expr> entries) {
+        List<Expr> keys = new ArrayList<>();
+        List<Expr> values = new ArrayList<>();
+
+        for (int i = 0; i < entries.size(); i += 2) {
+            keys.add(entries.get(i));
+            values.add(entries.get(i + 1));
         }
 
-        return primary();
+        return new Expr.MapLiteral(brace, keys, values);
     }
 
-    private Expr primary() {
-        if (match(TokenType.FALSE)) return new Expr.Literal(false);
-        if (match(TokenType.TRUE)) return new Expr.Literal(true);
-        if (match(TokenType.NIL)) return new Expr.Literal(null);
-        if (match(TokenType.NUMBER, TokenType.STRING)) return new Expr.Literal(previous().literal());
-        if (match(TokenType.IDENTIFIER)) return new Expr.Variable(previous());
+    private Expr infix(Expr left, Token operator, Expr right) {
+        switch (operator.type()) {
+            case EQUAL -> {
+                if (left instanceof Expr.Variable var && var.name.type() == TokenType.IDENTIFIER)
+                    return new Expr.Assignment(var.name, right);
+                if (left instanceof Expr.Index index) return new Expr.IndexSet(index.object, index.bracket, index.index, right);
+                if (left instanceof Expr.Get get) return new Expr.Set(get.object, get.name, right, new PropertyCache());
+
+                error(operator, "Invalid assignment target");
+                return left;
+            }
+            case OR, AND -> {
+                return intern(new Expr.Logical(left, operator, right));
+            }
+            default -> {
+                return intern(new Expr.Binary(left, operator, right));
+            }
+        }
+    }
 
-        if (match(TokenType.LEFT_PAREN)) {
-            Expr expr = expression();
-            consume(TokenType.RIGHT_PAREN, "Expect ')' after expression.");
-            return new Expr.Grouping(expr);
+    private boolean match(TokenType type) {
+        if (check(type)) {
+            advance();
+            return true;
         }
 
-        throw error(peek(), "Expect expression.");
+        return false;
     }
 
     private boolean match(TokenType... types) {
@@ -351,6 +847,7 @@ public class Parser {
 
     private ParseError error(Token token, String message) {
         Main.error(token, message);
+        hadError = true;
         return new ParseError();
     }
 
@@ -388,6 +885,11 @@ public class Parser {
         return tokens.get(current);
     }
 
+    private Token peekNext() {
+        if (isAtEnd()) return peek();
+        return tokens.get(current + 1);
+    }
+
     private Token previous() {
         return tokens.get(current - 1);
     }
@@ -0,0 +1,169 @@
+package com.github.senicko.lox;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+// The inline cache of one property access site. It remembers what the access resolved to for the last few shapes
+// it saw, so an access on an instance of a known shape is an identity check and an array load. A site which sees
+// more shapes than it has ways is megamorphic and looks up every access from then on.
+final class PropertyCache {
+    static final int WAYS = 4;
+
+    // For a get, the slot of the field or -1 and the method. For a set, the slot of the field and the shape the
+    // instance has after the store. Entries are immutable, so a site shared between threads never mixes two.
+    record Entry(Shape shape, int slot, LoxClass.Method method, Shape next) {
+    }
+
+    record Stats(int sites, long hits, long misses, int megamorphic) {
+        double hitRate() {
+            return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+        }
+    }
+
+    private final Entry[] entries = new Entry[WAYS];
+    private int size = 0;
+    private boolean megamorphic = false;
+
+    // Plain counters, so concurrent runs of one script may lose updates.
+    private long hits = 0;
+    private long misses = 0;
+
+    Object get(LoxInstance instance, Token name) {
+        Entry entry = lookUp(instance, name);
+        return entry.slot >= 0 ? instance.fields[entry.slot] : entry.method.bind(instance);
+    }
+
+    // What reading the property of the instance resolves to.
+    Entry lookUp(LoxInstance instance, Token name) {
+        Shape shape = instance.shape;
+
+        for (int i = 0; i < size; i++) {
+            Entry entry = entries[i];
+
+            if (entry != null && entry.shape == shape) {
+                hits++;
+                return entry;
+            }
+        }
+
+        misses++;
+
+        // Fields shadow methods.
+        int slot = shape.slot(name.lexeme());
+        LoxClass.Method method = null;
+
+        if (slot < 0) {
+            method = shape.owner.findMethod(name.lexeme());
+            if (method == null) throw new LoxRuntimeError(name, "Undefined property '" + name.lexeme() + "'.");
+        }
+
+        return add(new Entry(shape, slot, method, shape));
+    }
+
+    void set(LoxInstance instance, Token name, Object value) {
+        Shape shape = instance.shape;
+        Entry found = null;
+
+        for (int i = 0; i < size; i++) {
+            Entry entry = entries[i];
+
+            if (entry != null && entry.shape == shape) {
+                found = entry;
+                break;
+            }
+        }
+
+        if (found != null) {
+            hits++;
+        } else {
+            misses++;
+
+            int slot = shape.slot(name.lexeme());
+
+            if (slot >= 0) {
+                found = add(new Entry(shape, slot, null, shape));
+            } else {
+                Shape next = shape.with(name.lexeme());
+                found = add(new Entry(shape, next.size - 1, null, next));
+            }
+        }
+
+        if (found.next != shape) instance.reshape(found.next);
+        instance.fields[found.slot] = value;
+    }
+
+    private Entry add(Entry entry) {
+        if (size == WAYS) {
+            megamorphic = true;
+        } else {
+            entries[size] = entry;
+            size++;
+        }
+
+        return entry;
+    }
+
+    static Stats stats(List<Stmt> program) {
+        // A counted loop holds its body twice, as the body and as part of the loop it was recognized from.
+        Set<PropertyCache> caches = Collections.newSetFromMap(new IdentityHashMap<>());
+
+        for (Stmt stmt : program) {
+            collect(stmt, caches);
+        }
+
+        return sum(caches);
+    }
+
+    static Stats stats(FlatAst ast) {
+        List<PropertyCache> caches = new ArrayList<>();
+
+        for (Object constant : ast.constants) {
+            if (constant instanceof PropertyCache cache) caches.add(cache);
+        }
+
+        return sum(caches);
+    }
+
+    private static Stats sum(Collection<PropertyCache> caches) {
+        long hits = 0;
+        long misses = 0;
+        int megamorphic = 0;
+
+        for (PropertyCache cache : caches) {
+            hits += cache.hits;
+            misses += cache.misses;
+            if (cache.megamorphic) megamorphic++;
+        }
+
+        return new Stats(caches.size(), hits, misses, megamorphic);
+    }
+
+    // Blocks which were never parsed never ran, so they are skipped rather than parsed now. Walked with an explicit
+    // stack, as trees parsed iteratively can be arbitrarily deep.
+    private static void collect(Stmt stmt, Set<PropertyCache> caches) {
+        Deque<Object> pending = new ArrayDeque<>();
+        pending.push(stmt);
+
+        while (!pending.isEmpty()) {
+            Object node = pending.pop();
+
+            if (node instanceof Expr expr) {
+                if (expr instanceof Expr.Get get) caches.add(get.cache);
+                if (expr instanceof Expr.Set set) caches.add(set.cache);
+
+                expr.forEachChild(pending::push, pending::push);
+                continue;
+            }
+
+            if (node instanceof Stmt.Block block && Parser.LazyBlock.isDeferred(block)) continue;
+
+            ((Stmt) node).forEachChild(pending::push, pending::push);
+        }
+    }
+}
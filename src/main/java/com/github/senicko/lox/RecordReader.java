@@ -0,0 +1,132 @@
+package com.github.senicko.lox;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// Reads the delimiter separated records of a file through a read-only memory mapping. The file is mapped a window
+// at a time, so files of any size are read without loading them, and a record is only copied out of the mapping
+// when it is turned into a string. Records are UTF-8, and a trailing delimiter doesn't start an empty record.
+class RecordReader {
+    static final long WINDOW_SIZE = 1L << 28;
+
+    private static final long ONES = 0x0101010101010101L;
+    private static final long HIGHS = 0x8080808080808080L;
+
+    private final Path path;
+    private final byte delimiter;
+    private final boolean lines;
+    private final long windowSize;
+    private final long size;
+
+    private MappedByteBuffer window;
+    private long windowStart = 0;
+    private int position = 0;
+    private byte[] buffer = new byte[256];
+
+    // A line reader splits on '\n' and drops the '\r' of "\r\n" line endings.
+    RecordReader(Path path, byte delimiter, boolean lines) throws IOException {
+        this(path, delimiter, lines, WINDOW_SIZE);
+    }
+
+    RecordReader(Path path, byte delimiter, boolean lines, long windowSize) throws IOException {
+        this.path = path;
+        this.delimiter = delimiter;
+        this.lines = lines;
+        this.windowSize = windowSize;
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            this.size = channel.size();
+        }
+
+        map(0, windowSize);
+    }
+
+    // The next record, or null once the file is exhausted.
+    String next() throws IOException {
+        if (windowStart + position >= size) {
+            window = null;
+            return null;
+        }
+
+        while (true) {
+            int end = find(position);
+
+            if (end >= 0) {
+                String record = decode(position, end);
+                position = end + 1;
+                return record;
+            }
+
+            int limit = window.limit();
+
+            // The last record need not be terminated.
+            if (windowStart + limit >= size) {
+                String record = decode(position, limit);
+                position = limit;
+                return record;
+            }
+
+            // The record runs past the window, so the next one starts with it, twice as large if it already did.
+            long length = position == 0 ? 2L * limit : windowSize;
+            map(windowStart + position, length);
+        }
+    }
+
+    private void map(long start, long length) throws IOException {
+        length = Math.min(length, size - start);
+
+        if (length > Integer.MAX_VALUE - 8) throw new IOException("Record longer than 2 GiB.");
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            // The mapping stays valid after the channel is closed.
+            window = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+        }
+
+        window.order(ByteOrder.LITTLE_ENDIAN);
+        windowStart = start;
+        position = 0;
+    }
+
+    // Index of the next delimiter in the window, searched a word at a time: a byte of the word xor the delimiter is
+    // zero exactly where the delimiter is, and the lowest flagged byte of the zero byte test is always a real one.
+    private int find(int from) {
+        int limit = window.limit();
+        long pattern = ONES * (delimiter & 0xFF);
+        int i = from;
+
+        while (i + Long.BYTES <= limit) {
+            long word = window.getLong(i) ^ pattern;
+            long zeros = (word - ONES) & ~word & HIGHS;
+
+            if (zeros != 0) return i + (Long.numberOfTrailingZeros(zeros) >>> 3);
+
+            i += Long.BYTES;
+        }
+
+        for (; i < limit; i++) {
+            if (window.get(i) == delimiter) return i;
+        }
+
+        return -1;
+    }
+
+    private String decode(int from, int to) {
+        if (lines && to > from && window.get(to - 1) == '\r') to--;
+
+        int length = to - from;
+        if (length > buffer.length) buffer = new byte[Math.max(length, buffer.length * 2)];
+
+        window.get(from, buffer, 0, length);
+        return new String(buffer, 0, length, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public String toString() {
+        return "<reader " + path + ">";
+    }
+}
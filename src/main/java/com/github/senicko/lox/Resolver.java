@@ -0,0 +1,103 @@
+package com.github.senicko.lox;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Assigns the parameters and local variables of a function body to slots of a flat frame, rewriting every
+// reference to them into Local, LocalAssign and LocalVar nodes. Names which aren't local to the function are left
+// alone and resolved through the environment the function was declared in. A method's frame starts with the
+// instance it is bound to, which the body reads through 'this'.
+class Resolver {
+    private final Deque<Map<String, Integer>> scopes = new ArrayDeque<>();
+    private int slots = 0;
+
+    static Stmt.Function resolve(Token name, List<Token> params, List<Stmt> body) {
+        return resolve(name, params, body, false);
+    }
+
+    static Stmt.Function resolveMethod(Token name, List<Token> params, List<Stmt> body) {
+        return resolve(name, params, body, true);
+    }
+
+    private static Stmt.Function resolve(Token name, List<Token> params, List<Stmt> body, boolean method) {
+        Resolver resolver = new Resolver();
+        resolver.scopes.push(new HashMap<>());
+
+        if (method) resolver.declare("this");
+
+        for (Token param : params) {
+            resolver.declare(param.lexeme());
+        }
+
+        List<Stmt> resolved = Stmt.rewriteAll(body, resolver::statement);
+        return new Stmt.Function(name, params, resolved, resolver.slots);
+    }
+
+    private Stmt statement(Stmt stmt) {
+        switch (stmt.kind) {
+            case Stmt.VAR -> {
+                Stmt.Var var = (Stmt.Var) stmt;
+
+                // The initializer can't see the variable it initializes.
+                Expr initializer = var.initializer == null ? null : expression(var.initializer);
+                return new Stmt.LocalVar(var.name, declare(var.name.lexeme()), initializer);
+            }
+            case Stmt.BLOCK -> {
+                scopes.push(new HashMap<>());
+
+                try {
+                    return stmt.withChildren(this::expression, this::statement);
+                } finally {
+                    scopes.pop();
+                }
+            }
+            default -> {
+                return stmt.withChildren(this::expression, this::statement);
+            }
+        }
+    }
+
+    // Expressions don't open scopes, so every name in one resolves the same whichever order they are visited in.
+    private Expr expression(Expr expr) {
+        return Rewriter.bottomUp(expr, this::resolveNode);
+    }
+
+    // The node with its name resolved, whose children were resolved already.
+    private Expr resolveNode(Expr expr) {
+        switch (expr.kind) {
+            case Expr.VARIABLE -> {
+                Expr.Variable variable = (Expr.Variable) expr;
+                Integer slot = lookUp(variable.name);
+
+                return slot == null ? expr : new Expr.Local(variable.name, slot);
+            }
+            case Expr.ASSIGNMENT -> {
+                Expr.Assignment assignment = (Expr.Assignment) expr;
+                Integer slot = lookUp(assignment.name);
+
+                return slot == null ? expr : new Expr.LocalAssign(assignment.name, slot, assignment.value);
+            }
+            default -> {
+                return expr;
+            }
+        }
+    }
+
+    // Every declaration gets a slot of its own, so a shadowing variable never clobbers the one it shadows.
+    private int declare(String name) {
+        scopes.peek().put(name, slots);
+        return slots++;
+    }
+
+    private Integer lookUp(Token name) {
+        for (Map<String, Integer> scope : scopes) {
+            Integer slot = scope.get(name.lexeme());
+            if (slot != null) return slot;
+        }
+
+        return null;
+    }
+}
@@ -0,0 +1,57 @@
+package com.github.senicko.lox;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.function.UnaryOperator;
+
+// Rewrites of whole expression trees the passes share. Expr is generated by tool.Main, so they live here rather
+// than next to withChildren.
+final class Rewriter {
+    private Rewriter() {
+    }
+
+    // A node whose children were pushed above it, to be rebuilt from their results once they are on top of the
+    // results stack, from base up.
+    private record Rebuild(Expr node, int base) {
+    }
+
+    // Rewrites the children of every node before the node itself, like a rewrite calling withChildren on itself
+    // first, with an explicit stack, as trees parsed iteratively can be arbitrarily deep.
+    static Expr bottomUp(Expr expr, UnaryOperator<Expr> rewrite) {
+        Deque<Object> pending = new ArrayDeque<>();
+        List<Expr> results = new ArrayList<>();
+        List<Expr> children = new ArrayList<>();
+        pending.push(expr);
+
+        while (!pending.isEmpty()) {
+            Object next = pending.pop();
+
+            if (next instanceof Rebuild rebuild) {
+                int[] child = {rebuild.base};
+                Expr rebuilt = rebuild.node.withChildren(unused -> results.get(child[0]++), stmt -> stmt);
+
+                results.subList(rebuild.base, results.size()).clear();
+                results.add(rewrite.apply(rebuilt));
+                continue;
+            }
+
+            Expr node = (Expr) next;
+            children.clear();
+            node.forEachChild(children::add, stmt -> {
+            });
+
+            if (children.isEmpty()) {
+                results.add(rewrite.apply(node));
+                continue;
+            }
+
+            // Pushed in reverse, so the children are rewritten in order and their results end up in order.
+            pending.push(new Rebuild(node, results.size()));
+            for (int i = children.size() - 1; i >= 0; i--) pending.push(children.get(i));
+        }
+
+        return results.get(0);
+    }
+}
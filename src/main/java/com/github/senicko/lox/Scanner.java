@@ -6,11 +6,24 @@ import java.util.List;
 import java.util.Map;
 
 public class Scanner {
+    record Diagnostic(int line, String message) {
+    }
+
     private final String source;
+    private final int end;
     private final List<Token> tokens = new ArrayList<>();
-    private int start = 0;
-    private int current = 0;
-    private int line = 1;
+    private int start;
+    private int current;
+    private int line;
+
+    // Range scanners collect their errors instead of reporting them, see ParallelScanner.
+    private final List<Diagnostic> diagnostics;
+
+    // Offset and line of a string literal which runs past the end of the range, or -1.
+    private int openString = -1;
+    private int openStringLine;
+
+    private boolean hadError = false;
 
     private static final Map<String, TokenType> keywords;
 
@@ -36,18 +49,62 @@ public class Scanner {
 
     Scanner(String source) {
         this.source = source;
+        this.end = source.length();
+        this.line = 1;
+        this.diagnostics = null;
+    }
+
+    // Scans source[from, to) starting at the given line, where from is the start of a line or an opening quote.
+    Scanner(String source, int from, int to, int line) {
+        this.source = source;
+        this.current = from;
+        this.end = to;
+        this.line = line;
+        this.diagnostics = new ArrayList<>();
     }
 
     List<Token> scanTokens() {
+        scanRange();
+
+        tokens.add(new Token(TokenType.EOF, "", null, line));
+        return tokens;
+    }
+
+    List<Token> scanRange() {
         while (!isAtEnd()) {
             start = current;
             scanToken();
         }
 
-        tokens.add(new Token(TokenType.EOF, "", null, line));
         return tokens;
     }
 
+    List<Token> tokens() {
+        return tokens;
+    }
+
+    int line() {
+        return line;
+    }
+
+    boolean endsInsideString() {
+        return openString >= 0;
+    }
+
+    int openString() {
+        return openString;
+    }
+
+    int openStringLine() {
+        return openStringLine;
+    }
+
+    void reportErrors() {
+        for (Diagnostic diagnostic : diagnostics) {
+            Main.error(diagnostic.line(), diagnostic.message());
+        }
+    }
+
     private void scanToken() {
         char c = advance();
 
@@ -65,6 +122,12 @@ public class Scanner {
             case '}':
                 addToken(TokenType.RIGHT_BRACE);
                 break;
+            case '[':
+                addToken(TokenType.LEFT_BRACKET);
+                break;
+            case ']':
+                addToken(TokenType.RIGHT_BRACKET);
+                break;
             case ',':
                 addToken(TokenType.COMMA);
                 break;
@@ -107,21 +170,19 @@ public class Scanner {
             // Comments
             case '/':
                 if (match('/')) {
-                    while (peek() != '\n' && !isAtEnd()) advance();
+                    skipComment();
                 } else {
                     addToken(TokenType.SLASH);
                 }
                 break;
 
-            // White characters
+            // White characters and new lines
             case ' ':
             case '\r':
             case '\t':
-                break;
-
-            // New line
             case '\n':
-                line++;
+                current--;
+                skipWhitespace();
                 break;
 
             case '"':
@@ -134,7 +195,7 @@ public class Scanner {
                 } else if (isAlpha(c)) {
                     identifier();
                 } else {
-                    Main.error(line, "Unexpected character.");
+                    error("Unexpected character.");
                 }
                 break;
         }
@@ -146,8 +207,13 @@ public class Scanner {
         String text = source.substring(start, current);
         TokenType type = keywords.get(text);
 
-        if (type == null) type = TokenType.IDENTIFIER;
-        addToken(type);
+        if (type != null) {
+            addToken(type);
+            return;
+        }
+
+        Symbol symbol = Symbol.intern(text);
+        tokens.add(new Token(TokenType.IDENTIFIER, symbol.name(), symbol, line));
     }
 
     private void number() {
@@ -158,17 +224,28 @@ public class Scanner {
             while (isDigit(peek())) advance();
         }
 
-        addToken(TokenType.NUMBER, Double.parseDouble(source.substring(start, current)));
+        addToken(TokenType.NUMBER, Numbers.parse(source.substring(start, current)));
     }
 
     private void string() {
-        while (peek() != '"' && !isAtEnd()) {
-            if (peek() == '\n') line++;
-            advance();
+        int startLine = line;
+
+        int close = find('"', current);
+
+        for (int i = current; i < close; i++) {
+            if (source.charAt(i) == '\n') line++;
         }
+        current = close;
 
         if (isAtEnd()) {
-            Main.error(line, "Unterminated string.");
+            // The literal may still be closed in the rest of the source, past the end of this range.
+            if (end < source.length()) {
+                openString = start;
+                openStringLine = startLine;
+                return;
+            }
+
+            error("Unterminated string.");
             return;
         }
 
@@ -178,6 +255,39 @@ public class Scanner {
         addToken(TokenType.STRING, value);
     }
 
+    // Consumes a whole run of whitespace in one go rather than one scanToken() dispatch per character.
+    private void skipWhitespace() {
+        while (current < end) {
+            char c = source.charAt(current);
+
+            if (c == '\n') line++;
+            else if (c != ' ' && c != '\r' && c != '\t') return;
+
+            current++;
+        }
+    }
+
+    private void skipComment() {
+        current = find('\n', current);
+    }
+
+    // The first occurrence of the character in the range from the offset on, or its end. String.indexOf is a
+    // vectorized intrinsic, so long literals are searched many characters at a time, but it can't be told where
+    // to stop. A range scanner would search the rest of the source for a quote its range doesn't close, so it
+    // loops instead.
+    private int find(char c, int from) {
+        if (end == source.length()) {
+            int found = source.indexOf(c, from);
+            return found < 0 ? end : found;
+        }
+
+        for (int i = from; i < end; i++) {
+            if (source.charAt(i) == c) return i;
+        }
+
+        return end;
+    }
+
     private boolean match(char expected) {
         if (isAtEnd()) return false;
         if (source.charAt(current) != expected) return false;
@@ -192,7 +302,7 @@ public class Scanner {
     }
 
     private char peekNext() {
-        if (current + 1 >= source.length()) return '\0';
+        if (current + 1 >= end) return '\0';
         return source.charAt(current + 1);
     }
 
@@ -209,13 +319,24 @@ public class Scanner {
     }
 
     private boolean isAtEnd() {
-        return current >= source.length();
+        return current >= end;
     }
 
     private char advance() {
         return source.charAt(current++);
     }
 
+    boolean hadError() {
+        return hadError;
+    }
+
+    private void error(String message) {
+        hadError = true;
+
+        if (diagnostics == null) Main.error(line, message);
+        else diagnostics.add(new Diagnostic(line, message));
+    }
+
     private void addToken(TokenType type) {
         addToken(type, null);
     }
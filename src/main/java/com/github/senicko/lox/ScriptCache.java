@@ -0,0 +1,144 @@
+package com.github.senicko.lox;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+// A bounded cache of compiled scripts for callers which run the same sources over and over. Scripts are keyed by
+// their source text, whose hash String computes once, and evicted least recently used first once their estimated
+// AST size exceeds the capacity. Concurrent misses on one source wait for a single compilation.
+class ScriptCache {
+    record Script(List<Stmt> statements, long bytes) {
+    }
+
+    record Stats(long hits, long misses, long evictions, int scripts, long bytes) {
+    }
+
+    // Rough size of an Expr/Stmt node with its token, and of a source character held by the key and the lexemes.
+    private static final int NODE_BYTES = 48;
+    private static final int CHAR_BYTES = 4;
+
+    private final long capacity;
+    private final boolean iterative;
+
+    // Guarded by this, in access order so the eldest entry is the least recently used.
+    private final LinkedHashMap<String, Script> scripts = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    private final Map<String, CompletableFuture<Script>> compiling = new ConcurrentHashMap<>();
+
+    ScriptCache(long capacity, boolean iterative) {
+        this.capacity = capacity;
+        this.iterative = iterative;
+    }
+
+    // The compiled script, or null if it has syntax or type errors, which are reported by every call that compiles it.
+    Script get(String source) {
+        synchronized (this) {
+            Script script = scripts.get(source);
+
+            if (script != null) {
+                hits++;
+                return script;
+            }
+
+            misses++;
+        }
+
+        CompletableFuture<Script> compilation = new CompletableFuture<>();
+        CompletableFuture<Script> running = compiling.putIfAbsent(source, compilation);
+
+        if (running != null) return running.join();
+
+        try {
+            // Another thread may have finished compiling between the lookup and claiming the compilation.
+            Script script;
+
+            synchronized (this) {
+                script = scripts.get(source);
+            }
+
+            if (script == null) {
+                script = compile(source);
+                if (script != null) put(source, script);
+            }
+
+            compilation.complete(script);
+            return script;
+        } catch (RuntimeException | Error error) {
+            compilation.completeExceptionally(error);
+            throw error;
+        } finally {
+            compiling.remove(source, compilation);
+        }
+    }
+
+    synchronized Stats stats() {
+        return new Stats(hits, misses, evictions, scripts.size(), bytes);
+    }
+
+    synchronized void clear() {
+        scripts.clear();
+        bytes = 0;
+    }
+
+    private Script compile(String source) {
+        Scanner scanner = new Scanner(source);
+        List<Token> tokens = scanner.scanTokens();
+
+        // Cached scripts run many times, so their blocks are parsed up front.
+        Parser parser = new Parser(tokens, iterative, false);
+        List<Stmt> statements = parser.parse();
+
+        if (scanner.hadError() || parser.hadError()) return null;
+
+        statements = LoopOptimizer.optimize(statements);
+
+        TypeInference.Result typed = TypeInference.infer(statements);
+        if (typed.hadError()) return null;
+
+        statements = Fusion.fuse(IrOptimizer.optimize(typed.statements()));
+        return new Script(statements, estimateBytes(source, statements));
+    }
+
+    private synchronized void put(String source, Script script) {
+        // A script larger than the whole cache would only evict everything else.
+        if (script.bytes() > capacity) return;
+
+        scripts.put(source, script);
+        bytes += script.bytes();
+
+        Iterator<Script> eldest = scripts.values().iterator();
+
+        while (bytes > capacity) {
+            bytes -= eldest.next().bytes();
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    private static long estimateBytes(String source, List<Stmt> statements) {
+        long nodes = 0;
+
+        // Walked with an explicit stack, as trees parsed iteratively can be arbitrarily deep.
+        Deque<Object> pending = new ArrayDeque<>(statements);
+
+        while (!pending.isEmpty()) {
+            Object node = pending.pop();
+            nodes++;
+
+            if (node instanceof Expr expr) expr.forEachChild(pending::push, pending::push);
+            else ((Stmt) node).forEachChild(pending::push, pending::push);
+        }
+
+        return nodes * NODE_BYTES + (long) source.length() * CHAR_BYTES;
+    }
+}
@@ -0,0 +1,51 @@
+package com.github.senicko.lox;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// The layout of an instance's fields, shared by every instance of a class which had the same fields added in the
+// same order. Adding a field moves an instance along a transition to the next shape, so instances built the same
+// way end up with the same Shape object, and a single == check tells a property cache whether a slot still applies.
+final class Shape {
+    // Every shape belongs to exactly one class, so a shape also determines the methods an instance has.
+    final LoxClass owner;
+
+    // The number of fields, which are in slots 0 .. size - 1.
+    final int size;
+
+    private final Map<String, Integer> slots;
+    private final Map<String, Shape> transitions = new HashMap<>();
+
+    // The shape of instances without fields.
+    Shape(LoxClass owner) {
+        this.owner = owner;
+        this.size = 0;
+        this.slots = Map.of();
+    }
+
+    private Shape(Shape parent, String name) {
+        this.owner = parent.owner;
+        this.size = parent.size + 1;
+        this.slots = new HashMap<>(parent.slots);
+        this.slots.put(name, parent.size);
+    }
+
+    // The slot of the field, or -1 if instances of this shape don't have it.
+    int slot(String name) {
+        Integer slot = slots.get(name);
+        return slot == null ? -1 : slot;
+    }
+
+    // The shape with the field added after the existing ones.
+    synchronized Shape with(String name) {
+        Shape next = transitions.get(name);
+
+        if (next == null) {
+            next = new Shape(this, name);
+            transitions.put(name, next);
+            owner.expect(next.size);
+        }
+
+        return next;
+    }
+}
@@ -0,0 +1,313 @@
+package com.github.senicko.lox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Evaluates expressions with an explicit work stack instead of recursing through Expr.accept, so the depth of
+// an expression is bounded by the heap rather than the thread stack. Every node is revisited once per child,
+// with its progress kept in a parallel state array.
+class StackEvaluator {
+    private final Interpreter interpreter;
+
+    private Expr[] work = new Expr[64];
+    private int[] states = new int[64];
+    private int workSize = 0;
+
+    private Object[] values = new Object[64];
+    private int valueSize = 0;
+
+    StackEvaluator(Interpreter interpreter) {
+        this.interpreter = interpreter;
+    }
+
+    Object evaluate(Expr root) {
+        int workBase = workSize;
+        int valueBase = valueSize;
+
+        push(root);
+
+        try {
+            while (workSize > workBase) {
+                int top = workSize - 1;
+                Expr expr = work[top];
+                int state = states[top]++;
+
+                switch (expr.kind) {
+                    case Expr.LITERAL -> {
+                        pop();
+                        pushValue(((Expr.Literal) expr).value);
+                    }
+                    case Expr.VARIABLE -> {
+                        pop();
+                        pushValue(interpreter.lookUp(((Expr.Variable) expr).name));
+                    }
+                    case Expr.GROUPING -> {
+                        if (state == 0) push(((Expr.Grouping) expr).expression);
+                        else pop();
+                    }
+                    case Expr.UNARY -> {
+                        Expr.Unary unary = (Expr.Unary) expr;
+
+                        if (state == 0) {
+                            push(unary.right);
+                        } else {
+                            pop();
+                            pushValue(interpreter.unary(unary.operator, popValue()));
+                        }
+                    }
+                    case Expr.BINARY -> {
+                        Expr.Binary binary = (Expr.Binary) expr;
+
+                        if (state == 0) {
+                            push(binary.left);
+                        } else if (state == 1) {
+                            push(binary.right);
+                        } else {
+                            pop();
+                            Object right = popValue();
+                            Object left = popValue();
+                            pushValue(interpreter.binary(binary.operator, left, right));
+                        }
+                    }
+                    case Expr.NUMBER_NEGATE -> {
+                        Expr.NumberNegate negate = (Expr.NumberNegate) expr;
+
+                        if (state == 0) {
+                            push(negate.right);
+                        } else {
+                            pop();
+                            pushValue(Numbers.negate(popValue()));
+                        }
+                    }
+                    case Expr.NUMBER_BINARY -> {
+                        Expr.NumberBinary binary = (Expr.NumberBinary) expr;
+
+                        if (state == 0) {
+                            push(binary.left);
+                        } else if (state == 1) {
+                            push(binary.right);
+                        } else {
+                            pop();
+                            Object right = popValue();
+                            Object left = popValue();
+                            pushValue(interpreter.numberBinary(binary.operator, left, right));
+                        }
+                    }
+                    case Expr.CONCAT -> {
+                        Expr.Concat concat = (Expr.Concat) expr;
+
+                        if (state == 0) {
+                            push(concat.left);
+                        } else if (state == 1) {
+                            push(concat.right);
+                        } else {
+                            pop();
+                            String right = (String) popValue();
+                            String left = (String) popValue();
+                            pushValue(left + right);
+                        }
+                    }
+                    case Expr.LOGICAL -> {
+                        Expr.Logical logical = (Expr.Logical) expr;
+
+                        if (state == 0) {
+                            push(logical.left);
+                        } else if (state == 1) {
+                            // The left operand stays on the value stack as the result when short-circuiting.
+                            if (interpreter.shortCircuits(logical.operator, values[valueSize - 1])) {
+                                pop();
+                            } else {
+                                popValue();
+                                push(logical.right);
+                            }
+                        } else {
+                            pop();
+                        }
+                    }
+                    case Expr.TERNARY -> {
+                        Expr.Ternary ternary = (Expr.Ternary) expr;
+
+                        if (state == 0) {
+                            push(ternary.condition);
+                        } else if (state == 1) {
+                            push(interpreter.isTruthy(popValue()) ? ternary.truthy : ternary.falsy);
+                        } else {
+                            pop();
+                        }
+                    }
+                    case Expr.CALL -> {
+                        Expr.Call call = (Expr.Call) expr;
+                        int count = call.arguments.size();
+
+                        // State 0 evaluates the callee and state i the i-th argument, after which all are on the stack.
+                        if (state == 0) {
+                            push(call.callee);
+                        } else if (state <= count) {
+                            push(call.arguments.get(state - 1));
+                        } else {
+                            pop();
+
+                            List<Object> arguments = new ArrayList<>(count);
+                            for (int i = valueSize - count; i < valueSize; i++) arguments.add(values[i]);
+                            for (int i = 0; i < count; i++) popValue();
+
+                            Object callee = popValue();
+                            pushValue(interpreter.call(call.paren, callee, arguments));
+                        }
+                    }
+                    case Expr.INDEX -> {
+                        Expr.Index index = (Expr.Index) expr;
+
+                        if (state == 0) {
+                            push(index.object);
+                        } else if (state == 1) {
+                            push(index.index);
+                        } else {
+                            pop();
+                            Object position = popValue();
+                            Object object = popValue();
+                            pushValue(interpreter.index(index.bracket, object, position));
+                        }
+                    }
+                    case Expr.INDEX_SET -> {
+                        Expr.IndexSet set = (Expr.IndexSet) expr;
+
+                        if (state == 0) {
+                            push(set.object);
+                        } else if (state == 1) {
+                            push(set.index);
+                        } else if (state == 2) {
+                            push(set.value);
+                        } else {
+                            pop();
+                            Object value = popValue();
+                            Object position = popValue();
+                            Object object = popValue();
+                            pushValue(interpreter.setIndex(set.bracket, object, position, value));
+                        }
+                    }
+                    case Expr.MAP_LITERAL -> {
+                        Expr.MapLiteral literal = (Expr.MapLiteral) expr;
+                        int count = literal.keys.size();
+
+                        // States alternate between the keys and values, in source order.
+                        if (state < 2 * count) {
+                            push(state % 2 == 0 ? literal.keys.get(state / 2) : literal.values.get(state / 2));
+                        } else {
+                            pop();
+
+                            LoxMap map = new LoxMap();
+                            int first = valueSize - 2 * count;
+
+                            for (int i = 0; i < count; i++) {
+                                interpreter.put(literal.brace, map, values[first + 2 * i], values[first + 2 * i + 1]);
+                            }
+
+                            for (int i = 0; i < 2 * count; i++) popValue();
+                            pushValue(map);
+                        }
+                    }
+                    case Expr.GET -> {
+                        Expr.Get get = (Expr.Get) expr;
+
+                        if (state == 0) {
+                            push(get.object);
+                        } else {
+                            pop();
+                            pushValue(get.cache.get(interpreter.instance(get.name, popValue()), get.name));
+                        }
+                    }
+                    case Expr.SET -> {
+                        Expr.Set set = (Expr.Set) expr;
+
+                        if (state == 0) {
+                            push(set.object);
+                        } else if (state == 1) {
+                            push(set.value);
+                        } else {
+                            pop();
+                            Object value = popValue();
+                            Object object = popValue();
+                            pushValue(interpreter.set(set.name, set.cache, object, value));
+                        }
+                    }
+                    case Expr.SUPER -> {
+                        Expr.Super superExpr = (Expr.Super) expr;
+
+                        if (state == 0) {
+                            push(superExpr.receiver);
+                        } else {
+                            pop();
+                            pushValue(interpreter.superMethod(superExpr.method, popValue()));
+                        }
+                    }
+                    case Expr.LOCAL -> {
+                        pop();
+                        Expr.Local local = (Expr.Local) expr;
+                        pushValue(interpreter.local(local.name, local.slot));
+                    }
+                    case Expr.LOCAL_ASSIGN -> {
+                        Expr.LocalAssign assignment = (Expr.LocalAssign) expr;
+
+                        if (state == 0) {
+                            push(assignment.value);
+                        } else {
+                            pop();
+                            interpreter.setLocal(assignment.slot, values[valueSize - 1]);
+                        }
+                    }
+                    case Expr.ASSIGNMENT -> {
+                        Expr.Assignment assignment = (Expr.Assignment) expr;
+
+                        if (state == 0) {
+                            push(assignment.value);
+                        } else {
+                            pop();
+                            interpreter.assign(assignment.name, values[valueSize - 1]);
+                        }
+                    }
+                    // Fused nodes have no operands to evaluate first.
+                    case Expr.INCREMENT, Expr.LOCAL_INCREMENT, Expr.COMPARE, Expr.LOCAL_COMPARE, Expr.COPY, Expr.LOCAL_COPY -> {
+                        pop();
+                        pushValue(expr.accept(interpreter));
+                    }
+                }
+            }
+
+            return popValue();
+        } finally {
+            // Unwind whatever a runtime error left behind so the stacks can be reused.
+            Arrays.fill(work, workBase, workSize, null);
+            Arrays.fill(values, valueBase, valueSize, null);
+            workSize = workBase;
+            valueSize = valueBase;
+        }
+    }
+
+    private void push(Expr expr) {
+        if (workSize == work.length) {
+            work = Arrays.copyOf(work, workSize * 2);
+            states = Arrays.copyOf(states, workSize * 2);
+        }
+
+        work[workSize] = expr;
+        states[workSize] = 0;
+        workSize++;
+    }
+
+    private void pop() {
+        work[--workSize] = null;
+    }
+
+    private void pushValue(Object value) {
+        if (valueSize == values.length) values = Arrays.copyOf(values, valueSize * 2);
+        values[valueSize++] = value;
+    }
+
+    private Object popValue() {
+        Object value = values[--valueSize];
+        values[valueSize] = null;
+        return value;
+    }
+}
@@ -1,8 +1,26 @@
 package com.github.senicko.lox;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
+
+abstract sealed class Stmt permits Stmt.Expression, Stmt.If, Stmt.Print, Stmt.Var, Stmt.While, Stmt.Block, Stmt.CountedLoop, Stmt.Function, Stmt.Return, Stmt.LocalVar, Stmt.Class, Stmt.PrintVariable, Stmt.PrintLocal {
+    // Stable node kinds, for switch based dispatch.
+    static final int EXPRESSION = 0;
+    static final int IF = 1;
+    static final int PRINT = 2;
+    static final int VAR = 3;
+    static final int WHILE = 4;
+    static final int BLOCK = 5;
+    static final int COUNTED_LOOP = 6;
+    static final int FUNCTION = 7;
+    static final int RETURN = 8;
+    static final int LOCAL_VAR = 9;
+    static final int CLASS = 10;
+    static final int PRINT_VARIABLE = 11;
+    static final int PRINT_LOCAL = 12;
 
-abstract class Stmt{
     interface Visitor<R> {
         R visitExpressionStmt(Expression stmt);
         R visitIfStmt(If stmt);
@@ -10,10 +28,24 @@ abstract class Stmt{
         R visitVarStmt(Var stmt);
         R visitWhileStmt(While stmt);
         R visitBlockStmt(Block stmt);
+        R visitCountedLoopStmt(CountedLoop stmt);
+        R visitFunctionStmt(Function stmt);
+        R visitReturnStmt(Return stmt);
+        R visitLocalVarStmt(LocalVar stmt);
+        R visitClassStmt(Class stmt);
+        R visitPrintVariableStmt(PrintVariable stmt);
+        R visitPrintLocalStmt(PrintLocal stmt);
+    }
+
+    final int kind;
+
+    Stmt(int kind) {
+        this.kind = kind;
     }
 
-    static class Expression extends Stmt {
+    static final class Expression extends Stmt {
         Expression(Expr expression) {
+            super(EXPRESSION);
             this.expression = expression;
         }
 
@@ -22,11 +54,25 @@ abstract class Stmt{
             return visitor.visitExpressionStmt(this);
         }
 
+        @Override
+        void forEachChild(Consumer<Expr> exprs, Consumer<Stmt> stmts) {
+            if (expression != null) exprs.accept(expression);
+        }
+
+        @Override
+        Stmt withChildren(UnaryOperator<Expr> exprs, UnaryOperator<Stmt> stmts) {
+            Expr expression = this.expression == null ? null : exprs.apply(this.expression);
+
+            if (expression == this.expression) return this;
+            return new Expression(expression);
+        }
+
         final Expr expression;
     }
 
-    static class If extends Stmt {
+    static final class If extends Stmt {
         If(Expr condition, Stmt thenBranch, Stmt elseBranch) {
+            super(IF);
             this.condition = condition;
             this.thenBranch = thenBranch;
             this.elseBranch = elseBranch;
@@ -37,13 +83,31 @@ abstract class Stmt{
             return visitor.visitIfStmt(this);
         }
 
+        @Override
+        void forEachChild(Consumer<Expr> exprs, Consumer<Stmt> stmts) {
+            if (condition != null) exprs.accept(condition);
+            if (thenBranch != null) stmts.accept(thenBranch);
+            if (elseBranch != null) stmts.accept(elseBranch);
+        }
+
+        @Override
+        Stmt withChildren(UnaryOperator<Expr> exprs, UnaryOperator<Stmt> stmts) {
+            Expr condition = this.condition == null ? null : exprs.apply(this.condition);
+            Stmt thenBranch = this.thenBranch == null ? null : stmts.apply(this.thenBranch);
+            Stmt elseBranch = this.elseBranch == null ? null : stmts.apply(this.elseBranch);
+
+            if (condition == this.condition && thenBranch == this.thenBranch && elseBranch == this.elseBranch) return this;
+            return new If(condition, thenBranch, elseBranch);
+        }
+
         final Expr condition;
         final Stmt thenBranch;
         final Stmt elseBranch;
     }
 
-    static class Print extends Stmt {
+    static final class Print extends Stmt {
         Print(Expr expression) {
+            super(PRINT);
             this.expression = expression;
         }
 
@@ -52,11 +116,25 @@ abstract class Stmt{
             return visitor.visitPrintStmt(this);
         }
 
+        @Override
+        void forEachChild(Consumer<Expr> exprs, Consumer<Stmt> stmts) {
+            if (expression != null) exprs.accept(expression);
+        }
+
+        @Override
+        Stmt withChildren(UnaryOperator<Expr> exprs, UnaryOperator<Stmt> stmts) {
+            Expr expression = this.expression == null ? null : exprs.apply(this.expression);
+
+            if (expression == this.expression) return this;
+            return new Print(expression);
+        }
+
         final Expr expression;
     }
 
-    static class Var extends Stmt {
+    static final class Var extends Stmt {
         Var(Token name, Expr initializer) {
+            super(VAR);
             this.name = name;
             this.initializer = initializer;
         }
@@ -66,14 +144,29 @@ abstract class Stmt{
             return visitor.visitVarStmt(this);
         }
 
+        @Override
+        void forEachChild(Consumer<Expr> exprs, Consumer<Stmt> stmts) {
+            if (initializer != null) exprs.accept(initializer);
+        }
+
+        @Override
+        Stmt withChildren(UnaryOperator<Expr> exprs, UnaryOperator<Stmt> stmts) {
+            Expr initializer = this.initializer == null ? null : exprs.apply(this.initializer);
+
+            if (initializer == this.initializer) return this;
+            return new Var(name, initializer);
+        }
+
         final Token name;
         final Expr initializer;
     }
 
-    static class While extends Stmt {
-        While(Expr condition, Stmt body) {
+    static final class While extends Stmt {
+        While(Expr condition, Stmt body, LoopProfile profile) {
+            super(WHILE);
             this.condition = condition;
             this.body = body;
+            this.profile = profile;
         }
 
         @Override
@@ -81,12 +174,29 @@ abstract class Stmt{
             return visitor.visitWhileStmt(this);
         }
 
+        @Override
+        void forEachChild(Consumer<Expr> exprs, Consumer<Stmt> stmts) {
+            if (condition != null) exprs.accept(condition);
+            if (body != null) stmts.accept(body);
+        }
+
+        @Override
+        Stmt withChildren(UnaryOperator<Expr> exprs, UnaryOperator<Stmt> stmts) {
+            Expr condition = this.condition == null ? null : exprs.apply(this.condition);
+            Stmt body = this.body == null ? null : stmts.apply(this.body);
+
+            if (condition == this.condition && body == this.body) return this;
+            return new While(condition, body, profile);
+        }
+
         final Expr condition;
         final Stmt body;
+        final LoopProfile profile;
     }
 
-    static class Block extends Stmt {
+    static final class Block extends Stmt {
         Block(List<Stmt> statements) {
+            super(BLOCK);
             this.statements = statements;
         }
 
@@ -95,8 +205,257 @@ abstract class Stmt{
             return visitor.visitBlockStmt(this);
         }
 
+        @Override
+        void forEachChild(Consumer<Expr> exprs, Consumer<Stmt> stmts) {
+            for (Stmt child : statements) stmts.accept(child);
+        }
+
+        @Override
+        Stmt withChildren(UnaryOperator<Expr> exprs, UnaryOperator<Stmt> stmts) {
+            List<Stmt> statements = rewriteAll(this.statements, stmts);
+
+            if (statements == this.statements) return this;
+            return new Block(statements);
+        }
+
         final List<Stmt> statements;
     }
 
+    static final class CountedLoop extends Stmt {
+        CountedLoop(Stmt initializer, Token operator, Expr bound, double step, Stmt body, Stmt fallback) {
+            super(COUNTED_LOOP);
+            this.initializer = initializer;
+            this.operator = operator;
+            this.bound = bound;
+            this.step = step;
+            this.body = body;
+            this.fallback = fallback;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitCountedLoopStmt(this);
+        }
+
+        @Override
+        void forEachChild(Consumer<Expr> exprs, Consumer<Stmt> stmts) {
+            if (initializer != null) stmts.accept(initializer);
+            if (bound != null) exprs.accept(bound);
+            if (body != null) stmts.accept(body);
+            if (fallback != null) stmts.accept(fallback);
+        }
+
+        @Override
+        Stmt withChildren(UnaryOperator<Expr> exprs, UnaryOperator<Stmt> stmts) {
+            Stmt initializer = this.initializer == null ? null : stmts.apply(this.initializer);
+            Expr bound = this.bound == null ? null : exprs.apply(this.bound);
+            Stmt body = this.body == null ? null : stmts.apply(this.body);
+            Stmt fallback = this.fallback == null ? null : stmts.apply(this.fallback);
+
+            if (initializer == this.initializer && bound == this.bound && body == this.body && fallback == this.fallback) return this;
+            return new CountedLoop(initializer, operator, bound, step, body, fallback);
+        }
+
+        final Stmt initializer;
+        final Token operator;
+        final Expr bound;
+        final double step;
+        final Stmt body;
+        final Stmt fallback;
+    }
+
+    static final class Function extends Stmt {
+        Function(Token name, List<Token> params, List<Stmt> body, int slots) {
+            super(FUNCTION);
+            this.name = name;
+            this.params = params;
+            this.body = body;
+            this.slots = slots;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitFunctionStmt(this);
+        }
+
+        @Override
+        void forEachChild(Consumer<Expr> exprs, Consumer<Stmt> stmts) {
+            for (Stmt child : body) stmts.accept(child);
+        }
+
+        @Override
+        Stmt withChildren(UnaryOperator<Expr> exprs, UnaryOperator<Stmt> stmts) {
+            List<Stmt> body = rewriteAll(this.body, stmts);
+
+            if (body == this.body) return this;
+            return new Function(name, params, body, slots);
+        }
+
+        final Token name;
+        final List<Token> params;
+        final List<Stmt> body;
+        final int slots;
+    }
+
+    static final class Return extends Stmt {
+        Return(Token keyword, Expr value) {
+            super(RETURN);
+            this.keyword = keyword;
+            this.value = value;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitReturnStmt(this);
+        }
+
+        @Override
+        void forEachChild(Consumer<Expr> exprs, Consumer<Stmt> stmts) {
+            if (value != null) exprs.accept(value);
+        }
+
+        @Override
+        Stmt withChildren(UnaryOperator<Expr> exprs, UnaryOperator<Stmt> stmts) {
+            Expr value = this.value == null ? null : exprs.apply(this.value);
+
+            if (value == this.value) return this;
+            return new Return(keyword, value);
+        }
+
+        final Token keyword;
+        final Expr value;
+    }
+
+    static final class LocalVar extends Stmt {
+        LocalVar(Token name, int slot, Expr initializer) {
+            super(LOCAL_VAR);
+            this.name = name;
+            this.slot = slot;
+            this.initializer = initializer;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitLocalVarStmt(this);
+        }
+
+        @Override
+        void forEachChild(Consumer<Expr> exprs, Consumer<Stmt> stmts) {
+            if (initializer != null) exprs.accept(initializer);
+        }
+
+        @Override
+        Stmt withChildren(UnaryOperator<Expr> exprs, UnaryOperator<Stmt> stmts) {
+            Expr initializer = this.initializer == null ? null : exprs.apply(this.initializer);
+
+            if (initializer == this.initializer) return this;
+            return new LocalVar(name, slot, initializer);
+        }
+
+        final Token name;
+        final int slot;
+        final Expr initializer;
+    }
+
+    static final class Class extends Stmt {
+        Class(Token name, Expr superclass, List<Stmt> methods) {
+            super(CLASS);
+            this.name = name;
+            this.superclass = superclass;
+            this.methods = methods;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitClassStmt(this);
+        }
+
+        @Override
+        void forEachChild(Consumer<Expr> exprs, Consumer<Stmt> stmts) {
+            if (superclass != null) exprs.accept(superclass);
+            for (Stmt child : methods) stmts.accept(child);
+        }
+
+        @Override
+        Stmt withChildren(UnaryOperator<Expr> exprs, UnaryOperator<Stmt> stmts) {
+            Expr superclass = this.superclass == null ? null : exprs.apply(this.superclass);
+            List<Stmt> methods = rewriteAll(this.methods, stmts);
+
+            if (superclass == this.superclass && methods == this.methods) return this;
+            return new Class(name, superclass, methods);
+        }
+
+        final Token name;
+        final Expr superclass;
+        final List<Stmt> methods;
+    }
+
+    static final class PrintVariable extends Stmt {
+        PrintVariable(Token name) {
+            super(PRINT_VARIABLE);
+            this.name = name;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitPrintVariableStmt(this);
+        }
+
+        @Override
+        void forEachChild(Consumer<Expr> exprs, Consumer<Stmt> stmts) {
+        }
+
+        @Override
+        Stmt withChildren(UnaryOperator<Expr> exprs, UnaryOperator<Stmt> stmts) {
+            return this;
+        }
+
+        final Token name;
+    }
+
+    static final class PrintLocal extends Stmt {
+        PrintLocal(Token name, int slot) {
+            super(PRINT_LOCAL);
+            this.name = name;
+            this.slot = slot;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitPrintLocalStmt(this);
+        }
+
+        @Override
+        void forEachChild(Consumer<Expr> exprs, Consumer<Stmt> stmts) {
+        }
+
+        @Override
+        Stmt withChildren(UnaryOperator<Expr> exprs, UnaryOperator<Stmt> stmts) {
+            return this;
+        }
+
+        final Token name;
+        final int slot;
+    }
+
     abstract <R> R accept(Visitor<R> visitor);
+
+    abstract void forEachChild(Consumer<Expr> exprs, Consumer<Stmt> stmts);
+
+    abstract Stmt withChildren(UnaryOperator<Expr> exprs, UnaryOperator<Stmt> stmts);
+
+    // Applies rewrite to every element, copying the list only once an element actually changes.
+    static <T> List<T> rewriteAll(List<T> list, UnaryOperator<T> rewrite) {
+        List<T> result = null;
+
+        for (int i = 0; i < list.size(); i++) {
+            T before = list.get(i);
+            T after = before == null ? null : rewrite.apply(before);
+
+            if (after != before && result == null) result = new ArrayList<>(list.subList(0, i));
+            if (result != null) result.add(after);
+        }
+
+        return result == null ? list : result;
+    }
 }
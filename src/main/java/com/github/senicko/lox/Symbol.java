@@ -0,0 +1,19 @@
+package com.github.senicko.lox;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// An interned identifier. The scanner attaches one to every IDENTIFIER token as its literal, so each name exists
+// once and environments can key bindings on the dense integer id instead of hashing and comparing strings.
+// The table is process wide, which keeps ids stable between REPL lines and across ParallelScanner chunks.
+record Symbol(int id, String name) {
+    private static final ConcurrentHashMap<String, Symbol> table = new ConcurrentHashMap<>();
+    private static final AtomicInteger nextId = new AtomicInteger();
+
+    static Symbol intern(String name) {
+        Symbol symbol = table.get(name);
+        if (symbol != null) return symbol;
+
+        return table.computeIfAbsent(name, key -> new Symbol(nextId.getAndIncrement(), key));
+    }
+}
@@ -0,0 +1,653 @@
+package com.github.senicko.lox;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Proves which variables and expressions always hold a number, a string or a boolean, and rewrites the operators
+// whose operands are proven into NumberBinary, NumberNegate and Concat, which skip the runtime type checks. The
+// analysis is flow sensitive: a variable's type follows its assignments, branches are joined where they meet and
+// loops are iterated to a fixpoint. A call may run a function which assigns any variable it can see, so calls
+// forget everything known about named variables; the slots of a function body are private and survive them.
+// An operator whose operands are proven to have the wrong type is reported as a compile time error.
+class TypeInference {
+    enum Type {
+        NUMBER, STRING, BOOLEAN, NIL, UNKNOWN;
+
+        Type join(Type other) {
+            return this == other ? this : UNKNOWN;
+        }
+
+        boolean isKnown() {
+            return this != UNKNOWN;
+        }
+    }
+
+    // The rewritten program, a line for every operator which was specialized and whether any type errors were
+    // reported.
+    record Result(List<Stmt> statements, List<String> specialized, boolean hadError) {
+    }
+
+    // What is known about the variables at one point of the program, as the changes made since the point the
+    // facts were branched from. Branching and joining cost as much as the branches change, not as much as there
+    // are variables. Variables are numbered: declarations from 0 up, the slots of a function body below 0.
+    private static final class Facts {
+        final Facts parent;
+        final Map<Integer, Type> own = new HashMap<>();
+
+        // Whether everything known before this layer was forgotten.
+        boolean cleared = false;
+
+        Facts(Facts parent) {
+            this.parent = parent;
+        }
+
+        Type get(int variable) {
+            for (Facts facts = this; facts != null; facts = facts.parent) {
+                Type type = facts.own.get(variable);
+                if (type != null) return type;
+                if (facts.cleared) break;
+            }
+
+            return Type.UNKNOWN;
+        }
+
+        void put(int variable, Type type) {
+            own.put(variable, type);
+        }
+
+        void forget() {
+            own.clear();
+            cleared = true;
+        }
+
+        // Folds the layer into the one it was branched from, which is returned.
+        Facts commit() {
+            if (cleared) parent.forget();
+            parent.own.putAll(own);
+            return parent;
+        }
+    }
+
+    private Facts facts = new Facts(null);
+
+    // The declaration every name in scope resolves to, innermost block last.
+    private List<Map<String, Integer>> scopes = new ArrayList<>();
+    private final Map<Token, Integer> declarations = new IdentityHashMap<>();
+
+    // A function body's variables are all slots, which calls can't assign.
+    private boolean inFunction = false;
+
+    // The type of the expression rewritten last.
+    private Type type = Type.UNKNOWN;
+
+    // How deeply nested the expression being analyzed is, and how deep one can be before it is left alone.
+    private static final int DEPTH_LIMIT = 256;
+    private int depth = 0;
+
+    // Loop bodies are analyzed more than once while their fixpoint is searched for. Only the final pass rewrites,
+    // reports and diagnoses; the others are quiet.
+    private boolean quiet = false;
+
+    // A loop compiled while the script runs is specialized for what it was entered with, which may not be what it
+    // runs into. An operator proven to fail there is left to fail when it runs rather than reported.
+    private boolean speculative = false;
+
+    private final List<String> specialized = new ArrayList<>();
+    private boolean hadError = false;
+
+    private TypeInference() {
+        scopes.add(new HashMap<>());
+    }
+
+    static Result infer(List<Stmt> statements) {
+        TypeInference inference = new TypeInference();
+        List<Stmt> rewritten = Stmt.rewriteAll(statements, inference::statement);
+        return new Result(rewritten, inference.specialized, inference.hadError);
+    }
+
+    // Specializes a loop compiled by LoopCompiler for the types its slots held when it was entered. Nothing but the
+    // loop assigns them while it runs, so like a function body's slots they keep their types.
+    static Result speculate(Stmt.While loop, Map<Integer, Type> slots) {
+        TypeInference inference = new TypeInference();
+        inference.inFunction = true;
+        inference.speculative = true;
+        slots.forEach((slot, type) -> inference.facts.put(slot(slot), type));
+
+        Stmt rewritten = inference.statement(loop);
+        return new Result(List.of(rewritten), inference.specialized, false);
+    }
+
+    private Stmt statement(Stmt stmt) {
+        switch (stmt.kind) {
+            case Stmt.BLOCK -> {
+                Stmt.Block block = (Stmt.Block) stmt;
+
+                // A block which hasn't been parsed yet may assign anything once it runs.
+                if (Parser.LazyBlock.isDeferred(block)) {
+                    forget();
+                    return stmt;
+                }
+
+                scopes.add(new HashMap<>());
+
+                try {
+                    return stmt.withChildren(this::expression, this::statement);
+                } finally {
+                    scopes.remove(scopes.size() - 1);
+                }
+            }
+            case Stmt.VAR -> {
+                Stmt.Var var = (Stmt.Var) stmt;
+                Expr initializer = var.initializer == null ? null : expression(var.initializer);
+
+                declare(var.name, declared(initializer));
+
+                if (initializer == var.initializer) return stmt;
+                return new Stmt.Var(var.name, initializer);
+            }
+            case Stmt.LOCAL_VAR -> {
+                Stmt.LocalVar var = (Stmt.LocalVar) stmt;
+                Expr initializer = var.initializer == null ? null : expression(var.initializer);
+
+                facts.put(slot(var.slot), declared(initializer));
+
+                if (initializer == var.initializer) return stmt;
+                return new Stmt.LocalVar(var.name, var.slot, initializer);
+            }
+            case Stmt.IF -> {
+                Stmt.If branch = (Stmt.If) stmt;
+                Expr condition = expression(branch.condition);
+
+                Facts before = facts;
+                facts = new Facts(before);
+                Stmt thenBranch = statement(branch.thenBranch);
+                Facts then = facts;
+
+                facts = new Facts(before);
+                Stmt elseBranch = branch.elseBranch == null ? null : statement(branch.elseBranch);
+                facts = join(then, facts);
+
+                if (condition == branch.condition && thenBranch == branch.thenBranch && elseBranch == branch.elseBranch) return stmt;
+                return new Stmt.If(condition, thenBranch, elseBranch);
+            }
+            case Stmt.WHILE -> {
+                return loop((Stmt.While) stmt);
+            }
+            case Stmt.COUNTED_LOOP -> {
+                Stmt.CountedLoop loop = (Stmt.CountedLoop) stmt;
+
+                // Runs in a scope of its own which holds the induction variable.
+                scopes.add(new HashMap<>());
+
+                try {
+                    Stmt initializer = statement(loop.initializer);
+                    Stmt.While fallback = (Stmt.While) statement(loop.fallback);
+
+                    // The body is also part of the fallback loop, where it is rewritten, and is taken back out of it.
+                    Stmt body = ((Stmt.Block) fallback.body).statements.get(0);
+
+                    if (initializer == loop.initializer && fallback == loop.fallback) return stmt;
+                    return new Stmt.CountedLoop(initializer, loop.operator, loop.bound, loop.step, body, fallback);
+                } finally {
+                    scopes.remove(scopes.size() - 1);
+                }
+            }
+            case Stmt.FUNCTION -> {
+                Stmt.Function function = (Stmt.Function) stmt;
+                declare(function.name, Type.UNKNOWN);
+
+                return quiet ? stmt : function(function);
+            }
+            case Stmt.CLASS -> {
+                Stmt.Class klass = (Stmt.Class) stmt;
+                Expr superclass = klass.superclass == null ? null : expression(klass.superclass);
+                declare(klass.name, Type.UNKNOWN);
+
+                if (quiet) return stmt;
+
+                List<Stmt> methods = Stmt.rewriteAll(klass.methods, method -> function((Stmt.Function) method));
+
+                if (superclass == klass.superclass && methods == klass.methods) return stmt;
+                return new Stmt.Class(klass.name, superclass, methods);
+            }
+            default -> {
+                return stmt.withChildren(this::expression, this::statement);
+            }
+        }
+    }
+
+    // A variable declared as nil is uninitialized, and reading it is an error rather than a nil.
+    private Type declared(Expr initializer) {
+        return initializer == null || type == Type.NIL ? Type.UNKNOWN : type;
+    }
+
+    private void declare(Token name, Type type) {
+        // A loop body declares the same variables on every pass.
+        int variable = declarations.computeIfAbsent(name, token -> declarations.size());
+
+        scopes.get(scopes.size() - 1).put(name.lexeme(), variable);
+        facts.put(variable, type);
+    }
+
+    // The declaration the name resolves to, or -1 if it was declared outside the analyzed code, by an earlier
+    // prompt line or by the host.
+    private int resolve(Token name) {
+        for (int i = scopes.size() - 1; i >= 0; i--) {
+            Integer variable = scopes.get(i).get(name.lexeme());
+            if (variable != null) return variable;
+        }
+
+        return -1;
+    }
+
+    private static int slot(int slot) {
+        return -1 - slot;
+    }
+
+    private void forget() {
+        if (!inFunction) facts.forget();
+    }
+
+    // Joins two layers branched from the same facts, which the joined facts replace.
+    private static Facts join(Facts left, Facts right) {
+        Facts before = left.parent;
+        Facts joined = new Facts(before);
+        Set<Integer> changed = new HashSet<>(left.own.keySet());
+        changed.addAll(right.own.keySet());
+
+        for (int variable : changed) {
+            joined.put(variable, left.get(variable).join(right.get(variable)));
+        }
+
+        if (left.cleared || right.cleared) {
+            Map<Integer, Type> own = new HashMap<>(joined.own);
+            joined.forget();
+            joined.own.putAll(own);
+        }
+
+        return joined.commit();
+    }
+
+    // A body runs whenever it is called, so nothing is known about its parameters or the names it closes over.
+    private Stmt function(Stmt.Function function) {
+        Facts outerFacts = facts;
+        List<Map<String, Integer>> outerScopes = scopes;
+        boolean wasInFunction = inFunction;
+
+        facts = new Facts(null);
+        scopes = new ArrayList<>();
+        scopes.add(new HashMap<>());
+        inFunction = true;
+
+        try {
+            List<Stmt> body = Stmt.rewriteAll(function.body, this::statement);
+
+            if (body == function.body) return function;
+            return new Stmt.Function(function.name, function.params, body, function.slots);
+        } finally {
+            facts = outerFacts;
+            scopes = outerScopes;
+            inFunction = wasInFunction;
+        }
+    }
+
+    private Stmt loop(Stmt.While loop) {
+        Facts before = facts;
+        Facts head = new Facts(before);
+
+        if (quiet) {
+            // A loop nested in a loop which is still searching for its fixpoint is widened instead, so nested
+            // loops don't multiply their passes: whatever the loop may assign is unknown from its first iteration.
+            facts = head;
+            widen(loop);
+        } else {
+            quiet = true;
+
+            try {
+                // The facts at the head of the loop, joined with those at the end of the body until they settle.
+                while (true) {
+                    facts = new Facts(head);
+
+                    expression(loop.condition);
+                    statement(loop.body);
+
+                    if (!widen(head, facts)) break;
+                }
+            } finally {
+                quiet = false;
+            }
+        }
+
+        facts = new Facts(head);
+        Expr condition = expression(loop.condition);
+        Facts exit = facts;
+
+        facts = new Facts(exit);
+        Stmt body = statement(loop.body);
+
+        // The loop is left after its condition is evaluated.
+        facts = exit.commit().commit();
+
+        if (condition == loop.condition && body == loop.body) return loop;
+        return new Stmt.While(condition, body, loop.profile);
+    }
+
+    // Joins the facts at the end of the body into the head of the loop, returning whether the head changed.
+    private static boolean widen(Facts head, Facts end) {
+        boolean changed = false;
+        Map<Integer, Type> joined = new HashMap<>();
+
+        // The end layer has been branched from the head, so only the variables it changed can differ.
+        for (Map.Entry<Integer, Type> fact : end.own.entrySet()) {
+            Type before = head.get(fact.getKey());
+            Type after = before.join(fact.getValue());
+
+            joined.put(fact.getKey(), after);
+            changed |= after != before;
+        }
+
+        if (end.cleared) {
+            // The body forgot everything it didn't set itself.
+            if (!head.cleared) changed = true;
+
+            for (Map.Entry<Integer, Type> fact : head.own.entrySet()) {
+                if (!joined.containsKey(fact.getKey()) && fact.getValue().isKnown()) changed = true;
+            }
+
+            head.forget();
+        }
+
+        head.own.putAll(joined);
+        return changed;
+    }
+
+    private void widen(Stmt stmt) {
+        if (stmt instanceof Stmt.Block block && Parser.LazyBlock.isDeferred(block)) {
+            forget();
+            return;
+        }
+
+        if (stmt instanceof Stmt.LocalVar var) facts.put(slot(var.slot), Type.UNKNOWN);
+
+        stmt.forEachChild(this::widen, this::widen);
+    }
+
+    // Walked with an explicit stack, as it is what the expressions too deep to analyze are left to.
+    private void widen(Expr expr) {
+        Deque<Expr> pending = new ArrayDeque<>();
+        pending.push(expr);
+
+        while (!pending.isEmpty()) {
+            Expr node = pending.pop();
+
+            switch (node.kind) {
+                case Expr.ASSIGNMENT -> {
+                    int variable = resolve(((Expr.Assignment) node).name);
+                    if (variable >= 0) facts.put(variable, Type.UNKNOWN);
+                }
+                case Expr.LOCAL_ASSIGN -> facts.put(slot(((Expr.LocalAssign) node).slot), Type.UNKNOWN);
+                case Expr.CALL -> forget();
+                default -> {
+                }
+            }
+
+            node.forEachChild(pending::push, this::widen);
+        }
+    }
+
+    private Expr expression(Expr expr) {
+        // Only trees parsed with --deep nest this far, which the analysis would recurse through. Their operators
+        // are left generic, and checked when they run.
+        if (depth >= DEPTH_LIMIT) {
+            widen(expr);
+            type = Type.UNKNOWN;
+            return expr;
+        }
+
+        depth++;
+
+        try {
+            return analyze(expr);
+        } finally {
+            depth--;
+        }
+    }
+
+    private Expr analyze(Expr expr) {
+        switch (expr.kind) {
+            case Expr.LITERAL -> {
+                Object value = ((Expr.Literal) expr).value;
+
+                if (Numbers.isNumber(value)) type = Type.NUMBER;
+                else if (value instanceof String) type = Type.STRING;
+                else if (value instanceof Boolean) type = Type.BOOLEAN;
+                else if (value == null) type = Type.NIL;
+                else type = Type.UNKNOWN;
+
+                return expr;
+            }
+            case Expr.GROUPING -> {
+                // The grouping keeps the type of its expression.
+                return expr.withChildren(this::expression, this::statement);
+            }
+            case Expr.VARIABLE -> {
+                int variable = resolve(((Expr.Variable) expr).name);
+                type = variable < 0 ? Type.UNKNOWN : facts.get(variable);
+                return expr;
+            }
+            case Expr.LOCAL -> {
+                type = facts.get(slot(((Expr.Local) expr).slot));
+                return expr;
+            }
+            case Expr.ASSIGNMENT -> {
+                Expr.Assignment assignment = (Expr.Assignment) expr;
+                Expr value = expression(assignment.value);
+                int variable = resolve(assignment.name);
+                if (variable >= 0) facts.put(variable, type);
+
+                if (value == assignment.value) return expr;
+                return new Expr.Assignment(assignment.name, value);
+            }
+            case Expr.LOCAL_ASSIGN -> {
+                Expr.LocalAssign assignment = (Expr.LocalAssign) expr;
+                Expr value = expression(assignment.value);
+                facts.put(slot(assignment.slot), type);
+
+                if (value == assignment.value) return expr;
+                return new Expr.LocalAssign(assignment.name, assignment.slot, value);
+            }
+            case Expr.NUMBER_BINARY -> {
+                // Specialized before, when the script was compiled.
+                Expr rewritten = expr.withChildren(this::expression, this::statement);
+                type = isComparison(((Expr.NumberBinary) expr).operator) ? Type.BOOLEAN : Type.NUMBER;
+                return rewritten;
+            }
+            case Expr.NUMBER_NEGATE -> {
+                Expr rewritten = expr.withChildren(this::expression, this::statement);
+                type = Type.NUMBER;
+                return rewritten;
+            }
+            case Expr.CONCAT -> {
+                Expr rewritten = expr.withChildren(this::expression, this::statement);
+                type = Type.STRING;
+                return rewritten;
+            }
+            case Expr.UNARY -> {
+                return unary((Expr.Unary) expr);
+            }
+            case Expr.BINARY -> {
+                return binary((Expr.Binary) expr);
+            }
+            case Expr.LOGICAL -> {
+                Expr.Logical logical = (Expr.Logical) expr;
+
+                Expr left = expression(logical.left);
+                Type leftType = type;
+
+                // The right operand may not run, in which case the facts are those after the left one.
+                Facts before = facts;
+                facts = new Facts(before);
+                Expr right = expression(logical.right);
+                type = leftType.join(type);
+                facts = join(facts, new Facts(before));
+
+                if (left == logical.left && right == logical.right) return expr;
+                return new Expr.Logical(left, logical.operator, right);
+            }
+            case Expr.TERNARY -> {
+                Expr.Ternary ternary = (Expr.Ternary) expr;
+
+                Expr condition = expression(ternary.condition);
+
+                Facts before = facts;
+                facts = new Facts(before);
+                Expr truthy = expression(ternary.truthy);
+                Type truthyType = type;
+                Facts then = facts;
+
+                facts = new Facts(before);
+                Expr falsy = expression(ternary.falsy);
+                type = truthyType.join(type);
+                facts = join(then, facts);
+
+                if (condition == ternary.condition && truthy == ternary.truthy && falsy == ternary.falsy) return expr;
+                return new Expr.Ternary(condition, truthy, falsy);
+            }
+            case Expr.CALL -> {
+                Expr rewritten = expr.withChildren(this::expression, this::statement);
+
+                forget();
+                type = Type.UNKNOWN;
+                return rewritten;
+            }
+            case Expr.MAP_LITERAL -> {
+                // Keys and values are evaluated in turn, which withChildren doesn't follow.
+                Expr.MapLiteral map = (Expr.MapLiteral) expr;
+                List<Expr> keys = new ArrayList<>(map.keys.size());
+                List<Expr> values = new ArrayList<>(map.values.size());
+                boolean changed = false;
+
+                for (int i = 0; i < map.keys.size(); i++) {
+                    keys.add(expression(map.keys.get(i)));
+                    values.add(expression(map.values.get(i)));
+                    changed |= keys.get(i) != map.keys.get(i) || values.get(i) != map.values.get(i);
+                }
+
+                type = Type.UNKNOWN;
+                return changed ? new Expr.MapLiteral(map.brace, keys, values) : expr;
+            }
+            case Expr.SET -> {
+                // A field assignment evaluates to the value assigned.
+                return expr.withChildren(this::expression, this::statement);
+            }
+            default -> {
+                Expr rewritten = expr.withChildren(this::expression, this::statement);
+
+                type = Type.UNKNOWN;
+                return rewritten;
+            }
+        }
+    }
+
+    private Expr unary(Expr.Unary unary) {
+        Expr right = expression(unary.right);
+        Token operator = unary.operator;
+
+        if (operator.type() == TokenType.BANG) {
+            type = Type.BOOLEAN;
+        } else if (type == Type.NUMBER) {
+            specialize(operator, "numbers");
+            return new Expr.NumberNegate(operator, right);
+        } else {
+            if (type.isKnown()) error(operator, "Operand must be a number.");
+            type = Type.UNKNOWN;
+        }
+
+        if (right == unary.right) return unary;
+        return new Expr.Unary(operator, right);
+    }
+
+    private Expr binary(Expr.Binary binary) {
+        Expr left = expression(binary.left);
+        Type leftType = type;
+        Expr right = expression(binary.right);
+        Type rightType = type;
+        Token operator = binary.operator;
+
+        boolean numbers = leftType == Type.NUMBER && rightType == Type.NUMBER;
+
+        switch (operator.type()) {
+            case PLUS -> {
+                if (numbers) {
+                    specialize(operator, "numbers");
+                    return new Expr.NumberBinary(left, operator, right);
+                }
+
+                if (leftType == Type.STRING && rightType == Type.STRING) {
+                    specialize(operator, "strings");
+                    return new Expr.Concat(left, operator, right);
+                }
+
+                // A string on either side is concatenated with the other side's text.
+                if (leftType == Type.STRING || rightType == Type.STRING) {
+                    type = Type.STRING;
+                } else {
+                    if (leftType.isKnown() && rightType.isKnown())
+                        error(operator, "Operands must be either Strings or Numbers.");
+                    type = Type.UNKNOWN;
+                }
+            }
+            case MINUS, STAR, SLASH, GREATER, GREATER_EQUAL, LESS, LESS_EQUAL -> {
+                if (numbers) {
+                    specialize(operator, "numbers");
+                    return new Expr.NumberBinary(left, operator, right);
+                }
+
+                if ((leftType.isKnown() && leftType != Type.NUMBER) || (rightType.isKnown() && rightType != Type.NUMBER))
+                    error(operator, "Operands must be numbers.");
+
+                type = isComparison(operator) ? Type.BOOLEAN : Type.UNKNOWN;
+            }
+            case SPACESHIP -> {
+                boolean comparable = numbers || (leftType == Type.STRING && rightType == Type.STRING);
+
+                if (leftType.isKnown() && rightType.isKnown() && !comparable)
+                    error(operator, "Operands must be either Strings or Numbers.");
+
+                // Compares to an int, which isn't one of the number representations.
+                type = Type.UNKNOWN;
+            }
+            case EQUAL_EQUAL, BANG_EQUAL -> type = Type.BOOLEAN;
+            default -> type = Type.UNKNOWN;
+        }
+
+        if (left == binary.left && right == binary.right) return binary;
+        return new Expr.Binary(left, operator, right);
+    }
+
+    private static boolean isComparison(Token operator) {
+        return switch (operator.type()) {
+            case GREATER, GREATER_EQUAL, LESS, LESS_EQUAL -> true;
+            default -> false;
+        };
+    }
+
+    private void specialize(Token operator, String operands) {
+        type = isComparison(operator) ? Type.BOOLEAN : operands.equals("strings") ? Type.STRING : Type.NUMBER;
+        if (!quiet) specialized.add("[line " + operator.line() + "] '" + operator.lexeme() + "' on " + operands);
+    }
+
+    private void error(Token operator, String message) {
+        if (quiet || speculative) return;
+
+        Main.error(operator, message);
+        hadError = true;
+    }
+}
@@ -0,0 +1,17 @@
+package com.github.senicko.lox;
+
+class Value {
+    static class Initialized extends Value {
+        Object value;
+
+        Initialized(Object value) {
+            this.value = value;
+        }
+    }
+
+    public static class Uninitialized extends Value {
+    }
+
+    // Holds nothing, so one instance serves every declaration without an initializer.
+    static final Value UNINITIALIZED = new Uninitialized();
+}
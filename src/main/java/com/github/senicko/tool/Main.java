@@ -23,7 +23,25 @@ public class Main {
                 "Unary : Token operator, Expr right",
                 "Ternary : Expr condition, Expr truthy, Expr falsy",
                 "Variable : Token name",
-                "Assignment : Token name, Expr value"
+                "Assignment : Token name, Expr value",
+                "Call : Expr callee, Token paren, List<Expr> arguments",
+                "Index : Expr object, Token bracket, Expr index",
+                "IndexSet : Expr object, Token bracket, Expr index, Expr value",
+                "MapLiteral : Token brace, List<Expr> keys, List<Expr> values",
+                "Local : Token name, int slot",
+                "LocalAssign : Token name, int slot, Expr value",
+                "Get : Expr object, Token name, PropertyCache cache",
+                "Set : Expr object, Token name, Expr value, PropertyCache cache",
+                "Super : Token keyword, Token method, Expr receiver",
+                "NumberBinary : Expr left, Token operator, Expr right",
+                "NumberNegate : Token operator, Expr right",
+                "Concat : Expr left, Token operator, Expr right",
+                "Increment : Token name, Token operator, Object step",
+                "LocalIncrement : Token name, int slot, Token operator, Object step",
+                "Compare : Token name, Token operator, Object constant",
+                "LocalCompare : Token name, int slot, Token operator, Object constant",
+                "Copy : Token name, Token source",
+                "LocalCopy : Token name, int slot, Token source, int from"
         ));
 
         defineAst(outputDir, "Stmt", Arrays.asList(
@@ -31,8 +49,15 @@ public class Main {
                 "If : Expr condition, Stmt thenBranch, Stmt elseBranch",
                 "Print : Expr expression",
                 "Var : Token name, Expr initializer",
-                "While : Expr condition, Stmt body",
-                "Block : List<Stmt> statements"
+                "While : Expr condition, Stmt body, LoopProfile profile",
+                "Block : List<Stmt> statements",
+                "CountedLoop : Stmt initializer, Token operator, Expr bound, double step, Stmt body, Stmt fallback",
+                "Function : Token name, List<Token> params, List<Stmt> body, int slots",
+                "Return : Token keyword, Expr value",
+                "LocalVar : Token name, int slot, Expr initializer",
+                "Class : Token name, Expr superclass, List<Stmt> methods",
+                "PrintVariable : Token name",
+                "PrintLocal : Token name, int slot"
         ));
     }
 
@@ -42,13 +67,34 @@ public class Main {
 
         writer.println("package com.github.senicko.lox;");
         writer.println();
+        writer.println("import java.util.ArrayList;");
         writer.println("import java.util.List;");
+        writer.println("import java.util.function.Consumer;");
+        writer.println("import java.util.function.UnaryOperator;");
+        writer.println();
+
+        StringBuilder permits = new StringBuilder();
+        for (String type : types) {
+            if (permits.length() > 0) permits.append(", ");
+            permits.append(baseName).append(".").append(type.split(":")[0].trim());
+        }
+
+        // A sealed base with final nodes keeps the hierarchy closed, so the kind field identifies a node exactly.
+        writer.println("abstract sealed class " + baseName + " permits " + permits + " {");
+
+        defineKinds(writer, types);
         writer.println();
-        writer.println("abstract class " + baseName + "{");
 
         defineVisitor(writer, baseName, types);
         writer.println();
 
+        writer.println("    final int kind;");
+        writer.println();
+        writer.println("    " + baseName + "(int kind) {");
+        writer.println("        this.kind = kind;");
+        writer.println("    }");
+        writer.println();
+
         // The AST classes
         for (String type : types) {
             String className = type.split(":")[0].trim();
@@ -58,11 +104,29 @@ public class Main {
 
         // The base accept() method
         writer.println("    abstract <R> R accept(Visitor<R> visitor);");
+        writer.println();
+
+        // Helpers for passes which walk or rewrite the tree
+        writer.println("    abstract void forEachChild(Consumer<Expr> exprs, Consumer<Stmt> stmts);");
+        writer.println();
+        writer.println("    abstract " + baseName + " withChildren(UnaryOperator<Expr> exprs, UnaryOperator<Stmt> stmts);");
+        writer.println();
+
+        defineRewriteAll(writer);
 
         writer.println("}");
         writer.close();
     }
 
+    private static void defineKinds(PrintWriter writer, List<String> types) {
+        writer.println("    // Stable node kinds, for switch based dispatch.");
+
+        for (int i = 0; i < types.size(); i++) {
+            String typeName = types.get(i).split(":")[0].trim();
+            writer.println("    static final int " + kindName(typeName) + " = " + i + ";");
+        }
+    }
+
     private static void defineVisitor(PrintWriter writer, String baseName, List<String> types) {
         writer.println("    interface Visitor<R> {");
 
@@ -75,10 +139,11 @@ public class Main {
     }
 
     private static void defineType(PrintWriter writer, String baseName, String className, String fieldList) {
-        writer.println("    static class " + className + " extends " + baseName + " {");
+        writer.println("    static final class " + className + " extends " + baseName + " {");
 
         // Constructor
         writer.println("        " + className + "(" + fieldList + ") {");
+        writer.println("            super(" + kindName(className) + ");");
 
         String[] fields = fieldList.split(", ");
         for (String field : fields) {
@@ -95,6 +160,9 @@ public class Main {
         writer.println("            return visitor.visit" + className + baseName + "(this);");
         writer.println("        }");
 
+        defineForEachChild(writer, fields);
+        defineWithChildren(writer, baseName, className, fields);
+
         // Fields
         writer.println();
         for (String field : fields) {
@@ -104,4 +172,99 @@ public class Main {
         writer.println("    }");
         writer.println();
     }
+
+    private static void defineForEachChild(PrintWriter writer, String[] fields) {
+        writer.println();
+        writer.println("        @Override");
+        writer.println("        void forEachChild(Consumer<Expr> exprs, Consumer<Stmt> stmts) {");
+
+        for (String field : fields) {
+            String type = field.split(" ")[0];
+            String name = field.split(" ")[1];
+            String action = childAction(type, "exprs", "stmts");
+
+            if (action == null) continue;
+
+            if (type.startsWith("List<")) {
+                writer.println("            for (" + elementType(type) + " child : " + name + ") " + action + ".accept(child);");
+            } else {
+                writer.println("            if (" + name + " != null) " + action + ".accept(" + name + ");");
+            }
+        }
+
+        writer.println("        }");
+    }
+
+    private static void defineWithChildren(PrintWriter writer, String baseName, String className, String[] fields) {
+        writer.println();
+        writer.println("        @Override");
+        writer.println("        " + baseName + " withChildren(UnaryOperator<Expr> exprs, UnaryOperator<Stmt> stmts) {");
+
+        StringBuilder unchanged = new StringBuilder();
+        StringBuilder arguments = new StringBuilder();
+
+        for (String field : fields) {
+            String type = field.split(" ")[0];
+            String name = field.split(" ")[1];
+            String rewrite = childAction(type, "exprs", "stmts");
+
+            if (arguments.length() > 0) arguments.append(", ");
+            arguments.append(name);
+
+            if (rewrite == null) continue;
+
+            if (type.startsWith("List<")) {
+                writer.println("            " + type + " " + name + " = rewriteAll(this." + name + ", " + rewrite + ");");
+            } else {
+                writer.println("            " + type + " " + name + " = this." + name + " == null ? null : " + rewrite + ".apply(this." + name + ");");
+            }
+
+            if (unchanged.length() > 0) unchanged.append(" && ");
+            unchanged.append(name).append(" == this.").append(name);
+        }
+
+        if (unchanged.length() > 0) {
+            writer.println();
+            writer.println("            if (" + unchanged + ") return this;");
+            writer.println("            return new " + className + "(" + arguments + ");");
+        } else {
+            writer.println("            return this;");
+        }
+
+        writer.println("        }");
+    }
+
+    private static void defineRewriteAll(PrintWriter writer) {
+        writer.println("    // Applies rewrite to every element, copying the list only once an element actually changes.");
+        writer.println("    static <T> List<T> rewriteAll(List<T> list, UnaryOperator<T> rewrite) {");
+        writer.println("        List<T> result = null;");
+        writer.println();
+        writer.println("        for (int i = 0; i < list.size(); i++) {");
+        writer.println("            T before = list.get(i);");
+        writer.println("            T after = before == null ? null : rewrite.apply(before);");
+        writer.println();
+        writer.println("            if (after != before && result == null) result = new ArrayList<>(list.subList(0, i));");
+        writer.println("            if (result != null) result.add(after);");
+        writer.println("        }");
+        writer.println();
+        writer.println("        return result == null ? list : result;");
+        writer.println("    }");
+    }
+
+    // The consumer or rewriter a field of the given type is passed to, or null if it isn't a child node.
+    private static String childAction(String type, String exprs, String stmts) {
+        String element = type.startsWith("List<") ? elementType(type) : type;
+
+        if (element.equals("Expr")) return exprs;
+        if (element.equals("Stmt")) return stmts;
+        return null;
+    }
+
+    private static String elementType(String listType) {
+        return listType.substring("List<".length(), listType.length() - 1);
+    }
+
+    private static String kindName(String typeName) {
+        return typeName.replaceAll("([a-z])([A-Z])", "$1_$2").toUpperCase();
+    }
 }
@@ -0,0 +1,66 @@
+package com.github.senicko.lox;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+// Dumps programs made of the shapes Fusion fuses, before and after fusing them. Fused nodes are dumped as the
+// nodes they were fused from, so both dumps are the same.
+class AstDumperTest {
+    private static final String SOURCE = """
+            var x = 0;
+            var y = 1;
+            x = x + 1;
+            x = x - 2;
+            print x < 3;
+            print x == nil;
+            y = x;
+            print x;
+            fun f(a) {
+                var b = a;
+                b = b + 1;
+                print b >= 2;
+                b = a;
+                print b;
+            }
+            """;
+
+    @Test
+    void dumpsFusedNodesAsTheNodesTheyReplace() throws IOException {
+        List<Stmt> program = parse();
+        List<Stmt> fused = Fusion.fuse(program);
+
+        assertEquals(dump(program), dump(fused));
+    }
+
+    @Test
+    void writesFusedNodesAsTheNodesTheyReplace() throws IOException {
+        List<Stmt> program = parse();
+        List<Stmt> fused = Fusion.fuse(program);
+
+        assertArrayEquals(dumpBinary(program), dumpBinary(fused));
+    }
+
+    private static List<Stmt> parse() {
+        return new Parser(new Scanner(SOURCE).scanTokens(), false, false).parse();
+    }
+
+    private static String dump(List<Stmt> program) throws IOException {
+        StringWriter out = new StringWriter();
+        AstDumper.dump(program, out);
+        return out.toString();
+    }
+
+    private static byte[] dumpBinary(List<Stmt> program) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        AstDumper.dumpBinary(program, new DataOutputStream(bytes));
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,303 @@
+package com.github.senicko.lox;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+// Times the paths the optimizations in this tree were measured on. JMH isn't a dependency of the build, so every
+// case warms up first and reports the best of several timed rounds, which is the round least disturbed by the JIT
+// compiler and the collector. Run it from the test classpath, naming the groups to run or none for all of them:
+//
+//     java -cp build/classes/java/main:build/classes/java/test com.github.senicko.lox.Benchmark deep
+final class Benchmark {
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int ROUNDS = 10;
+
+    private record Case(String name, Runnable body) {
+    }
+
+    // Written by cases whose result would otherwise be dead code.
+    private static volatile Object sink;
+
+    // Built when they are run, so one group can be timed against a build of the tree which predates another.
+    private static final Map<String, Supplier<List<Case>>> GROUPS = new LinkedHashMap<>();
+
+    static {
+        // The explicit-stack parser and evaluator behind --deep, on the shallow expressions most programs have.
+        group("deep", () -> {
+            String shallow = "var x = (1 + 2) * 3 - 4 / 2 > 1 and !false or nil == nil;\n".repeat(20_000);
+            List<Token> tokens = new Scanner(shallow).scanTokens();
+            String loop = "var i = 0; var x = 0; while (i < 200000) { x = (i + 1) * 2 - i / 3 + (x < 0 ? 1 : 2); i = i + 1; }";
+
+            return List.of(
+                    new Case("parse shallow", () -> new Parser(tokens, false, false).parse()),
+                    new Case("parse shallow, --deep", () -> new Parser(tokens, true, false).parse()),
+                    new Case("evaluate shallow", script(loop, false)),
+                    new Case("evaluate shallow, --deep", script(loop, true)));
+        });
+
+        // The scanner on sources made mostly of what it skips in bulk: indentation, comments and string bodies.
+        group("scan", () -> {
+            String indented = (" ".repeat(80) + "x\n").repeat(50_000);
+            String commented = ("// " + "a comment ".repeat(10) + "\nx\n").repeat(50_000);
+            String strings = ("\"" + "a string ".repeat(10) + "\"\n").repeat(50_000);
+
+            return List.of(
+                    new Case("indentation", () -> new Scanner(indented).scanTokens()),
+                    new Case("comments", () -> new Scanner(commented).scanTokens()),
+                    new Case("strings", () -> new Scanner(strings).scanTokens()));
+        });
+
+        // Lookups in LoxMap against a java.util.HashMap holding the same keys, boxed as scripts box them.
+        group("map", () -> {
+            int keys = 1_000;
+            int lookups = 1_000_000;
+
+            String[] strings = new String[keys];
+            Object[] numbers = new Object[keys];
+            LoxMap byString = new LoxMap();
+            LoxMap byNumber = new LoxMap();
+            Map<Object, Object> hashByString = new HashMap<>();
+            Map<Object, Object> hashByNumber = new HashMap<>();
+
+            for (int i = 0; i < keys; i++) {
+                strings[i] = "key" + i;
+                numbers[i] = Numbers.valueOf(i * 7L);
+                byString.put(strings[i], numbers[i]);
+                byNumber.put(numbers[i], strings[i]);
+                hashByString.put(strings[i], numbers[i]);
+                hashByNumber.put(numbers[i], strings[i]);
+            }
+
+            return List.of(
+                    new Case("string keys, LoxMap", () -> {
+                        for (int i = 0; i < lookups; i++) sink = byString.get(strings[i % keys]);
+                    }),
+                    new Case("string keys, HashMap", () -> {
+                        for (int i = 0; i < lookups; i++) sink = hashByString.get(strings[i % keys]);
+                    }),
+                    new Case("number keys, LoxMap", () -> {
+                        for (int i = 0; i < lookups; i++) sink = byNumber.get(numbers[i % keys]);
+                    }),
+                    new Case("number keys, HashMap", () -> {
+                        for (int i = 0; i < lookups; i++) sink = hashByNumber.get(numbers[i % keys]);
+                    }));
+        });
+
+        // A trivial Java method called from a loop, bound through HostFunction's method handles and through
+        // reflection, against the loop doing the same work without a call.
+        group("host", () -> {
+            String loop = "var i = 0; var x = 0; while (i < 200000) { x = %s; i = i + 1; }";
+
+            return List.of(
+                    new Case("no call", script(loop.formatted("x + 1"), false)),
+                    new Case("host function", script(loop.formatted("increment(x)"), Benchmark::withIncrement, false)),
+                    new Case("reflective call", script(loop.formatted("reflected(x)"), Benchmark::withReflected, false)),
+                    new Case("Lox function", script("fun increment(x) { return x + 1; }" + loop.formatted("increment(x)"), false)),
+                    new Case("direct Java call", () -> {
+                        long x = 0;
+                        for (int i = 0; i < 200_000; i++) x = increment(x);
+                        sink = x;
+                    }));
+        });
+
+        // Loops made of the shapes Fusion fuses, compiled as the script cache compiles them and with every pass
+        // but fusion. At the top level they fuse into the named variants, in a function into the slot ones.
+        group("fusion", () -> {
+            String loop = "var i = 0; var x = 0; var y = 1; while (i < 100000) { %s i = i + 1; }";
+            Map<String, String> patterns = new LinkedHashMap<>();
+            patterns.put("increment", "x = x + 1; x = x - 1; x = x + 2;");
+            patterns.put("compare", "if (x < 5) y = 2; if (x == 0) y = 3; if (x >= 9) y = 4;");
+            patterns.put("copy", "x = y; y = x; x = y;");
+            patterns.put("print", "print x; print y;");
+
+            List<Case> cases = new ArrayList<>();
+
+            patterns.forEach((name, body) -> {
+                String global = loop.formatted(body);
+                String local = "fun run() { " + global + " } run();";
+
+                cases.add(new Case(name + ", unfused", quietly(run(unfused(global)))));
+                cases.add(new Case(name + ", fused", quietly(script(global, false))));
+                cases.add(new Case(name + " in a function, unfused", quietly(run(unfused(local)))));
+                cases.add(new Case(name + " in a function, fused", quietly(script(local, false))));
+            });
+
+            return cases;
+        });
+
+        // Statement-heavy loops run with statements dispatched on Stmt.kind, as the interpreter does, and through
+        // accept() as the visitor did. Expressions are dispatched through accept() either way: the kind switch
+        // measured slower for them, so the interpreter has no switch path for expressions left to time.
+        group("dispatch", () -> {
+            String loop = "var i = 0; var x = 0; while (i < 200000) { if (x < 5) x = x + 1; else x = 0; { var y = x; print y; } i = i + 1; }";
+            String local = "fun run() { " + loop + " } run();";
+
+            return List.of(
+                    new Case("globals, kind switch", quietly(script(loop, () -> new Interpreter(false), false))),
+                    new Case("globals, visitor", quietly(script(loop, Benchmark::withVisitorDispatch, false))),
+                    new Case("in a function, kind switch", quietly(script(local, () -> new Interpreter(false), false))),
+                    new Case("in a function, visitor", quietly(script(local, Benchmark::withVisitorDispatch, false))));
+        });
+
+        // Calls, as lox/fib.lox makes them, on each interpreter. fib(25) makes 242785 calls, so calls per second
+        // are 242785 over the time taken. The target is 10M calls a second on the tree interpreter, 24 ms a round.
+        group("fib", () -> {
+            String fib = "fun fib(n) { if (n < 2) return n; return fib(n - 1) + fib(n - 2); } var result = fib(25);";
+
+            return List.of(
+                    new Case("fib(25)", script(fib, false)),
+                    new Case("fib(25), --deep", script(fib, true)),
+                    new Case("fib(25), --flat", () -> {
+                        FlatAst ast = new Parser(new Scanner(fib).scanTokens(), false, false).parseFlat();
+                        new FlatInterpreter(new Interpreter(false), ast).interpret();
+                    }));
+        });
+    }
+
+    // The trivial host function the "host" group calls.
+    public static long increment(long x) {
+        return x + 1;
+    }
+
+    private static void group(String name, Supplier<List<Case>> cases) {
+        GROUPS.put(name, cases);
+    }
+
+    // Runs the script in a fresh interpreter each time, compiled once up front. Loops aren't compiled on stack
+    // replacement, which would leave the tree being measured after a thousand iterations.
+    private static Runnable script(String source, boolean deep) {
+        return script(source, () -> new Interpreter(deep), deep);
+    }
+
+    private static Runnable script(String source, Supplier<Interpreter> interpreters, boolean deep) {
+        return run(new ScriptCache(1 << 24, deep).get(source).statements(), interpreters);
+    }
+
+    private static Runnable run(List<Stmt> statements) {
+        return run(statements, () -> new Interpreter(false));
+    }
+
+    private static Runnable run(List<Stmt> statements, Supplier<Interpreter> interpreters) {
+        return () -> {
+            Interpreter interpreter = interpreters.get();
+            interpreter.tiering(0, 0, null);
+            interpreter.interpret(statements);
+        };
+    }
+
+    // The script compiled as the script cache compiles it, but left unfused.
+    private static List<Stmt> unfused(String source) {
+        List<Stmt> statements = LoopOptimizer.optimize(new Parser(new Scanner(source).scanTokens(), false, false).parse());
+        return IrOptimizer.optimize(TypeInference.infer(statements).statements());
+    }
+
+    // Runs the case with what it prints thrown away.
+    private static Runnable quietly(Runnable body) {
+        return () -> {
+            PrintStream out = System.out;
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+            try {
+                body.run();
+            } finally {
+                System.setOut(out);
+            }
+        };
+    }
+
+    // Executes every statement through accept() rather than the switch on Stmt.kind in Interpreter.execute.
+    private static Interpreter withVisitorDispatch() {
+        return new Interpreter(false) {
+            @Override
+            void execute(Stmt stmt) {
+                stmt.accept(this);
+            }
+        };
+    }
+
+    private static Interpreter withIncrement() {
+        Interpreter interpreter = new Interpreter(false);
+
+        try {
+            MethodType type = MethodType.methodType(long.class, long.class);
+            interpreter.defineNative("increment", MethodHandles.lookup().findStatic(Benchmark.class, "increment", type));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+
+        return interpreter;
+    }
+
+    // Calls increment through Method.invoke with the conversions done by hand, as a binding without method
+    // handles would.
+    private static Interpreter withReflected() {
+        Interpreter interpreter = new Interpreter(false);
+
+        try {
+            Method method = Benchmark.class.getMethod("increment", long.class);
+            Token name = new Token(TokenType.IDENTIFIER, "reflected", Symbol.intern("reflected"), 0);
+
+            interpreter.globals.define(name, new LoxCallable() {
+                @Override
+                public int arity() {
+                    return 1;
+                }
+
+                @Override
+                public Object call(Interpreter interpreter, Token paren, List<Object> arguments) {
+                    try {
+                        return Numbers.valueOf((long) method.invoke(null, (long) arguments.get(0)));
+                    } catch (ReflectiveOperationException e) {
+                        throw new LoxRuntimeError(paren, e.toString());
+                    }
+                }
+            });
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException(e);
+        }
+
+        return interpreter;
+    }
+
+    // The best time of the case, in nanoseconds.
+    private static long measure(Case benchmark) {
+        for (int round = 0; round < WARMUP_ROUNDS; round++) benchmark.body.run();
+
+        long best = Long.MAX_VALUE;
+
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            benchmark.body.run();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+
+        return best;
+    }
+
+    public static void main(String[] args) {
+        List<String> names = args.length == 0 ? new ArrayList<>(GROUPS.keySet()) : List.of(args);
+
+        for (String name : names) {
+            Supplier<List<Case>> cases = GROUPS.get(name);
+
+            if (cases == null) {
+                System.err.println("Unknown benchmark group '" + name + "', expected one of " + GROUPS.keySet() + ".");
+                System.exit(64);
+            }
+
+            System.out.println(name);
+            for (Case benchmark : cases.get()) {
+                System.out.printf("  %-40s %10.3f ms%n", benchmark.name, measure(benchmark) / 1e6);
+            }
+        }
+    }
+}
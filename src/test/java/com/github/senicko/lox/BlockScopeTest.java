@@ -0,0 +1,69 @@
+package com.github.senicko.lox;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+// Functions and classes declared in a block or a loop body shadow the outer ones only inside it, whether the block
+// runs on the tree or lowered to the flat AST.
+class BlockScopeTest {
+    @Test
+    void functionDeclaredInBlockStaysInIt() {
+        assertPrints("fun f() { return 1; } { fun f() { return 2; } print f(); } print f();", "2", "1");
+    }
+
+    @Test
+    void classDeclaredInBlockStaysInIt() {
+        String source = """
+                class C { m() { return "outer"; } }
+                { class C { m() { return "inner"; } } print C().m(); }
+                print C().m();
+                """;
+
+        assertPrints(source, "inner", "outer");
+    }
+
+    @Test
+    void functionAndClassDeclaredInLoopBodyStayInIt() {
+        String source = """
+                fun f() { return 1; }
+                class C { m() { return "outer"; } }
+                var i = 0;
+                while (i < 2) { fun f() { return 2; } class C {} i = i + 1; }
+                for (var j = 0; j < 2; j = j + 1) { fun f() { return 3; } class C {} }
+                print f();
+                print C().m();
+                """;
+
+        assertPrints(source, "1", "outer");
+    }
+
+    private static void assertPrints(String source, String... lines) {
+        List<String> expected = List.of(lines);
+
+        assertEquals(expected, output(() -> new Interpreter(false).interpret(new ScriptCache(1 << 20, false).get(source).statements())), "tree");
+        assertEquals(expected, output(() -> {
+            FlatAst ast = new Parser(new Scanner(source).scanTokens(), false, false).parseFlat();
+            new FlatInterpreter(new Interpreter(false), ast).interpret();
+        }), "flat");
+    }
+
+    private static List<String> output(Runnable run) {
+        PrintStream out = System.out;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(bytes, true, StandardCharsets.UTF_8));
+
+        try {
+            run.run();
+        } finally {
+            System.setOut(out);
+        }
+
+        return bytes.toString(StandardCharsets.UTF_8).lines().toList();
+    }
+}
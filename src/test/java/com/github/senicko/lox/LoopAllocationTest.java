@@ -0,0 +1,71 @@
+package com.github.senicko.lox;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// A loop body which declares variables runs in one scope reset between iterations, so its declarations allocate
+// nothing once the loop is warm. The counter is boxed either way, so each loop is compared with one doing the same
+// work in variables declared outside it, and may allocate no more than the counter's box per iteration.
+class LoopAllocationTest {
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private static final int ITERATIONS = 200_000;
+
+    // A Long, with or without compressed class pointers. A scope made for each iteration would add an Environment,
+    // its slot array and a binding for every variable on top of it.
+    private static final long COUNTER_BYTES = 24;
+
+    @Test
+    void whileBodyScopeAllocatesNothingPerIteration() {
+        String scoped = "var i = 0; while (i < n) { var a = \"a\"; var b = a; var c; i = i + 1; }";
+        String flat = "var a; var b; var c; var i = 0; while (i < n) { a = \"a\"; b = a; c = nil; i = i + 1; }";
+
+        assertNoScopeAllocation(scoped, flat);
+    }
+
+    @Test
+    void countedLoopBodyScopeAllocatesNothingPerIteration() {
+        String scoped = "for (var i = 0; i < n; i = i + 1) { var a = true; var b = a; }";
+        String flat = "var a; var b; for (var i = 0; i < n; i = i + 1) { a = true; b = a; }";
+
+        assertNoScopeAllocation(scoped, flat);
+    }
+
+    private static void assertNoScopeAllocation(String scoped, String flat) {
+        long total = Long.MAX_VALUE;
+        long extra = Long.MAX_VALUE;
+
+        // The fewest bytes over a few rounds, which leaves out what the JIT compiler happened to do in any one.
+        for (int round = 0; round < 5; round++) {
+            long bytes = allocated(scoped);
+            total = Math.min(total, bytes);
+            extra = Math.min(extra, bytes - allocated(flat));
+        }
+
+        long perIteration = total / ITERATIONS;
+        long extraPerIteration = extra / ITERATIONS;
+        assertTrue(perIteration <= COUNTER_BYTES, () -> "the loop allocated " + perIteration + " bytes per iteration");
+        assertTrue(extraPerIteration <= 0, () -> "the loop-body scope allocated " + extraPerIteration + " bytes per iteration");
+    }
+
+    // The bytes running the loop allocates, once it ran enough to be compiled by the JIT.
+    private static long allocated(String loop) {
+        ScriptCache cache = new ScriptCache(1 << 20, false);
+        Interpreter interpreter = new Interpreter(false);
+
+        // On stack replacement would run the loop on frame slots, which have no scope to reuse.
+        interpreter.tiering(0, 0, null);
+        interpreter.interpret(cache.get("var n = " + ITERATIONS + ";").statements());
+
+        var statements = cache.get(loop).statements();
+        for (int warmup = 0; warmup < 5; warmup++) interpreter.interpret(statements);
+
+        long before = THREADS.getCurrentThreadAllocatedBytes();
+        interpreter.interpret(statements);
+        return THREADS.getCurrentThreadAllocatedBytes() - before;
+    }
+}
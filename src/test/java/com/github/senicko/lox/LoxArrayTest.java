@@ -0,0 +1,116 @@
+package com.github.senicko.lox;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+// Indexes arrays as index expressions do and calls the array natives as scripts call them, with the arguments
+// scripts get wrong. Arrays have the size they were created with: writing past the end is an error, not growth.
+class LoxArrayTest {
+    private static final Token BRACKET = new Token(TokenType.RIGHT_BRACKET, "]", null, 1);
+    private static final Token PAREN = new Token(TokenType.RIGHT_PAREN, ")", null, 1);
+
+    private final Interpreter interpreter = new Interpreter(false);
+
+    @Test
+    void readsWhatWasWritten() {
+        LoxArray array = (LoxArray) call("array", 3L);
+
+        assertEquals(3L, call("len", array));
+        assertEquals(0L, interpreter.index(BRACKET, array, 2L));
+
+        interpreter.setIndex(BRACKET, array, 0L, 1.5);
+        interpreter.setIndex(BRACKET, array, 2.0, 4L);
+
+        assertEquals(1.5, interpreter.index(BRACKET, array, 0L));
+        // Integral elements read back as the integers they were written as, whichever way the index was written.
+        assertEquals(4L, interpreter.index(BRACKET, array, 2L));
+        assertEquals("[1.5, 0, 4]", array.toString());
+    }
+
+    @Test
+    void rejectsIndicesOutOfRange() {
+        LoxArray array = new LoxArray(3);
+
+        assertError("Index out of bounds.", () -> interpreter.index(BRACKET, array, -1L));
+        assertError("Index out of bounds.", () -> interpreter.index(BRACKET, array, 3L));
+        assertError("Index out of bounds.", () -> interpreter.index(BRACKET, new LoxArray(0), 0L));
+        assertError("Index must be an integer.", () -> interpreter.index(BRACKET, array, 0.5));
+        assertError("Index must be an integer.", () -> interpreter.index(BRACKET, array, "0"));
+        assertError("Only arrays and maps can be indexed.", () -> interpreter.index(BRACKET, "abc", 0L));
+    }
+
+    @Test
+    void doesNotGrowWhenWrittenPastTheEnd() {
+        LoxArray array = new LoxArray(2);
+
+        assertError("Index out of bounds.", () -> interpreter.setIndex(BRACKET, array, 2L, 1L));
+        assertError("Index out of bounds.", () -> interpreter.setIndex(BRACKET, array, 100L, 1L));
+        assertError("Array elements must be numbers.", () -> interpreter.setIndex(BRACKET, array, 0L, "1"));
+        assertError("Array elements must be numbers.", () -> interpreter.setIndex(BRACKET, array, 1L, null));
+
+        assertEquals(2, array.length());
+        assertEquals("[0, 0]", array.toString());
+    }
+
+    @Test
+    void reducesEveryElement() {
+        // Lengths either side of the four sums the reductions keep, which leave elements for the tail loop.
+        for (int length = 0; length <= 9; length++) {
+            LoxArray array = new LoxArray(length);
+            long sum = 0;
+            long dot = 0;
+
+            for (int i = 0; i < length; i++) {
+                array.elements[i] = i + 1;
+                sum += i + 1;
+                dot += (long) (i + 1) * (i + 1);
+            }
+
+            assertEquals(sum, call("sum", array), "sum of " + length);
+            assertEquals(dot, call("dot", array, array), "dot of " + length);
+            assertEquals(2 * sum, call("sum", call("scale", array, 2L)), "scaled sum of " + length);
+        }
+    }
+
+    @Test
+    void scaleLeavesArrayAsItWas() {
+        LoxArray array = new LoxArray(2);
+        array.elements[0] = 1;
+        array.elements[1] = 2;
+
+        assertEquals("[0.5, 1]", call("scale", array, 0.5).toString());
+        assertEquals("[1, 2]", array.toString());
+    }
+
+    @Test
+    void rejectsBadArguments() {
+        assertError("Array length must be a non-negative integer.", () -> call("array", -1L));
+        assertError("Array length must be a non-negative integer.", () -> call("array", 1.5));
+        assertError("Array length must be a non-negative integer.", () -> call("array", "3"));
+        assertError("Array length must be a non-negative integer.", () -> call("array", (double) Integer.MAX_VALUE));
+
+        assertError("Argument must be an array or a map.", () -> call("len", "abc"));
+        assertError("Argument must be an array.", () -> call("sum", (Object) null));
+        assertError("Argument must be an array.", () -> call("dot", new LoxArray(1), 1L));
+        assertError("Arrays must have the same length.", () -> call("dot", new LoxArray(1), new LoxArray(2)));
+        assertError("Argument must be an array.", () -> call("scale", new LoxMap(), 2L));
+        assertError("Factor must be a number.", () -> call("scale", new LoxArray(1), "2"));
+    }
+
+    private Object call(String name, Object... arguments) {
+        Token token = new Token(TokenType.IDENTIFIER, name, Symbol.intern(name), 1);
+        LoxCallable function = (LoxCallable) interpreter.globals.get(token).value;
+
+        assertEquals(arguments.length, function.arity(), name + " arity");
+        return function.call(interpreter, PAREN, Arrays.asList(arguments));
+    }
+
+    private static void assertError(String message, Runnable body) {
+        LoxRuntimeError error = assertThrows(LoxRuntimeError.class, body::run);
+        assertEquals(message, error.getMessage());
+    }
+}
@@ -0,0 +1,82 @@
+package com.github.senicko.lox;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+// Scans random sources in chunks and compares the tokens with a single Scanner's. The chunks are small, so their
+// boundaries keep landing inside strings, comments and runs of whitespace.
+class ParallelScannerTest {
+    private static final String[] FRAGMENTS = {
+            "var", "fun", "while", "print", "and", "nil", "x", "count", "_tmp2", "0", "42", "3.25", "1e3",
+            "(", ")", "{", "}", "[", "]", ",", ".", ";", ":", "?", "-", "+", "*", "/", "!", "!=", "=", "==",
+            "<", "<=", ">", ">=", " ", "  \t ", "\n", "\r\n", "\n\n\n",
+            "// a comment\n", "// comment with \"quote\n", "//\n",
+            "\"\"", "\"text\"", "\"a // not a comment\"", "\"spans\nlines\n\"", "\"\n\n\n\"",
+            "\"\u00fcn\u00efc\u00f6d\u00e9 \u20ac\"",
+    };
+
+    private static final int[] CHUNK_SIZES = {1, 2, 3, 5, 8, 16, 64, 1024};
+
+    @Test
+    void matchesSingleScannerOnRandomSources() {
+        Random random = new Random(29);
+        ForkJoinPool pool = new ForkJoinPool(4);
+
+        try {
+            for (int round = 0; round < 300; round++) {
+                String source = randomSource(random, random.nextInt(200));
+                assertSameTokens(source, pool);
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void matchesSingleScannerAtTheEdges() {
+        ForkJoinPool pool = new ForkJoinPool(4);
+
+        try {
+            for (String source : List.of("", "\n", "\"", "\"\n\n", "x\n\"open\nstring", "// only a comment",
+                    "\"one\nlong\nliteral\nacross\nmany\nchunks\"\nprint 1;\n")) {
+                assertSameTokens(source, pool);
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static void assertSameTokens(String source, ForkJoinPool pool) {
+        List<Token> expected = new Scanner(source).scanTokens();
+
+        for (int chunkSize : CHUNK_SIZES) {
+            List<Token> actual = ParallelScanner.scanTokens(source, pool, chunkSize);
+            assertEquals(expected, actual, () -> "chunks of " + chunkSize + " in " + quote(source));
+        }
+    }
+
+    private static String randomSource(Random random, int fragments) {
+        StringBuilder source = new StringBuilder();
+
+        for (int i = 0; i < fragments; i++) {
+            source.append(FRAGMENTS[random.nextInt(FRAGMENTS.length)]);
+
+            // Keeps neighbouring words and numbers from running together into fragments of their own.
+            source.append(random.nextInt(4) == 0 ? '\n' : ' ');
+        }
+
+        // Sometimes a string is left open, which scans to the end of the source.
+        if (random.nextInt(10) == 0) source.append("\"unterminated\n");
+
+        return source.toString();
+    }
+
+    private static String quote(String source) {
+        return "\"" + source.replace("\n", "\\n") + "\"";
+    }
+}
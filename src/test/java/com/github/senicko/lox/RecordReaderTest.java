@@ -0,0 +1,100 @@
+package com.github.senicko.lox;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+// Reads generated files through windows small enough for records, and the characters in them, to be split across
+// mappings, and compares the lines with Files.readAllLines.
+class RecordReaderTest {
+    private static final long[] WINDOW_SIZES = {1, 2, 3, 7, 8, 9, 64, RecordReader.WINDOW_SIZE};
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void readsEmptyFile() throws IOException {
+        assertSameLines("");
+    }
+
+    @Test
+    void readsLastLineWithoutNewline() throws IOException {
+        assertSameLines("first\nsecond\nlast");
+        assertSameLines("only");
+    }
+
+    @Test
+    void readsEmptyLines() throws IOException {
+        assertSameLines("\n");
+        assertSameLines("\n\n\na\n\n");
+    }
+
+    @Test
+    void dropsCarriageReturnsOfCrlfLines() throws IOException {
+        assertSameLines("first\r\nsecond\r\n\r\nlast\r\n");
+        assertSameLines("no newline at the end\r\nlast");
+    }
+
+    @Test
+    void readsMultibyteTextAcrossWindows() throws IOException {
+        // Two, three and four byte characters, which the small windows cut through at every offset.
+        assertSameLines("\u00e9t\u00e9\n\u20ac\u20ac\u20ac\n\uD83D\uDE00 smile\n\u00fc\r\n\u4e2d\u6587");
+    }
+
+    @Test
+    void readsRandomFiles() throws IOException {
+        Random random = new Random(39);
+        String[] pieces = {"a", "line", " ", "\u00e9", "\u20ac", "\uD83D\uDE00", "\n", "\r\n", "\n\n"};
+
+        for (int round = 0; round < 50; round++) {
+            StringBuilder text = new StringBuilder();
+            int length = random.nextInt(100);
+
+            for (int i = 0; i < length; i++) text.append(pieces[random.nextInt(pieces.length)]);
+
+            assertSameLines(text.toString());
+        }
+    }
+
+    @Test
+    void splitsRecordsOnDelimiter() throws IOException {
+        Path file = write("a,bb,\u20ac,,last\n");
+
+        for (long windowSize : WINDOW_SIZES) {
+            assertEquals(List.of("a", "bb", "\u20ac", "", "last\n"), read(file, (byte) ',', false, windowSize));
+        }
+    }
+
+    private void assertSameLines(String text) throws IOException {
+        Path file = write(text);
+        List<String> expected = Files.readAllLines(file, StandardCharsets.UTF_8);
+
+        for (long windowSize : WINDOW_SIZES) {
+            assertEquals(expected, read(file, (byte) '\n', true, windowSize), "windows of " + windowSize + " bytes");
+        }
+    }
+
+    private Path write(String text) throws IOException {
+        Path file = Files.createTempFile(directory, "records", ".txt");
+        Files.writeString(file, text, StandardCharsets.UTF_8);
+        return file;
+    }
+
+    private static List<String> read(Path file, byte delimiter, boolean lines, long windowSize) throws IOException {
+        RecordReader reader = new RecordReader(file, delimiter, lines, windowSize);
+        List<String> records = new ArrayList<>();
+
+        for (String record = reader.next(); record != null; record = reader.next()) records.add(record);
+
+        return records;
+    }
+}
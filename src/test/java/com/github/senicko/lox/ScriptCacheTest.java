@@ -0,0 +1,87 @@
+package com.github.senicko.lox;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+// Compiles sources through caches shared by several threads at once, and through caches only a few scripts fit
+// in. A source compiled twice would be counted in the cache's bytes twice, so they tell how often it was compiled.
+class ScriptCacheTest {
+    private static final int THREADS = 8;
+
+    @Test
+    void compilesSourceOnceForConcurrentMisses() throws Exception {
+        // Large enough for the threads to still be looking it up while the first one compiles it.
+        String source = "var x = 0;\n" + "x = (x + 1) * 2 - x / 3;\n".repeat(20_000);
+        ScriptCache cache = new ScriptCache(1 << 28, false);
+        CyclicBarrier start = new CyclicBarrier(THREADS);
+        ExecutorService threads = Executors.newFixedThreadPool(THREADS);
+
+        try {
+            List<Future<ScriptCache.Script>> scripts = new ArrayList<>();
+
+            for (int i = 0; i < THREADS; i++) {
+                scripts.add(threads.submit(() -> {
+                    start.await();
+                    return cache.get(source);
+                }));
+            }
+
+            ScriptCache.Script script = scripts.get(0).get();
+            assertNotNull(script);
+            for (Future<ScriptCache.Script> other : scripts) assertSame(script, other.get());
+
+            ScriptCache.Stats stats = cache.stats();
+            assertEquals(THREADS, stats.hits() + stats.misses());
+            assertEquals(1, stats.scripts());
+            assertEquals(script.bytes(), stats.bytes());
+        } finally {
+            threads.shutdownNow();
+        }
+    }
+
+    @Test
+    void evictsLeastRecentlyUsedScriptOverCapacity() {
+        // Sources of the same shape, which are estimated at the same size.
+        long size = new ScriptCache(1 << 20, false).get("print 1;").bytes();
+        ScriptCache cache = new ScriptCache(2 * size, false);
+
+        ScriptCache.Script first = cache.get("print 1;");
+        cache.get("print 2;");
+        assertSame(first, cache.get("print 1;"));
+        cache.get("print 3;");
+
+        ScriptCache.Stats stats = cache.stats();
+        assertEquals(1, stats.evictions());
+        assertEquals(2, stats.scripts());
+        assertEquals(2 * size, stats.bytes());
+
+        // "print 2;" was the least recently used, so it is compiled again while "print 1;" is still cached.
+        assertSame(first, cache.get("print 1;"));
+        cache.get("print 2;");
+        assertEquals(4, cache.stats().misses());
+    }
+
+    @Test
+    void doesNotCacheScriptLargerThanCapacity() {
+        long size = new ScriptCache(1 << 20, false).get("print 1;").bytes();
+        ScriptCache cache = new ScriptCache(size - 1, false);
+
+        assertNotNull(cache.get("print 1;"));
+        cache.get("print 1;");
+
+        ScriptCache.Stats stats = cache.stats();
+        assertEquals(2, stats.misses());
+        assertEquals(0, stats.scripts());
+        assertEquals(0, stats.bytes());
+    }
+}
@@ -0,0 +1,99 @@
+package com.github.senicko.lox;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+// Forks of a snapshot start out with the globals and every scope the prelude's functions close over as they were
+// when it was taken, and see neither each other's writes nor those of the interpreter it was taken of.
+class SnapshotTest {
+    private static final String COUNTER = "var counter; { var x = 0; fun inc() { x = x + 1; return x; } counter = inc; }";
+
+    @Test
+    void forkDoesNotSeeGlobalsAssignedAfterSnapshot() {
+        Interpreter source = interpreter("var x = 1;");
+        Interpreter.Snapshot snapshot = source.snapshot();
+
+        assertPrints(source, "x = 2; print x;", "2");
+        assertPrints(snapshot.fork(), "print x;", "1");
+    }
+
+    @Test
+    void forkDoesNotSeeClosedOverScopeWrittenAfterSnapshot() {
+        Interpreter source = interpreter(COUNTER);
+        Interpreter.Snapshot snapshot = source.snapshot();
+
+        assertPrints(source, "print counter(); print counter(); print counter();", "1", "2", "3");
+        assertPrints(snapshot.fork(), "print counter();", "1");
+        assertPrints(source, "print counter();", "4");
+    }
+
+    @Test
+    void forksDoNotSeeEachOther() {
+        Interpreter.Snapshot snapshot = interpreter(COUNTER).snapshot();
+        Interpreter first = snapshot.fork();
+        Interpreter second = snapshot.fork();
+
+        assertPrints(first, "print counter(); print counter();", "1", "2");
+        assertPrints(second, "print counter();", "1");
+        assertPrints(first, "print counter();", "3");
+    }
+
+    @Test
+    void snapshotOfForkFreezesTheForksScopes() {
+        Interpreter fork = interpreter(COUNTER).snapshot().fork();
+        assertPrints(fork, "print counter(); print counter();", "1", "2");
+
+        Interpreter.Snapshot snapshot = fork.snapshot();
+        assertPrints(fork, "print counter();", "3");
+        assertPrints(snapshot.fork(), "print counter();", "3");
+    }
+
+    @Test
+    void freezesScopesReachedThroughObjects() {
+        String prelude = """
+                var box;
+                var table = {};
+                {
+                    var n = 10;
+                    class Box { next() { n = n + 1; return n; } }
+                    box = Box();
+                    fun twice() { n = n + 2; return n; }
+                    table["twice"] = twice;
+                }
+                """;
+
+        Interpreter source = interpreter(prelude);
+        Interpreter.Snapshot snapshot = source.snapshot();
+
+        assertPrints(source, "print box.next(); print table[\"twice\"]();", "11", "13");
+        assertPrints(snapshot.fork(), "print box.next(); print table[\"twice\"]();", "11", "13");
+    }
+
+    private static Interpreter interpreter(String prelude) {
+        Interpreter interpreter = new Interpreter(false);
+        assertPrints(interpreter, prelude);
+        return interpreter;
+    }
+
+    private static void assertPrints(Interpreter interpreter, String source, String... lines) {
+        List<Stmt> statements = new Parser(new Scanner(source).scanTokens(), false, false).parse();
+
+        PrintStream out = System.out;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(bytes, true, StandardCharsets.UTF_8));
+
+        try {
+            interpreter.interpret(statements);
+        } finally {
+            System.setOut(out);
+        }
+
+        assertEquals(List.of(lines), bytes.toString(StandardCharsets.UTF_8).lines().toList());
+    }
+}